@@ -0,0 +1,5 @@
+rem Regenerates the message codecs under src-gen from schema\purchase.schema. Run after changing the schema.
+if not exist .\build\tools mkdir .\build\tools
+"C:\Program Files\Java\jdk1.8.0_25\bin\javac.exe" -d .\build\tools .\tools\com\solace\geek2\CodecGenerator.java
+"C:\Program Files\Java\jdk1.8.0_25\bin\java.exe" -classpath .\build\tools com.solace.geek2.CodecGenerator .\schema\purchase.schema .\src-gen
+pause
\ No newline at end of file
@@ -0,0 +1,80 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ *
+ *  GENERATED by CodecGenerator from schema/purchase.schema. Do not edit, change the schema and re-run generateCodecs.bat.
+ */
+package com.solace.geek2;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Binary codec for ProductPurchase, in the format described in BinaryCodecSupport.
+ */
+public final class ProductPurchaseBinaryCodec {
+	private ProductPurchaseBinaryCodec() {
+	}
+
+	/**
+	 * Decodes the message at pos into obj.
+	 *
+	 * @return the position just after the message
+	 */
+	public static int decode(ByteBuffer buf, int pos, ProductPurchase obj) {
+		int present = BinaryCodecSupport.readVarint(buf, pos);
+		pos += BinaryCodecSupport.varintSize(present);
+		if ((present & 1) != 0) {
+			int productLength = BinaryCodecSupport.readVarint(buf, pos);
+			pos += BinaryCodecSupport.varintSize(productLength);
+			obj.setProduct(BinaryCodecSupport.readString(buf, pos, productLength));
+			pos += BinaryCodecSupport.stringBytes(productLength);
+		}
+		if ((present & 2) != 0) {
+			obj.setAmount(BinaryCodecSupport.readDouble(buf, pos));
+			pos += 8;
+		}
+		return pos;
+	}
+
+	/**
+	 * Decodes the list section spanning [start, end) (after its length prefix) into a list.
+	 */
+	public static void decodeList(ByteBuffer buf, int start, int end, List<ProductPurchase> into) {
+		int count = BinaryCodecSupport.readVarint(buf, start);
+		int pos = start + BinaryCodecSupport.varintSize(count);
+		for (int i = 0; i < count && pos < end; i++) {
+			ProductPurchase obj = new ProductPurchase();
+			pos = decode(buf, pos, obj);
+			into.add(obj);
+		}
+	}
+
+	/**
+	 * Appends obj with all its fields.
+	 */
+	public static void encode(ProductPurchase obj, OutboundBuffer out) {
+		out.writeVarint(3);
+		BinaryCodecSupport.writeString(out, obj.getProduct());
+		BinaryCodecSupport.writeDouble(out, obj.getAmount());
+	}
+
+	/**
+	 * Appends a list section, without its length prefix.
+	 */
+	public static void encodeList(List<ProductPurchase> list, OutboundBuffer out) {
+		out.writeVarint(list.size());
+		for (int i = 0; i < list.size(); i++) {
+			encode(list.get(i), out);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ *
+ *  GENERATED by CodecGenerator from schema/purchase.schema. Do not edit, change the schema and re-run generateCodecs.bat.
+ */
+package com.solace.geek2;
+
+import java.util.List;
+
+import org.json.JSONException;
+
+/**
+ * JSON codec for ProductPurchase.
+ */
+public final class ProductPurchaseJsonCodec {
+	public static final String FIELD_PRODUCT = "product";
+	public static final String FIELD_AMOUNT = "amount";
+	private static final byte[] KEY_PRODUCT = JsonCodecSupport.encodeKey(FIELD_PRODUCT);
+	private static final byte[] KEY_AMOUNT = JsonCodecSupport.encodeKey(FIELD_AMOUNT);
+
+	private ProductPurchaseJsonCodec() {
+	}
+
+	/**
+	 * Decodes the JSON object starting at pos into obj.
+	 *
+	 * @return the position just after the object
+	 */
+	public static int decode(CharSequence json, int pos, ProductPurchase obj) throws JSONException {
+		pos = JsonCodecSupport.beginObject(json, pos);
+		while (JsonCodecSupport.peek(json, pos) != '}') {
+			int keyStart = pos;
+			int keyEnd = JsonCodecSupport.skipString(json, pos);
+			pos = JsonCodecSupport.valueStart(json, keyEnd);
+			int valueEnd = JsonCodecSupport.skipValue(json, pos);
+			switch (keyEnd - keyStart - 2) {
+			case 6:
+				if (JsonCodecSupport.keyEquals(json, keyStart, keyEnd, FIELD_AMOUNT)) {
+					obj.setAmount(JsonCodecSupport.parseDouble(json, pos, valueEnd));
+				}
+				break;
+			case 7:
+				if (JsonCodecSupport.keyEquals(json, keyStart, keyEnd, FIELD_PRODUCT)) {
+					obj.setProduct(JsonCodecSupport.parseString(json, pos, valueEnd));
+				}
+				break;
+			}
+			pos = JsonCodecSupport.nextMember(json, valueEnd);
+		}
+		return pos + 1;
+	}
+
+	/**
+	 * Decodes the JSON array spanning [start, end) into a list.
+	 */
+	public static void decodeList(CharSequence json, int start, int end, List<ProductPurchase> into) throws JSONException {
+		int pos = JsonCodecSupport.beginArray(json, start);
+		while (pos < end && JsonCodecSupport.peek(json, pos) != ']') {
+			ProductPurchase obj = new ProductPurchase();
+			pos = JsonCodecSupport.nextMember(json, decode(json, pos, obj));
+			into.add(obj);
+		}
+	}
+
+	/**
+	 * Appends obj as a JSON object.
+	 */
+	public static void encode(ProductPurchase obj, OutboundBuffer out) {
+		out.writeByte('{');
+		JsonCodecSupport.writeKey(out, KEY_PRODUCT, true);
+		JsonCodecSupport.writeString(out, obj.getProduct());
+		JsonCodecSupport.writeKey(out, KEY_AMOUNT, false);
+		JsonCodecSupport.writeNumber(out, obj.getAmount());
+		out.writeByte('}');
+	}
+
+	/**
+	 * Appends a list as a JSON array.
+	 */
+	public static void encodeList(List<ProductPurchase> list, OutboundBuffer out) {
+		out.writeByte('[');
+		for (int i = 0; i < list.size(); i++) {
+			if (i > 0) {
+				out.writeByte(',');
+			}
+			encode(list.get(i), out);
+		}
+		out.writeByte(']');
+	}
+}
@@ -0,0 +1,24 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ *
+ *  GENERATED by CodecGenerator from schema/purchase.schema. Do not edit, change the schema and re-run generateCodecs.bat.
+ */
+package com.solace.geek2;
+
+/**
+ * The payload fields of a PurchaseMessage. Agents declare the subset they actually read (see
+ * AbstractAgent.getFieldsOfInterest()) and the codecs skip everything else.
+ */
+public enum PurchaseField {
+	TOTAL, MESSAGE, PURCHASES, EVENT_TIME
+}
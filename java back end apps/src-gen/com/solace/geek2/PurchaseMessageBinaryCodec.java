@@ -0,0 +1,101 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ *
+ *  GENERATED by CodecGenerator from schema/purchase.schema. Do not edit, change the schema and re-run generateCodecs.bat.
+ */
+package com.solace.geek2;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+/**
+ * Binary codec for PurchaseMessage, in the format described in BinaryCodecSupport.
+ */
+public final class PurchaseMessageBinaryCodec {
+	private PurchaseMessageBinaryCodec() {
+	}
+
+	/**
+	 * Decodes the message between the buffer's position and limit into msg. Fields not in the set are
+	 * skipped without being decoded.
+	 */
+	public static void decode(ByteBuffer buf, EnumSet<PurchaseField> fields, PurchaseMessage msg) {
+		int pos = buf.position();
+		int present = BinaryCodecSupport.readVarint(buf, pos);
+		pos += BinaryCodecSupport.varintSize(present);
+		if ((present & 1) != 0) {
+			if (fields.contains(PurchaseField.TOTAL)) {
+				msg.setTotal(BinaryCodecSupport.readDouble(buf, pos));
+			}
+			pos += 8;
+		}
+		if ((present & 2) != 0) {
+			int messageLength = BinaryCodecSupport.readVarint(buf, pos);
+			pos += BinaryCodecSupport.varintSize(messageLength);
+			if (fields.contains(PurchaseField.MESSAGE)) {
+				msg.setMessage(BinaryCodecSupport.readString(buf, pos, messageLength));
+			}
+			pos += BinaryCodecSupport.stringBytes(messageLength);
+		}
+		if ((present & 4) != 0) {
+			int purchasesLength = BinaryCodecSupport.readInt(buf, pos);
+			pos += 4;
+			if (fields.contains(PurchaseField.PURCHASES)) {
+				msg.setPendingPurchases(buf, pos, pos + purchasesLength);
+			}
+			pos += purchasesLength;
+		}
+		if ((present & 8) != 0) {
+			if (fields.contains(PurchaseField.EVENT_TIME)) {
+				msg.setEventTime(BinaryCodecSupport.readLong(buf, pos));
+			}
+			pos += 8;
+		}
+	}
+
+	/**
+	 * Encodes the fields in the set, replacing the contents of out.
+	 */
+	public static void encode(PurchaseMessage msg, EnumSet<PurchaseField> fields, OutboundBuffer out) {
+		out.reset();
+		int present = 0;
+		if (fields.contains(PurchaseField.TOTAL)) {
+			present |= 1;
+		}
+		if (fields.contains(PurchaseField.MESSAGE)) {
+			present |= 2;
+		}
+		if (fields.contains(PurchaseField.PURCHASES)) {
+			present |= 4;
+		}
+		if (fields.contains(PurchaseField.EVENT_TIME)) {
+			present |= 8;
+		}
+		out.writeVarint(present);
+		if ((present & 1) != 0) {
+			BinaryCodecSupport.writeDouble(out, msg.getTotal());
+		}
+		if ((present & 2) != 0) {
+			BinaryCodecSupport.writeString(out, msg.getMessage());
+		}
+		if ((present & 4) != 0) {
+			int purchasesLengthAt = out.length();
+			out.writeInt(0);
+			ProductPurchaseBinaryCodec.encodeList(msg.getPurchases(), out);
+			out.writeIntAt(purchasesLengthAt, out.length() - purchasesLengthAt - 4);
+		}
+		if ((present & 8) != 0) {
+			out.writeLong(msg.getEventTime());
+		}
+	}
+}
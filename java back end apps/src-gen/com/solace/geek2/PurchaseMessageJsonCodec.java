@@ -0,0 +1,110 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ *
+ *  GENERATED by CodecGenerator from schema/purchase.schema. Do not edit, change the schema and re-run generateCodecs.bat.
+ */
+package com.solace.geek2;
+
+import java.util.EnumSet;
+
+import org.json.JSONException;
+
+/**
+ * JSON codec for PurchaseMessage.
+ */
+public final class PurchaseMessageJsonCodec {
+	public static final String FIELD_TOTAL = "total";
+	public static final String FIELD_MESSAGE = "message";
+	public static final String FIELD_PURCHASES = "purchases";
+	public static final String FIELD_EVENT_TIME = "eventTime";
+	private static final byte[] KEY_TOTAL = JsonCodecSupport.encodeKey(FIELD_TOTAL);
+	private static final byte[] KEY_MESSAGE = JsonCodecSupport.encodeKey(FIELD_MESSAGE);
+	private static final byte[] KEY_PURCHASES = JsonCodecSupport.encodeKey(FIELD_PURCHASES);
+	private static final byte[] KEY_EVENT_TIME = JsonCodecSupport.encodeKey(FIELD_EVENT_TIME);
+
+	private PurchaseMessageJsonCodec() {
+	}
+
+	/**
+	 * Decodes a JSON document into msg. Fields not in the set are skipped without being decoded.
+	 */
+	public static void decode(CharSequence json, EnumSet<PurchaseField> fields, PurchaseMessage msg) throws JSONException {
+		boolean bWantTotal = fields.contains(PurchaseField.TOTAL);
+		boolean bWantMessage = fields.contains(PurchaseField.MESSAGE);
+		boolean bWantPurchases = fields.contains(PurchaseField.PURCHASES);
+		boolean bWantEventTime = fields.contains(PurchaseField.EVENT_TIME);
+		decode(json, 0, msg, bWantTotal, bWantMessage, bWantPurchases, bWantEventTime);
+	}
+
+	private static int decode(CharSequence json, int pos, PurchaseMessage msg, boolean bWantTotal, boolean bWantMessage, boolean bWantPurchases, boolean bWantEventTime) throws JSONException {
+		pos = JsonCodecSupport.beginObject(json, pos);
+		while (JsonCodecSupport.peek(json, pos) != '}') {
+			int keyStart = pos;
+			int keyEnd = JsonCodecSupport.skipString(json, pos);
+			pos = JsonCodecSupport.valueStart(json, keyEnd);
+			int valueEnd = JsonCodecSupport.skipValue(json, pos);
+			switch (keyEnd - keyStart - 2) {
+			case 5:
+				if (bWantTotal && JsonCodecSupport.keyEquals(json, keyStart, keyEnd, FIELD_TOTAL)) {
+					msg.setTotal(JsonCodecSupport.parseDouble(json, pos, valueEnd));
+				}
+				break;
+			case 7:
+				if (bWantMessage && JsonCodecSupport.keyEquals(json, keyStart, keyEnd, FIELD_MESSAGE)) {
+					msg.setMessage(JsonCodecSupport.parseString(json, pos, valueEnd));
+				}
+				break;
+			case 9:
+				if (bWantPurchases && JsonCodecSupport.keyEquals(json, keyStart, keyEnd, FIELD_PURCHASES)) {
+					msg.setPendingPurchases(json, pos, valueEnd);
+				}
+				else if (bWantEventTime && JsonCodecSupport.keyEquals(json, keyStart, keyEnd, FIELD_EVENT_TIME)) {
+					msg.setEventTime(JsonCodecSupport.parseLong(json, pos, valueEnd));
+				}
+				break;
+			}
+			pos = JsonCodecSupport.nextMember(json, valueEnd);
+		}
+		return pos + 1;
+	}
+
+	/**
+	 * Encodes the fields in the set as a JSON document, replacing the contents of out.
+	 */
+	public static void encode(PurchaseMessage msg, EnumSet<PurchaseField> fields, OutboundBuffer out) {
+		out.reset();
+		out.writeByte('{');
+		boolean bFirst = true;
+		if (fields.contains(PurchaseField.TOTAL)) {
+			JsonCodecSupport.writeKey(out, KEY_TOTAL, bFirst);
+			JsonCodecSupport.writeNumber(out, msg.getTotal());
+			bFirst = false;
+		}
+		if (fields.contains(PurchaseField.MESSAGE)) {
+			JsonCodecSupport.writeKey(out, KEY_MESSAGE, bFirst);
+			JsonCodecSupport.writeString(out, msg.getMessage());
+			bFirst = false;
+		}
+		if (fields.contains(PurchaseField.PURCHASES)) {
+			JsonCodecSupport.writeKey(out, KEY_PURCHASES, bFirst);
+			ProductPurchaseJsonCodec.encodeList(msg.getPurchases(), out);
+			bFirst = false;
+		}
+		if (fields.contains(PurchaseField.EVENT_TIME)) {
+			JsonCodecSupport.writeKey(out, KEY_EVENT_TIME, bFirst);
+			JsonCodecSupport.writeNumber(out, msg.getEventTime());
+			bFirst = false;
+		}
+		out.writeByte('}');
+	}
+}
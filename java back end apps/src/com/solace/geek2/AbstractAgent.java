@@ -21,31 +21,26 @@
 package com.solace.geek2;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
 import org.apache.log4j.Logger;
 
-import com.solacesystems.jcsmp.BytesMessage;
-import com.solacesystems.jcsmp.BytesXMLMessage;
-import com.solacesystems.jcsmp.ConsumerFlowProperties;
-import com.solacesystems.jcsmp.Destination;
-import com.solacesystems.jcsmp.EndpointProperties;
-import com.solacesystems.jcsmp.FlowReceiver;
 import com.solacesystems.jcsmp.JCSMPException;
 import com.solacesystems.jcsmp.JCSMPFactory;
-import com.solacesystems.jcsmp.JCSMPProperties;
-import com.solacesystems.jcsmp.JCSMPSession;
-import com.solacesystems.jcsmp.JCSMPStreamingPublishEventHandler;
-import com.solacesystems.jcsmp.Queue;
-import com.solacesystems.jcsmp.TextMessage;
 import com.solacesystems.jcsmp.Topic;
-import com.solacesystems.jcsmp.XMLMessageConsumer;
-import com.solacesystems.jcsmp.XMLMessageListener;
-import com.solacesystems.jcsmp.XMLMessageProducer;
 
 /**
  * This abstract class is the base class for the family of agents that receives purchase messages. It
@@ -57,17 +52,115 @@ import com.solacesystems.jcsmp.XMLMessageProducer;
  * @author Mike O'Brien
  *
  */
-public abstract class AbstractAgent implements XMLMessageListener {
+public abstract class AbstractAgent implements Transport.Listener {
 	private static final Logger logger = Logger.getLogger(AbstractAgent.class.getName());
-	protected BlockingQueue<BytesXMLMessage> queue = new ArrayBlockingQueue<>(100);  
-	protected XMLMessageProducer thisProducer = null;
+	// the purchases handed to onPurchase(): purchase/<location>/<client>, possibly followed by more levels
+	public static final String PURCHASE_TOPICS = "purchase/*/>";
+	private static final int PURCHASE_PREFIX_LENGTH = "purchase/".length();
+	// transacted processing of a queue, see processTransactedBatches()
+	public static final boolean TRANSACTED = Boolean.parseBoolean(System.getProperty("geek2.transacted"));
+	public static final int TRANSACTION_SIZE = Math.max(1, Integer.getInteger("geek2.transacted.batchSize", 50));
+	public static final int COMMIT_MILLIS = Math.max(1, Integer.getInteger("geek2.transacted.commitMillis", 100));
+	// how many deferred (over budget) messages wait for a quiet moment, see setLatencyBudget()
+	public static final int STALE_LANE_DEPTH = Integer.getInteger("geek2.shed.laneDepth", 10000);
+	// how far ahead of our clock a producer's event time may be before it is taken for a skewed clock
+	public static final long MAX_SKEW_MILLIS = Long.getLong("geek2.eventTime.maxSkewMillis", 60000);
+	
+	/**
+	 * Handles the messages on the topics it was added for, see addHandler().
+	 */
+	public interface TopicHandler {
+		/**
+		 * @param topic the topic the message was published to
+		 * @param msg the message, which is acknowledged once all its handlers have returned
+		 * @throws JCSMPException
+		 */
+		void onMessage(String topic, TransportMessage msg) throws JCSMPException;
+	}
+	
+	/**
+	 * Handles text messages, such as the notifications the agents send, see addTextHandler().
+	 */
+	public interface TextHandler {
+		/**
+		 * @param topic the topic the message was published to
+		 * @param text the text of the message, or of a binary payload decoded as UTF-8. Only valid for the call.
+		 * @throws JCSMPException
+		 */
+		void onText(String topic, CharSequence text) throws JCSMPException;
+	}
+	
+	// outbound messages are rendered on the processing thread and sent in batches by the publisher's own thread
+	private OutboundPublisher publisher = null;
+	// topics for sendTextMessage(), which gets them as strings
+	private final LruCache<String, Topic> textTopics = new LruCache<String, Topic>(TopicCache.MAX_ENTRIES);
+	protected final AgentMetrics metrics = new AgentMetrics();
+	// filled by the transport's thread, drained by the processing thread, in lanes by priority (see IngestLanes)
+	protected final IngestLanes queue = new IngestLanes(metrics);
+	// per-topic coalescing and rate limiting of notifications, null if switched off
+	private final NotificationThrottle throttle = NotificationThrottle.ENABLED ? new NotificationThrottle(metrics) : null;
+	// compression state for inbound payloads at or above the threshold, the publisher has its own for outbound
+	private final PayloadCompression inboundCompression = new PayloadCompression();
+	private final AtomicLong processed = metrics.counter("ingest.processed");
+	private final AtomicLong compressedIn = metrics.counter("compression.in.messages");
+	private final AtomicLong compressedInBytes = metrics.counter("compression.in.compressedBytes");
+	private final AtomicLong compressedInRawBytes = metrics.counter("compression.in.rawBytes");
+	private final AtomicLong compressedInNanos = metrics.counter("compression.in.cpuNanos");
+	// the queue's transaction in transacted mode, the ids of the messages received in it, and the replies 
+	// rendered in it that are sent on commit. The replies hold at most half the publisher's slots, so 
+	// claiming one never waits for a commit on this thread
+	private Transport.Transaction transaction = null;
+	private final long[] transactionIds = new long[TRANSACTION_SIZE];
+	private int transactionMessages = 0;
+	private final OutboundPublisher.Slot[] transactionSlots = new OutboundPublisher.Slot[OutboundPublisher.SLOTS / 2];
+	private int transactionSlotCount = 0;
+	// the ids of messages handled in transactions that were rolled back, oldest first, which are not handled 
+	// again when they are redelivered
+	private final LinkedHashSet<Long> appliedIds = new LinkedHashSet<Long>();
+	private final AtomicLong redelivered = metrics.counter("transaction.redelivered");
+	private final AtomicLong lostReplies = metrics.counter("transaction.lostReplies");
+	private final AtomicLong commits = metrics.counter("transaction.commits");
+	private final AtomicLong committedMessages = metrics.counter("transaction.messages");
+	private final AtomicLong committedReplies = metrics.counter("transaction.replies");
+	private final AtomicLong rollbacks = metrics.counter("transaction.rollbacks");
+	private final LatencyHistogram commitLatency = metrics.histogram("transaction.commitLatency");
 	protected Model model = new Model();
+	// set in run(), as an AgentHost only knows its agents' fields once its constructor has run
+	private EnumSet<PurchaseField> fieldsOfInterest;
+	// the host this agent runs in, if any. A hosted agent is never run() itself: it gets its purchases from
+	// the host and sends through the host's publisher and throttle
+	AgentHost host = null;
+	// every handler by topic pattern, purchases included, and the extra (non-purchase) registrations 
+	// that the subscriptions are made for and that an AgentHost takes over from its agents
+	private final TopicRouter<TopicHandler> router = new TopicRouter<TopicHandler>();
+	final ArrayList<String> handlerPatterns = new ArrayList<String>();
+	final ArrayList<TopicHandler> handlers = new ArrayList<TopicHandler>();
+	private final ArrayList<TopicHandler> routed = new ArrayList<TopicHandler>();
+	private final AtomicLong unrouted = metrics.counter("ingest.unrouted");
+	// latency budgets by topic pattern, and the over budget messages deferred until nothing fresh is waiting
+	private final TopicRouter<LatencyBudget> budgets = new TopicRouter<LatencyBudget>();
+	final ArrayList<String> budgetPatterns = new ArrayList<String>();
+	final ArrayList<LatencyBudget> budgetList = new ArrayList<LatencyBudget>();
+	private final ArrayList<LatencyBudget> matchedBudgets = new ArrayList<LatencyBudget>();
+	private final ArrayDeque<TransportMessage> staleLane = new ArrayDeque<TransportMessage>();
+	// set while a SUMMARIZE budget hands a purchase to onStalePurchase()
+	private boolean bSummarizing = false;
+	// puts direct purchases back into event-time order, null if not used
+	private ReorderBuffer reorder = null;
+	private final AtomicLong skewedEventTimes = metrics.counter("eventTime.skewed");
+	// this instance's share of the client partitions, null unless partitioned (see -Dgeek2.partitions)
+	private volatile PartitionCoordinator partitions = null;
 	
 	/**
 	 * Simple constructor
 	 */
 	public AbstractAgent() {
 		displayAsciiArtSignatureInLogs();
+		router.add(PURCHASE_TOPICS, new TopicHandler() {
+			public void onMessage(String topic, TransportMessage msg) throws JCSMPException {
+				processPurchase(topic, msg);
+			}
+		});
 	}
 	
 	/**
@@ -114,90 +207,192 @@ public abstract class AbstractAgent implements XMLMessageListener {
 	 * @throws InterruptedException
 	 */
 	public void run(String... args) throws JCSMPException, InterruptedException {
-        XMLMessageConsumer directConsumer = null;
-        FlowReceiver guaranteedFlow = null;
-        boolean bUsingGuaranteedMessaging = false;
-
 		System.out.println("Geeks2 Agent initializing...");
-        // obtain properties from trhe command line
-        final JCSMPProperties properties = new JCSMPProperties();
-        properties.setProperty(JCSMPProperties.HOST, args[0]);  // msg-backbone-ip:port
-        properties.setProperty(JCSMPProperties.VPN_NAME, args[1]); // message-vpn
-        // client-username (assumes no password)
-        properties.setProperty(JCSMPProperties.USERNAME, args[2]);
-        properties.setProperty(JCSMPProperties.PASSWORD, args[3]);  // client-username (assumes no password)
-        
-        final JCSMPSession session = JCSMPFactory.onlyInstance().createSession(properties);
-
+        // obtain properties from trhe command line: msg-backbone-ip:port, message-vpn, client-username, password
+        Transport transport = Transport.open(args[0], args[1], args[2], args[3], metrics);
         // the topic to subscribe to or queue to pull from...
-        String destination = args[4];
+        run(transport, args[4]);
+	}
+	
+	/**
+	 * Runs the agent on an already open transport, e.g. a LoopbackTransport shared with other agents in the 
+	 * same JVM. Closes the transport when done. Like run(String...), this only returns when the program is 
+	 * terminated.
+	 * 
+	 * @param transport
+	 * @param destination a topic (anything with a '/') to subscribe to, or else a queue to bind to
+	 * @throws JCSMPException
+	 * @throws InterruptedException
+	 */
+	public void run(Transport transport, String destination) throws JCSMPException, InterruptedException {
+		// the event time is always wanted, it is what the purchase's timestamp is
+		fieldsOfInterest = EnumSet.copyOf(getFieldsOfInterest());
+		fieldsOfInterest.add(PurchaseField.EVENT_TIME);
+		model.setStoring(usesModel());
         if (destination.contains("/")) {
         	// this is a topic specification. We will use direct messaging
         	logger.info("This agent will use direct messaging on topic " + destination);
-            final Topic topic = JCSMPFactory.onlyInstance().createTopic(destination);
-            directConsumer = session.getMessageConsumer(this);
-            // make the subscription
-            session.addSubscription(topic);
-            directConsumer.start();
+        	if (HashRing.PARTITIONS > 0) {
+        		// the purchases of the partitions this instance owns, rather than all of them
+        		String group = System.getProperty("geek2.partition.group", getClass().getSimpleName());
+        		logger.info("Clients are split into " + HashRing.PARTITIONS + " partitions, shared out among the instances in group " 
+        				+ group + "; only those of this instance's partitions are subscribed to");
+        		partitions = new PartitionCoordinator(group, transport, this, new PartitionOwner(), metrics);
+        		TopicHandler control = new TopicHandler() {
+        			public void onMessage(String topic, TransportMessage msg) throws JCSMPException {
+        				ByteBuffer payload = inflate(topic, msg, msg.getPayload());
+        				byte[] bytes;
+        				if (payload != null) {
+        					bytes = new byte[payload.remaining()];
+        					payload.get(bytes);
+        				}
+        				else {
+        					CharSequence text = msg.getText();
+        					bytes = (text != null ? text.toString() : "").getBytes(StandardCharsets.UTF_8);
+        				}
+        				partitions.onControl(topic, bytes);
+        			}
+        		};
+        		for (String pattern : partitions.getControlTopics()) {
+        			router.add(pattern, control);
+        		}
+        	}
+        	else {
+        		transport.subscribe(destination, this);
+        	}
+        	if (SpillQueue.ENABLED) {
+        		// direct messages have nothing to acknowledge, so bursts can go to disk
+        		queue.enableSpill(getClass().getSimpleName());
+        	}
+        	if (ReorderBuffer.REORDER_MILLIS > 0) {
+        		// and nothing to acknowledge before the purchase is handled, so purchases can be held back
+        		logger.info("Purchases are put in event-time order, allowing for up to " + ReorderBuffer.REORDER_MILLIS 
+        				+ " ms of disorder per store");
+        		reorder = new ReorderBuffer(metrics);
+        	}
+        	// the topics of any other handlers. These should not overlap the destination, or the messages
+        	// on both would arrive twice
+        	for (String pattern : handlerPatterns) {
+        		if (!pattern.equals(destination)) {
+        			logger.info("This agent will also subscribe to " + pattern);
+        			transport.subscribe(pattern, this);
+        		}
+        	}
         }
         else {
-        	bUsingGuaranteedMessaging = true;
         	logger.info("This agent will use guaranteed messaging from queue " + destination);
-            final Queue queue = JCSMPFactory.onlyInstance().createQueue(destination);
-
-//            final ConsumerFlowProperties flow_prop = new ConsumerFlowProperties();
-//            flow_prop.setEndpoint(queue);
-//            // set to "auto acknowledge" where the API will ack back to Solace at the
-//            // end of the message received callback
-//            flow_prop.setAckMode(JCSMPProperties.SUPPORTED_MESSAGE_ACK_AUTO);
-//            EndpointProperties endpoint_props = new EndpointProperties();
-//            endpoint_props.setAccessType(EndpointProperties.ACCESSTYPE_EXCLUSIVE);
-//            // bind to the queue, passing null as message listener for no async callback
-            guaranteedFlow = session.createFlow(queue, null, this);
-            guaranteedFlow.start();
+        	if (HashRing.PARTITIONS > 0) {
+        		logger.warn("Partitioning is only done on topic destinations, the instances on queue " + destination 
+        				+ " share its messages as the broker hands them out");
+        	}
+        	if (TRANSACTED) {
+        		logger.info("Messages and replies will be committed in transactions of up to " + TRANSACTION_SIZE 
+        				+ " messages or " + COMMIT_MILLIS + " ms");
+        		transaction = transport.bindTransactedQueue(destination);
+        	}
+        	else {
+        		transport.bindQueue(destination, this);
+        	}
         }
 
-//        /** Anonymous inner-class for MessageListener async threaded message callback */
-//        final XMLMessageConsumer cons = session.getMessageConsumer(new XMLMessageListener() {
-//            public void onReceive(BytesXMLMessage msg) {
-//                if (msg instanceof TextMessage) {
-//                    logger.info("Message received on " + msg.getDestination().getName());
-//                	// put the message into the RAM queue and return control on this thread back to the Solace API layer
-//                	queue.offer((TextMessage) msg);                	
-//                } else {
-//                    logger.warn("Unknown message received.");
-//                }
-//            }
-//            public void onException(JCSMPException e) {
-//                logger.warn("Consumer received exception: %s%n",e);
-//            }
-//        });
         String msg = "This agent is now connected to the Solace broker, awaiting purchase messages.";
         System.out.println(msg);
         logger.info(msg);
 
-        //create a producer for sending out messages
-        thisProducer = session.getMessageProducer(new JCSMPStreamingPublishEventHandler() {
-            public void responseReceived(String messageID) {
-            	logger.info("Producer received response for msg: " + messageID);
-            }
-            public void handleError(String messageID, JCSMPException e, long timestamp) {
-            	logger.warn("Producer received error");
-            }
-        });
+        // the publisher owns the transport's producer, so it can track the broker's acks
+        publisher = new OutboundPublisher(transport, metrics);
+        if (partitions != null) {
+        	partitions.start();
+        }
+
+        metrics.startReporting(Long.getLong("geek2.metrics.intervalSecs", 60));
 
         // doesn't return from this... 
-        processQueuedMessagesOnMainThread();
-        
-        // Close consumer
-        if (bUsingGuaranteedMessaging == false) {
-        	directConsumer.close();
+        if (transaction != null) {
+        	processTransactedBatches();
         }
         else {
-        	guaranteedFlow.close();
+        	processQueuedMessagesOnMainThread();
         }
+        
+        // send anything still queued before the session goes away
+        publisher.close();
+        queue.close();
+
         System.out.println("Exiting.");
-        session.closeSession();		
+        transport.close();
+	}
+	
+	/**
+	 * Declares how old a type of message may be when the agent gets to it, so that after a backlog the agent
+	 * catches up with fresh traffic in seconds rather than working through stale messages first. Subclasses 
+	 * call this from their constructor. A message that is older than the budget is, depending on action:
+	 * 
+	 * SKIP - dropped, acknowledged without being handled;
+	 * DEFER - put in a stale lane (of up to geek2.shed.laneDepth messages, default 10000, beyond which the 
+	 * oldest are dropped) and handled only when no message is waiting in the agent's queue. In transacted 
+	 * mode deferred messages are handled straight away, as they cannot be held past their commit;
+	 * SUMMARIZE - for a purchase, decoded and passed to onStalePurchase() rather than 
+	 * onPurchase(), so the agent's state stays complete but nothing stale is sent. Other messages are dropped.
+	 * 
+	 * When several budgets match a topic, the one with the largest budget applies, and of equal ones the one
+	 * with the most lenient action.
+	 * 
+	 * @param name the message type, used in the metrics and in -Dgeek2.budget.[name]Millis, which overrides
+	 * budgetMillis
+	 * @param topicPattern a topic, possibly with '*' and '>' wildcards, e.g. PURCHASE_TOPICS
+	 * @param budgetMillis
+	 * @param action
+	 */
+	protected void setLatencyBudget(String name, String topicPattern, long budgetMillis, LatencyBudget.OverBudget action) {
+		addLatencyBudget(topicPattern, new LatencyBudget(name, budgetMillis, action, metrics));
+	}
+	
+	void addLatencyBudget(String topicPattern, LatencyBudget budget) {
+		logger.info("Latency budget for " + topicPattern + ": " + budget);
+		budgets.add(topicPattern, budget);
+		budgetPatterns.add(topicPattern);
+		budgetList.add(budget);
+	}
+	
+	/**
+	 * Registers a handler for messages other than purchases, e.g. the notifications of other agents. Subclasses
+	 * call this from their constructor. On a topic destination the agent also subscribes to the pattern; on a
+	 * queue the messages only arrive if the queue is subscribed to them on the broker.
+	 * 
+	 * Every incoming message is routed once, to all the handlers whose pattern matches it, and then 
+	 * acknowledged. Purchases go to onPurchase() through a handler for PURCHASE_TOPICS.
+	 * 
+	 * @param topicPattern a topic, possibly with '*' and '>' wildcards
+	 * @param handler
+	 */
+	protected void addHandler(String topicPattern, TopicHandler handler) {
+		router.add(topicPattern, handler);
+		handlerPatterns.add(topicPattern);
+		handlers.add(handler);
+	}
+	
+	/**
+	 * Registers a handler for text messages, like addHandler(). Compressed payloads are inflated and binary 
+	 * ones decoded as UTF-8 before the handler is called.
+	 * 
+	 * @param topicPattern a topic, possibly with '*' and '>' wildcards
+	 * @param handler
+	 */
+	protected void addTextHandler(String topicPattern, final TextHandler handler) {
+		addHandler(topicPattern, new TopicHandler() {
+			public void onMessage(String topic, TransportMessage msg) throws JCSMPException {
+				CharSequence text = msg.getText();
+				if (text == null) {
+					ByteBuffer payload = inflate(topic, msg, msg.getPayload());
+					if (payload == null) {
+						return;
+					}
+					text = new Utf8Payload(payload);
+				}
+				handler.onText(topic, text);
+			}
+		});
 	}
 	
 	/**
@@ -216,88 +411,644 @@ public abstract class AbstractAgent implements XMLMessageListener {
 	}
 	
 	/**
-	 * Utility method to send a text message.
+	 * Utility method to send a text message. The text is sent UTF-8 encoded as the payload of a BytesMessage,
+	 * through the same publisher as the notifications.
 	 * 
 	 * @param text
 	 * @param topic
 	 * @throws JCSMPException
 	 */
 	protected void sendTextMessage(String text, String topic) throws JCSMPException {
-		TextMessage replyMsg = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
-		replyMsg.setText(text);
-		Topic replyTopic = JCSMPFactory.onlyInstance().createTopic(topic);
-		thisProducer.send(replyMsg,replyTopic);    
+		if (host != null) {
+			host.sendTextMessage(text, topic);
+			return;
+		}
+		OutboundPublisher.Slot slot = claimSlot();
+		if (slot == null) {
+			return;
+		}
+		Topic replyTopic = textTopics.get(topic);
+		if (replyTopic == null) {
+			replyTopic = JCSMPFactory.onlyInstance().createTopic(topic);
+			textTopics.put(topic, replyTopic);
+		}
+		slot.buffer.writeUtf8(text);
+		slot.topic = replyTopic;
+		publish(slot);
+	}
+	
+	/**
+	 * Utility method for sub-class' (specific agents) to send a notification built from a precompiled template. 
+	 * The notification first goes through the throttle, which may hold it back, merge it with later ones for the
+	 * same customer or suppress it as a repeat (see NotificationThrottle).
+	 * 
+	 * @param template
+	 * @param pmsg the purchase that triggered the notification, supplies the location and client id
+	 * @param amount value for the template's {amount} slot, if any
+	 * @param text value for the template's {text} slot, if any
+	 * @throws JCSMPException
+	 */
+	protected void sendNotification(NotificationTemplate template, PurchaseMessage pmsg, double amount, String text) throws JCSMPException {
+		if (host != null) {
+			host.sendNotification(template, pmsg, amount, text);
+			return;
+		}
+		Topic topic = template.getTopic(pmsg.getLocation(), pmsg.getClientID());
+		if (throttle == null 
+				|| throttle.offer(template, topic, pmsg.getLocation(), pmsg.getClientID(), amount, text, System.currentTimeMillis())) {
+			publishNotification(template, topic, pmsg.getLocation(), pmsg.getClientID(), amount, text);
+		}
+	}
+	
+	/**
+	 * Sends the notifications the throttle held back that are now due.
+	 */
+	private void sendDueNotifications() {
+		NotificationThrottle.Notification due;
+		while ((due = throttle.pollDue(System.currentTimeMillis())) != null) {
+			publishNotification(due.template, due.topic, due.location, due.clientId, due.amount, due.text);
+		}
+	}
+	
+	/**
+	 * Renders a notification into one of the publisher's re-used buffers and queues it, to be published 
+	 * asynchronously, persistent if the template is guaranteed. Nothing is concatenated or created per send.
+	 */
+	private void publishNotification(NotificationTemplate template, Topic topic, String location, String clientId, double amount, String text) {
+		OutboundPublisher.Slot slot = claimSlot();
+		if (slot == null) {
+			return;
+		}
+		template.render(slot.buffer, location, clientId, amount, text);
+		slot.topic = topic;
+		slot.guaranteed = template.isGuaranteed();
+		publish(slot);
+	}
+	
+	/**
+	 * Hands a rendered slot to the publisher, or in transacted mode keeps it to be sent with the commit.
+	 */
+	private void publish(OutboundPublisher.Slot slot) {
+		if (transaction != null) {
+			if (transactionSlotCount == transactionSlots.length) {
+				// only a commit frees them
+				commitTransaction();
+				if (transactionSlotCount == transactionSlots.length) {
+					// it failed, and kept them for the redelivered messages
+					logger.warn("Dropping " + transactionSlotCount + " replies kept from rolled back transactions");
+					lostReplies.addAndGet(transactionSlotCount);
+					releaseTransactionSlots();
+				}
+			}
+			transactionSlots[transactionSlotCount++] = slot;
+		}
+		else {
+			publisher.publish(slot);
+		}
+	}
+	
+	/**
+	 * Waits for a free outbound slot. If the wait is interrupted the message is dropped and the interrupt
+	 * is left set, so the processing loop stops at its next take().
+	 * 
+	 * @return the slot, or null if interrupted
+	 */
+	private OutboundPublisher.Slot claimSlot() {
+		try {
+			return publisher.claim();
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted waiting for an outbound slot, message dropped");
+			Thread.currentThread().interrupt();
+			return null;
+		}
 	}
 	
 	/**
 	 * A loop that executes on the main program thread. It pulls any message that have been put into the 
-	 * RAM queue by the Solace thread (callback above), de-serializes the JSON into a PurchaseMessage
-	 * object, stores it in the RAM database, and involves trhe sub-class' onPurchase() method to do
-	 * something useful.
+	 * RAM queue by the Solace thread (callback above) and hands it to the handlers registered for its topic,
+	 * which for purchases de-serializes the payload into a PurchaseMessage object, stores it in the RAM 
+	 * database, and involves trhe sub-class' onPurchase() method to do something useful.
 	 * 
 	 * @throws InterruptedException
 	 * @throws JCSMPException
 	 */
 	protected void processQueuedMessagesOnMainThread() throws InterruptedException, JCSMPException {
 		boolean bFinished = false;
+		TransportMessage msg;
     	while (!bFinished) {
-    		// get the next message off of the ram queue, waiti forever until something arrives
-    		BytesXMLMessage msg = queue.take();
-        	Destination dest = msg.getDestination();
-        	String topicRecieved = dest.getName();
-        	
-        	// topic structure is: [message type]/location/customerId. We aren't interested in the type, because 
-        	// this agent will have subscribed only to the "purchase" message type. We need the location and 
-        	// clientId. 
-        	String[] topicParts = topicRecieved.split("/");
-        	String location = topicParts[1];
-        	String clientId = topicParts[2];
-        	
-    		String strJsonData = "";
-    		
-            if (msg instanceof TextMessage) {
-                
-            	// put the message into the RAM queue and return control on this thread back to the Solace API layer
-                strJsonData = ((TextMessage) msg).getText();                	
-            } else if (msg instanceof BytesMessage) {
-            	BytesMessage bytesM = (BytesMessage) msg;
-            	logger.info("processing binary message");
-            	byte[] binaryPayload = bytesM.getData();
-            	//byte[] binaryPayload = bytesM.getBytes();
-            	logger.info("recieved " + binaryPayload.length + " bytes");
-            	strJsonData = new String(binaryPayload); //, StandardCharsets.UTF_8);
-            }
-
-        	try {
-        		PurchaseMessage pmsg = model.loadFromJson(strJsonData, clientId, location);
-        		pmsg.timestamp = System.currentTimeMillis();
-        		
-        		// call the child subclass
-        		onPurchase(pmsg);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				logger.error("Failed to process client message", e);
-			}    
+    		if (partitions != null) {
+    			TransportMessage control;
+    			while ((control = partitions.pollControl()) != null) {
+    				dispatch(control);
+    			}
+    			long now = System.currentTimeMillis();
+    			if (partitions.isDue(now)) {
+    				partitions.tick(now);
+    				if (partitions.isFinished()) {
+    					logger.info("This instance has handed off all its partitions, stopping");
+    					// what is still queued is for other instances now; taking it frees anyone waiting for room
+    					while ((msg = queue.poll()) != null) {
+    						msg.ack();
+    					}
+    					break;
+    				}
+    			}
+    		}
+    		// get the next message off of the ram queue. If there is none, handle a deferred one, or else wait 
+    		// forever until something arrives unless a held back notification comes due first
+    		msg = queue.poll();
+    		if (msg == null) {
+    			if (!staleLane.isEmpty()) {
+    				// nothing fresh waiting, time for a deferred one
+    				if (throttle != null && throttle.hasPending()) {
+    					sendDueNotifications();
+    				}
+    				msg = staleLane.poll();
+    				dispatch(msg);
+    				msg.ack();
+    				processed.incrementAndGet();
+    				continue;
+    			}
+    			long waitMillis = -1;
+    			if (throttle != null && throttle.hasPending()) {
+    				waitMillis = throttle.millisUntilDue(System.currentTimeMillis());
+    			}
+    			if (reorder != null && reorder.hasPending()) {
+    				long reorderMillis = reorder.millisUntilDue();
+    				waitMillis = waitMillis < 0 ? reorderMillis : Math.min(waitMillis, reorderMillis);
+    			}
+    			if (partitions != null) {
+    				long partitionMillis = partitions.millisUntilDue(System.currentTimeMillis());
+    				waitMillis = waitMillis < 0 ? partitionMillis : Math.min(waitMillis, partitionMillis);
+    			}
+    			if (waitMillis >= 0) {
+    				msg = queue.poll(waitMillis, TimeUnit.MILLISECONDS);
+    				if (throttle != null) {
+    					sendDueNotifications();
+    				}
+    				if (reorder != null) {
+    					// a store that has gone quiet
+    					deliverReordered();
+    				}
+    				if (msg == null) {
+    					continue;
+    				}
+    			}
+    			else {
+    				msg = queue.take();
+    			}
+    		}
+        	if (handle(msg)) {
+        		// processed (or unprocessable), so a queued message can be deleted from the queue
+        		msg.ack();
+        		processed.incrementAndGet();
+        	}
         }	
 	}
+	
+	/**
+	 * The processing loop in transacted mode (-Dgeek2.transacted=true with a queue destination). It receives
+	 * messages from the queue's transaction and handles them like processQueuedMessagesOnMainThread(), but the
+	 * replies are only rendered, and go out together with the commit. A transaction is committed once it holds
+	 * geek2.transacted.batchSize messages (default 50), or geek2.transacted.commitMillis (default 100) after its
+	 * first message or reply, so one commit round trip covers a whole batch of purchases and their replies. 
+	 * It is also committed when it holds half the publisher's slots in replies, even in the middle of 
+	 * handling a message, since only the commit frees them. 
+	 * 
+	 * If the commit fails, the broker redelivers the messages; but what they did to the agent's state (the 
+	 * Model, the fraud and loyalty state, the throttle) is not undone. So their ids are kept, and a 
+	 * redelivered message with one of them is committed without being handled again, while the replies 
+	 * rendered for it the first time are kept to go out with the next commit. Up to 16 batches' worth of ids 
+	 * are kept, for messages that are not redelivered because the commit went through after all (its result 
+	 * unknown), whose replies then go out twice. A message without an id is handled again.
+	 * 
+	 * @throws JCSMPException
+	 */
+	protected void processTransactedBatches() throws JCSMPException {
+		long commitDeadline = 0;
+		boolean bFinished = false;
+		while (!bFinished) {
+			long now = System.currentTimeMillis();
+			long timeout = commitDeadline == 0 ? COMMIT_MILLIS : commitDeadline - now;
+			if (throttle != null && throttle.hasPending()) {
+				timeout = Math.min(timeout, throttle.millisUntilDue(now));
+			}
+			TransportMessage msg = transaction.receive((int) Math.max(1, timeout));
+			if (throttle != null && throttle.hasPending()) {
+				sendDueNotifications();
+			}
+			if (msg != null) {
+				// counted first, in case a commit for its replies takes it in
+				long id = msg.getMessageId();
+				transactionIds[transactionMessages++] = id;
+				if (id != 0 && appliedIds.remove(id)) {
+					redelivered.incrementAndGet();
+				}
+				else {
+					handle(msg);
+				}
+				processed.incrementAndGet();
+			}
+			now = System.currentTimeMillis();
+			if (commitDeadline == 0 && (transactionMessages > 0 || transactionSlotCount > 0)) {
+				commitDeadline = now + COMMIT_MILLIS;
+			}
+			if (transactionMessages >= TRANSACTION_SIZE || (commitDeadline != 0 && now >= commitDeadline)) {
+				commitTransaction();
+				commitDeadline = 0;
+			}
+			bFinished = Thread.currentThread().isInterrupted();
+		}
+		commitTransaction();
+	}
+	
+	/**
+	 * Sends the replies rendered in the transaction and commits it, and gives the reply slots back to the 
+	 * publisher's pool. If that fails, rolls it back, keeping the replies and the ids of its messages.
+	 */
+	private void commitTransaction() {
+		if (transactionMessages == 0 && transactionSlotCount == 0) {
+			return;
+		}
+		int messages = transactionMessages;
+		transactionMessages = 0;
+		long start = System.nanoTime();
+		try {
+			int sent = 0;
+			while (sent < transactionSlotCount) {
+				sent += transaction.send(transactionSlots, sent, Math.min(OutboundPublisher.BATCH_SIZE, transactionSlotCount - sent));
+			}
+			transaction.commit();
+			commitLatency.record(System.nanoTime() - start);
+			commits.incrementAndGet();
+			committedMessages.addAndGet(messages);
+			committedReplies.addAndGet(transactionSlotCount);
+			releaseTransactionSlots();
+		} catch (JCSMPException e) {
+			rollbacks.incrementAndGet();
+			logger.error("Failed to commit " + messages + " messages and " + transactionSlotCount + " replies, rolling back", e);
+			try {
+				transaction.rollback();
+			} catch (JCSMPException e2) {
+				logger.warn("Rollback failed", e2);
+			}
+			for (int i = 0; i < messages; i++) {
+				if (transactionIds[i] != 0) {
+					appliedIds.add(transactionIds[i]);
+				}
+			}
+			Iterator<Long> oldest = appliedIds.iterator();
+			for (int excess = appliedIds.size() - 16 * TRANSACTION_SIZE; excess > 0; excess--) {
+				oldest.next();
+				oldest.remove();
+			}
+		}
+	}
+	
+	private void releaseTransactionSlots() {
+		for (int i = 0; i < transactionSlotCount; i++) {
+			publisher.release(transactionSlots[i]);
+			transactionSlots[i] = null;
+		}
+		transactionSlotCount = 0;
+	}
+	
+	/**
+	 * Applies the message's latency budget, if it has one and is over it, or else hands it to its handlers.
+	 * 
+	 * @return false if the message was deferred, true if it is done with and can be acknowledged
+	 */
+	private boolean handle(TransportMessage msg) throws JCSMPException {
+		LatencyBudget budget = budgetFor(msg.getTopic());
+		if (budget == null || !budget.isOverBudget(msg, System.currentTimeMillis())) {
+			dispatch(msg);
+			return true;
+		}
+		switch (budget.action) {
+		case SKIP:
+			budget.skipped.incrementAndGet();
+			return true;
+		case DEFER:
+			if (transaction != null) {
+				dispatch(msg);
+				return true;
+			}
+			budget.deferred.incrementAndGet();
+			if (staleLane.size() >= STALE_LANE_DEPTH) {
+				TransportMessage oldest = staleLane.poll();
+				budgetFor(oldest.getTopic()).expired.incrementAndGet();
+				oldest.ack();
+				processed.incrementAndGet();
+			}
+			staleLane.add(msg);
+			return false;
+		default:
+			budget.summarized.incrementAndGet();
+			String topic = msg.getTopic();
+			if (TopicMatcher.matches(PURCHASE_TOPICS, topic)) {
+				bSummarizing = true;
+				try {
+					processPurchase(topic, msg);
+				} finally {
+					bSummarizing = false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * @return the most lenient budget for the topic, or null if it has none
+	 */
+	private LatencyBudget budgetFor(String topic) {
+		if (budgets.size() == 0 || budgets.route(topic, matchedBudgets) == 0) {
+			return null;
+		}
+		LatencyBudget budget = matchedBudgets.get(0);
+		for (int i = 1; i < matchedBudgets.size(); i++) {
+			LatencyBudget other = matchedBudgets.get(i);
+			if (other.budgetMillis > budget.budgetMillis 
+					|| (other.budgetMillis == budget.budgetMillis && other.action.compareTo(budget.action) > 0)) {
+				budget = other;
+			}
+		}
+		return budget;
+	}
+	
+	/**
+	 * Hands a message to the handlers registered for its topic.
+	 */
+	private void dispatch(TransportMessage msg) throws JCSMPException {
+    	String topicRecieved = msg.getTopic();
+    	if (router.route(topicRecieved, routed) == 0) {
+    		logger.warn("No handler for message on " + topicRecieved);
+    		unrouted.incrementAndGet();
+    	}
+    	for (int i = 0; i < routed.size(); i++) {
+    		routed.get(i).onMessage(topicRecieved, msg);
+    	}
+	}
+	
+	/**
+	 * Decodes a purchase and passes it to onPurchase().
+	 */
+	private void processPurchase(String topicRecieved, TransportMessage msg) throws JCSMPException {
+    	// topic structure is: [message type]/location/customerId. We aren't interested in the type, because 
+    	// only "purchase" messages are routed here. We need the location and clientId. 
+    	int locationEnd = topicRecieved.indexOf('/', PURCHASE_PREFIX_LENGTH);
+    	int clientEnd = TopicMatcher.levelEnd(topicRecieved, locationEnd + 1);
+    	String location = topicRecieved.substring(PURCHASE_PREFIX_LENGTH, locationEnd);
+    	String clientId = topicRecieved.substring(locationEnd + 1, clientEnd);
+    	if (partitions != null && !partitions.admit(topicRecieved, clientId, msg)) {
+    		// another instance's client, or held until the client's state arrives
+    		return;
+    	}
+    	
+		CharSequence jsonData = "";
+		ByteBuffer binaryData = null;
+		
+        CharSequence text = msg.getText();
+        if (text != null) {
+            jsonData = text;                	
+        } else {
+        	ByteBuffer binaryPayload = msg.getPayload();
+        	if (binaryPayload != null) {
+        		logger.debug("recieved " + binaryPayload.remaining() + " bytes");
+        		binaryPayload = inflate(topicRecieved, msg, binaryPayload);
+        		if (binaryPayload == null) {
+        			return;
+        		}
+        		if (BinaryCodecSupport.CONTENT_TYPE.equals(msg.getContentType())) {
+        			binaryData = binaryPayload;
+        		}
+        		else {
+        			jsonData = new Utf8Payload(binaryPayload);
+        		}
+        	}
+        }
+
+    	try {
+    		PurchaseMessage pmsg = binaryData != null 
+    				? model.loadFromBinary(binaryData, clientId, location, fieldsOfInterest)
+    				: model.loadFromJson(jsonData, clientId, location, fieldsOfInterest);
+    		// when it was made rather than when we got to it: as stamped by the producer, or else as sent, if 
+    		// the transport knows. A time from too far ahead is from a skewed clock (the web POS stamps it in 
+    		// the browser), and would move every event-time window and watermark on at once; it is replaced 
+    		// by the time sent, or by now
+    		long now = System.currentTimeMillis();
+    		long sent = msg.getSentMillis() <= now + MAX_SKEW_MILLIS ? msg.getSentMillis() : 0;
+    		long eventTime = pmsg.getEventTime();
+    		if (eventTime > now + MAX_SKEW_MILLIS) {
+    			skewedEventTimes.incrementAndGet();
+    			eventTime = 0;
+    		}
+    		pmsg.setTimestamp(eventTime != 0 ? eventTime : sent != 0 ? sent : now);
+    		// read-only from here on, so that an AgentHost can hand it to all of its agents
+    		pmsg.freeze();
+    		
+    		if (reorder != null) {
+    			reorder.offer(pmsg, bSummarizing);
+    			deliverReordered();
+    		}
+    		else {
+    			deliver(pmsg, bSummarizing);
+    		}
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			logger.error("Failed to process client message", e);
+		}    
+	}
+	
+	/**
+	 * Calls the child subclass.
+	 */
+	private void deliver(PurchaseMessage pmsg, boolean bStale) throws JCSMPException {
+		if (bStale) {
+			onStalePurchase(pmsg);
+		}
+		else {
+			onPurchase(pmsg);
+		}
+	}
+	
+	/**
+	 * Delivers the purchases the reorder buffer has released.
+	 */
+	private void deliverReordered() throws JCSMPException {
+		ReorderBuffer.Entry entry;
+		while ((entry = reorder.poll()) != null) {
+			deliver(entry.pmsg, entry.bStale);
+		}
+	}
+	
+	/**
+	 * Leaves the group of partitioned instances (see PartitionCoordinator): the agent hands its partitions
+	 * off to the others and then stops. Does nothing unless partitioned. May be called from any thread.
+	 */
+	public void leavePartitions() {
+		if (partitions != null) {
+			partitions.leave();
+		}
+	}
+	
+	/**
+	 * Subclass' override this method to hand off the state they keep per client when -Dgeek2.partitions is
+	 * set and a partition moves to another instance: write the state of the partition's clients (those for
+	 * which HashRing.partition(clientID, HashRing.PARTITIONS) is the partition), and forget it. The purchases
+	 * in the Model are not handed off, only forgotten. By default there is nothing to hand off.
+	 * 
+	 * @param partition
+	 * @param out
+	 * @throws IOException
+	 */
+	protected void handOffPartition(int partition, DataOutputStream out) throws IOException {
+	}
+	
 	/**
-	 * Subclass' implement this method to handle purchase event messages
+	 * Subclass' override this method to take over the state written by handOffPartition() on the instance 
+	 * the partition came from, before any of the partition's purchases are passed to onPurchase().
+	 * 
+	 * @param partition
+	 * @param in
+	 * @throws IOException
+	 */
+	protected void takeOverPartition(int partition, DataInputStream in) throws IOException {
+	}
+	
+	/**
+	 * Moves a partition's state in and out of this agent for the PartitionCoordinator: whatever the agent 
+	 * writes in handOffPartition(). The partition's purchases are dropped from the Model, if it is used, 
+	 * rather than copied: the agents keep what they need of them in their own state.
+	 */
+	private class PartitionOwner implements PartitionCoordinator.Owner {
+		public void handOff(int partition, DataOutputStream out) throws IOException {
+			if (reorder != null) {
+				// the partition's last purchases may still be held back
+				reorder.release(partition);
+				try {
+					deliverReordered();
+				} catch (JCSMPException e) {
+					throw new IOException(e);
+				}
+			}
+			final int p = partition;
+			model.removePurchases(clientID -> HashRing.partition(clientID, HashRing.PARTITIONS) == p);
+			handOffPartition(partition, out);
+		}
+		
+		public void takeOver(int partition, DataInputStream in) throws IOException {
+			takeOverPartition(partition, in);
+		}
+		
+		public void replay(String topic, TransportMessage msg) throws JCSMPException {
+			processPurchase(topic, msg);
+		}
+		
+		public void send(String topic, byte[] payload, boolean bText) throws JCSMPException {
+			OutboundPublisher.Slot slot = claimSlot();
+			if (slot == null) {
+				return;
+			}
+			Topic controlTopic = textTopics.get(topic);
+			if (controlTopic == null) {
+				controlTopic = JCSMPFactory.onlyInstance().createTopic(topic);
+				textTopics.put(topic, controlTopic);
+			}
+			slot.buffer.write(payload);
+			slot.topic = controlTopic;
+			if (!bText) {
+				// a snapshot, which is not to be lost
+				slot.contentType = "application/octet-stream";
+				slot.guaranteed = true;
+				slot.compressible = true;
+			}
+			publish(slot);
+		}
+	}
+	
+	/**
+	 * Inflates a compressed payload.
+	 * 
+	 * @param topic
+	 * @param msg
+	 * @param payload
+	 * @return the payload itself if it was not compressed, the inflated payload, or null if it could not be
+	 * inflated (which is logged)
+	 */
+	private ByteBuffer inflate(String topic, TransportMessage msg, ByteBuffer payload) {
+		if (payload == null || !PayloadCompression.isCompressed(msg)) {
+			return payload;
+		}
+		long start = System.nanoTime();
+		int compressedLen = payload.remaining();
+		try {
+			payload = ByteBuffer.wrap(inboundCompression.decompress(payload));
+		} catch (DataFormatException e) {
+			logger.error("Failed to decompress client message on " + topic, e);
+			return null;
+		}
+		compressedInNanos.addAndGet(System.nanoTime() - start);
+		compressedIn.incrementAndGet();
+		compressedInBytes.addAndGet(compressedLen);
+		compressedInRawBytes.addAndGet(payload.remaining());
+		return payload;
+	}
+	
+	/**
+	 * Subclass' implement this method to handle purchase event messages. The message is frozen (read-only),
+	 * and may be shared with other agents in the same AgentHost.
 	 * 
 	 * @param pmsg
 	 * @throws JCSMPException
 	 */
 	public abstract void onPurchase(PurchaseMessage pmsg) throws JCSMPException;
-
-	@Override
-	public void onException(JCSMPException e) {
-        logger.warn("Consumer received exception: %s%n",e);
+	
+	/**
+	 * Called instead of onPurchase() for a purchase over a SUMMARIZE latency budget (see setLatencyBudget()).
+	 * The purchase is already in the Model, if the agent uses it; by default nothing else is done with it.
+	 * 
+	 * @param pmsg
+	 * @throws JCSMPException
+	 */
+	public void onStalePurchase(PurchaseMessage pmsg) throws JCSMPException {
+	}
+	
+	/**
+	 * Subclass' override this method to return true if they look purchases up in the Model (e.g. with 
+	 * getLastPurchaseBefore() or getTotalPurchasesForClient()). Otherwise purchases are decoded but not 
+	 * stored in it. By default the Model is not used.
+	 * 
+	 * @return
+	 */
+	protected boolean usesModel() {
+		return false;
+	}
+	
+	/**
+	 * Subclass' override this method to declare which payload fields they (or the Model queries they use) 
+	 * actually read. Anything not listed is skipped by the decoder. By default every field is decoded.
+	 * 
+	 * @return
+	 */
+	protected EnumSet<PurchaseField> getFieldsOfInterest() {
+		return EnumSet.allOf(PurchaseField.class);
 	}
 
 	@Override
-	public void onReceive(BytesXMLMessage msg) {
-		logger.info("Message received on " + msg.getDestination().getName());
-		queue.offer(msg); 
-		
+	public void onMessage(TransportMessage msg) {
+		logger.info("Message received on " + msg.getTopic());
+		PartitionCoordinator coordinator = partitions;
+		if (coordinator != null && coordinator.offerControl(msg)) {
+			// not behind the purchases, nor blocking whoever sent it
+			return;
+		}
+		try {
+			// wait for room rather than drop: a queued message that is never processed is never acknowledged
+			queue.put(msg);
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted queueing message on " + msg.getTopic() + ", dropped");
+			Thread.currentThread().interrupt();
+		}
 	}
 	
 }
@@ -0,0 +1,215 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.solacesystems.jcsmp.JCSMPException;
+
+/**
+ * Runs several agents in one process behind one subscription, instead of one JVM (and one copy of every
+ * purchase on the wire) per agent. The host is itself an agent: it receives and decodes each purchase once,
+ * with the union of its agents' fields of interest, stores it once in a Model shared by all of them (if any
+ * of them uses it, see usesModel()), and then calls every agent's onPurchase() in turn with the same frozen
+ * PurchaseMessage. Notifications from all the agents go out through the host's one publisher and throttle. Handlers the agents added for other topics
+ * (see addHandler()) are added to the host, which subscribes and routes for them, and so are their latency
+ * budgets; where those overlap, the most lenient applies to all the agents.
+ *
+ *     AgentHost <msg_backbone_ip:port> <vpn> <client-username> <password> <topic> <agent class> [<agent class> ...]
+ *
+ * Every agent runs on the host's processing thread, so agents need no more locking than when run alone.
+ * The host keeps a host.[agent].cpuNanos counter per agent, and a host.[agent].errors counter for purchases
+ * an agent failed on, which the other agents still get. Partitioned (see PartitionCoordinator), the host
+ * hands a partition's state to and from every agent in turn, each in a section of its own.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class AgentHost extends AbstractAgent {
+	private static final Logger logger = Logger.getLogger(AgentHost.class.getName());
+	private final AbstractAgent[] agents;
+	private final AtomicLong[] agentNanos;
+	private final AtomicLong[] agentErrors;
+
+	/**
+	 * @param agents the agents to host. They must not be run on their own.
+	 */
+	public AgentHost(List<AbstractAgent> agents) {
+		this.agents = agents.toArray(new AbstractAgent[agents.size()]);
+		agentNanos = new AtomicLong[this.agents.length];
+		agentErrors = new AtomicLong[this.agents.length];
+		for (int i = 0; i < this.agents.length; i++) {
+			AbstractAgent agent = this.agents[i];
+			agent.host = this;
+			agent.model = model;
+			for (int j = 0; j < agent.handlerPatterns.size(); j++) {
+				addHandler(agent.handlerPatterns.get(j), agent.handlers.get(j));
+			}
+			for (int j = 0; j < agent.budgetPatterns.size(); j++) {
+				LatencyBudget budget = agent.budgetList.get(j);
+				addLatencyBudget(agent.budgetPatterns.get(j), new LatencyBudget(budget.name, budget.budgetMillis, budget.action, metrics));
+			}
+			String name = agent.getClass().getSimpleName();
+			agentNanos[i] = metrics.counter("host." + name + ".cpuNanos");
+			agentErrors[i] = metrics.counter("host." + name + ".errors");
+		}
+	}
+
+	/**
+	 * Hands the purchase to every hosted agent, in the order they were given.
+	 */
+	@Override
+	public void onPurchase(PurchaseMessage pmsg) throws JCSMPException {
+		for (int i = 0; i < agents.length; i++) {
+			long start = System.nanoTime();
+			try {
+				agents[i].onPurchase(pmsg);
+			} catch (RuntimeException e) {
+				logger.error(agents[i].getClass().getSimpleName() + " failed on a purchase from " + pmsg.getClientID(), e);
+				agentErrors[i].incrementAndGet();
+			}
+			agentNanos[i].addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Hands a purchase over its latency budget to every hosted agent.
+	 */
+	@Override
+	public void onStalePurchase(PurchaseMessage pmsg) throws JCSMPException {
+		for (int i = 0; i < agents.length; i++) {
+			try {
+				agents[i].onStalePurchase(pmsg);
+			} catch (RuntimeException e) {
+				logger.error(agents[i].getClass().getSimpleName() + " failed on a stale purchase from " + pmsg.getClientID(), e);
+				agentErrors[i].incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Writes each hosted agent's state for the partition, length first.
+	 */
+	@Override
+	protected void handOffPartition(int partition, DataOutputStream out) throws IOException {
+		out.writeInt(agents.length);
+		ByteArrayOutputStream section = new ByteArrayOutputStream();
+		for (AbstractAgent agent : agents) {
+			section.reset();
+			DataOutputStream sectionOut = new DataOutputStream(section);
+			agent.handOffPartition(partition, sectionOut);
+			sectionOut.flush();
+			out.writeInt(section.size());
+			section.writeTo(out);
+		}
+	}
+
+	/**
+	 * Hands each hosted agent its section of the partition's state.
+	 */
+	@Override
+	protected void takeOverPartition(int partition, DataInputStream in) throws IOException {
+		int sections = in.readInt();
+		if (sections != agents.length) {
+			throw new IOException("Snapshot of partition " + partition + " is from " + sections + " agents, this host runs " + agents.length);
+		}
+		for (AbstractAgent agent : agents) {
+			byte[] section = new byte[in.readInt()];
+			in.readFully(section);
+			agent.takeOverPartition(partition, new DataInputStream(new ByteArrayInputStream(section)));
+		}
+	}
+
+	/**
+	 * Whether any of the hosted agents uses the Model.
+	 */
+	@Override
+	protected boolean usesModel() {
+		for (AbstractAgent agent : agents) {
+			if (agent.usesModel()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Every field that any of the hosted agents wants.
+	@Override
+	protected EnumSet<PurchaseField> getFieldsOfInterest() {
+		EnumSet<PurchaseField> fields = EnumSet.noneOf(PurchaseField.class);
+		for (AbstractAgent agent : agents) {
+			fields.addAll(agent.getFieldsOfInterest());
+		}
+		return fields;
+	}
+
+	/**
+	 * Main program for the agent host
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String... args) throws Exception {
+		// Check command line arguments
+		if (args.length < 6) {
+			System.out.println("Usage: AgentHost <msg_backbone_ip:port> <vpn> <client-username> <password> <topic> <agent class> [<agent class> ...]");
+			System.exit(-1);
+		}
+		ArrayList<AbstractAgent> agents = new ArrayList<AbstractAgent>();
+		for (int i = 5; i < args.length; i++) {
+			try {
+				agents.add(createAgent(args[i]));
+			} catch (IllegalArgumentException e) {
+				logger.error("Cannot start the agent host", e);
+				System.out.println(e.getMessage());
+				System.exit(-1);
+			}
+		}
+		AgentHost host = new AgentHost(agents);
+		host.run(args);
+	}
+
+	/**
+	 * @param className an agent class with a public no-argument constructor
+	 * @return a new instance of it
+	 * @throws IllegalArgumentException if the class is not found or not an agent, or its constructor fails;
+	 * a failed constructor's exception is the cause
+	 */
+	static AbstractAgent createAgent(String className) {
+		try {
+			Class<?> agentClass = Class.forName(className);
+			if (!AbstractAgent.class.isAssignableFrom(agentClass)) {
+				throw new IllegalArgumentException(className + " is not an agent");
+			}
+			return (AbstractAgent) agentClass.getDeclaredConstructor().newInstance();
+		} catch (InvocationTargetException e) {
+			throw new IllegalArgumentException("Failed to create " + className + ": " + e.getCause(), e.getCause());
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("No agent class " + className, e);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException(className + " has no public no-argument constructor", e);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A very small registry of named counters and latency histograms for an agent. Both are created on first
+ * use and can be updated from any thread. When reporting is started, a snapshot of all of them is written
+ * to the log at a fixed interval.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class AgentMetrics {
+	private static final Logger logger = Logger.getLogger(AgentMetrics.class.getName());
+	private final ConcurrentSkipListMap<String, AtomicLong> counters = new ConcurrentSkipListMap<String, AtomicLong>();
+	private final ConcurrentSkipListMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<String, LatencyHistogram>();
+
+	/**
+	 * Returns the counter with the given name, creating it (at zero) if needed. Callers on a hot path should
+	 * look the counter up once and keep the reference.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public AtomicLong counter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(name, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Returns the histogram with the given name, creating it (empty) if needed. Like counters, look it up 
+	 * once and keep the reference.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns all counters as "name=value" pairs, then all histograms, each sorted by name.
+	 *
+	 * @return
+	 */
+	public String snapshot() {
+		StringBuilder sb = new StringBuilder("Agent metrics:");
+		for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			sb.append("\n    ").append(entry.getKey()).append('=').append(entry.getValue().get());
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			sb.append("\n    ").append(entry.getKey()).append(": ").append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Starts a daemon thread that logs a snapshot every intervalSecs seconds. Does nothing if intervalSecs
+	 * is not positive.
+	 *
+	 * @param intervalSecs
+	 */
+	public void startReporting(final long intervalSecs) {
+		if (intervalSecs <= 0) {
+			return;
+		}
+		Thread reporter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(intervalSecs * 1000);
+						logger.info(snapshot());
+					}
+				} catch (InterruptedException e) {
+					// agent is shutting down
+				}
+			}
+		}, "metrics-reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runtime support for the generated binary codecs (see CodecGenerator). The binary format of a message is
+ * a varint bit mask of the fields present, followed by each present field in schema order:
+ *
+ *     double, long     8 bytes, big-endian
+ *     string           varint (UTF-8 length + 1, 0 for null), then the UTF-8 bytes
+ *     list             4 byte big-endian length of the rest, varint count, then each element as a message
+ *
+ * Reads use absolute positions, so the buffer's own position and limit are never changed.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public final class BinaryCodecSupport {
+	// value of the HTTP content type header on messages carrying the binary format
+	public static final String CONTENT_TYPE = "application/x-geek2-binary";
+
+	private BinaryCodecSupport() {
+	}
+
+	public static long readLong(ByteBuffer buf, int pos) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (buf.get(pos + i) & 0xFF);
+		}
+		return value;
+	}
+
+	public static double readDouble(ByteBuffer buf, int pos) {
+		return Double.longBitsToDouble(readLong(buf, pos));
+	}
+
+	public static int readInt(ByteBuffer buf, int pos) {
+		return ((buf.get(pos) & 0xFF) << 24) | ((buf.get(pos + 1) & 0xFF) << 16)
+				| ((buf.get(pos + 2) & 0xFF) << 8) | (buf.get(pos + 3) & 0xFF);
+	}
+
+	public static int readVarint(ByteBuffer buf, int pos) {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = buf.get(pos++);
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes writeVarint() uses for value
+	 */
+	public static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * @param encodedLength the varint that precedes a string
+	 * @return the number of UTF-8 bytes that follow it
+	 */
+	public static int stringBytes(int encodedLength) {
+		return encodedLength == 0 ? 0 : encodedLength - 1;
+	}
+
+	/**
+	 * Decodes the string at pos, given the varint that preceded it.
+	 */
+	public static String readString(ByteBuffer buf, int pos, int encodedLength) {
+		if (encodedLength == 0) {
+			return null;
+		}
+		int len = encodedLength - 1;
+		if (buf.hasArray()) {
+			return new String(buf.array(), buf.arrayOffset() + pos, len, StandardCharsets.UTF_8);
+		}
+		ByteBuffer slice = buf.duplicate();
+		slice.limit(pos + len).position(pos);
+		return StandardCharsets.UTF_8.decode(slice).toString();
+	}
+
+	public static void writeDouble(OutboundBuffer out, double value) {
+		out.writeLong(Double.doubleToLongBits(value));
+	}
+
+	public static void writeString(OutboundBuffer out, String value) {
+		if (value == null) {
+			out.writeVarint(0);
+			return;
+		}
+		out.writeVarint(utf8Length(value) + 1);
+		out.writeUtf8(value);
+	}
+
+	/**
+	 * @return the number of bytes OutboundBuffer.writeUtf8() writes for s
+	 */
+	public static int utf8Length(String s) {
+		int len = s.length();
+		int bytes = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				bytes++;
+			}
+			else if (c < 0x800) {
+				bytes += 2;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				bytes += 4;
+				i++;
+			}
+			else if (Character.isSurrogate(c)) {
+				bytes++;
+			}
+			else {
+				bytes += 3;
+			}
+		}
+		return bytes;
+	}
+}
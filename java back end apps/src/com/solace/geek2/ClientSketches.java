@@ -0,0 +1,459 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Approximate per-client fraud features in a fixed amount of memory, however many clients and locations
+ * there are: how many purchases a client made and how much they spent (Count-Min sketches), at how many
+ * distinct locations (a virtual HyperLogLog), and which clients made the most purchases (the top K, kept by
+ * count). Where RecentPurchases and VelocityWindows hold something for every client, these are sized once,
+ * from the error bounds wanted:
+ *
+ *     geek2.fraud.sketch.epsilon            0.002  counts and sums overestimate by at most epsilon times
+ *     geek2.fraud.sketch.delta              0.01   the window's total, except with probability delta
+ *     geek2.fraud.sketch.distinctError      0.3    the HyperLogLog's relative standard error
+ *     geek2.fraud.sketch.distinctRegisters  4M     the registers the clients' HyperLogLogs share
+ *     geek2.fraud.sketch.topK               10     the number of hottest clients kept
+ *     geek2.fraud.sketch.windowMillis       1h     the window
+ *
+ * The count and sum tables have ln(1/delta) rows of e/epsilon cells (rounded up to a power of two), a client
+ * hashing to one cell per row; a client's estimate is the smallest of its cells, since other clients can
+ * only add to a cell. They use conservative update, raising only the cells that are at the minimum.
+ *
+ * A client's HyperLogLog has (1.04 / distinctError)^2 registers (a power of two, at least 16), but they are
+ * virtual: each is a register of the shared pool picked by hashing the client, and a location sets the
+ * register its hash picks in the client's set. Other clients' locations land in the same registers in
+ * proportion to how full the pool is, so the estimate subtracts that noise, worked out from the pool as a
+ * whole. Small counts, the usual case, are estimated by linear counting. The noise grows with the number of
+ * different client and location pairs in the window against the size of the pool, and with the number of
+ * virtual registers; sketch.distinctLoad shows the share of the pool in use, in percent. With the default
+ * 16 registers, counts of a handful of locations are within one of the truth nine times in ten at a load
+ * of 4, and seven in ten at 15.
+ *
+ * The window is tumbling, by event time: there are two generations of every table, the current window and
+ * the one before, and the estimates cover both, so they reach back between one and two windows. When a
+ * purchase's timestamp enters a new window, the older generation is cleared and becomes the current one.
+ * Timestamps never move the window back; a late purchase counts in the current one.
+ *
+ * Queries are about the purchase last passed to select(), and include it, as the FraudRules conditions
+ * expect; add() then counts it. Not thread safe; used on the agent's processing thread. Keeps sketch.bytes,
+ * sketch.rotations and sketch.hotMin (the count of the coolest of the top K), and logs the top K as each
+ * window closes.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class ClientSketches {
+	private static final Logger logger = Logger.getLogger(ClientSketches.class.getName());
+	public static final double EPSILON = Double.parseDouble(System.getProperty("geek2.fraud.sketch.epsilon", "0.002"));
+	public static final double DELTA = Double.parseDouble(System.getProperty("geek2.fraud.sketch.delta", "0.01"));
+	public static final double DISTINCT_ERROR = Double.parseDouble(System.getProperty("geek2.fraud.sketch.distinctError", "0.3"));
+	public static final int DISTINCT_REGISTERS = Integer.getInteger("geek2.fraud.sketch.distinctRegisters", 1 << 22);
+	public static final int TOP_K = Math.max(1, Integer.getInteger("geek2.fraud.sketch.topK", 10));
+	public static final long WINDOW_MILLIS = Math.max(1, Long.getLong("geek2.fraud.sketch.windowMillis", 3600000));
+
+	private final int depth;
+	private final int width;
+	// the shared HyperLogLog pool, and each client's virtual registers in it, 2^precision of them
+	private final int pool;
+	private final int precision;
+	private final int registers;
+	private final double alpha;
+
+	// two generations of each table, depth * width cells; [current] is the window being filled
+	private int[][] counts = new int[2][];
+	private long[][] cents = new long[2][];
+	private byte[][] ranks = new byte[2][];
+	// pool registers set in either generation
+	private int poolUsed;
+	private int current;
+	private long window = Long.MIN_VALUE;
+
+	// the purchase last selected: the client's cell in every row, its virtual registers (worked out when
+	// first needed), and the virtual register and rank of its location
+	private String clientID;
+	private long clientHash;
+	private final int[] cells;
+	private final int[] virtual;
+	private boolean bVirtual;
+	private int register;
+	private byte rank;
+	private int frequency = -1;
+	private double spend = -1;
+	private int distinct = -1;
+
+	// the top K as a min-heap on count, and where each client is in it
+	private final String[] hotIDs = new String[TOP_K];
+	private final long[] hotHashes = new long[TOP_K];
+	private final int[] hotCounts = new int[TOP_K];
+	private final HashMap<String, Integer> hotIndex = new HashMap<String, Integer>();
+	private int hotSize;
+
+	private final AtomicLong rotations;
+	private final AtomicLong hotMin;
+	private final AtomicLong distinctLoad;
+
+	/**
+	 * Allocates the tables, sized from the configured error bounds.
+	 *
+	 * @param metrics
+	 */
+	public ClientSketches(AgentMetrics metrics) {
+		depth = Math.max(1, (int) Math.ceil(Math.log(1 / DELTA)));
+		width = powerOfTwo(Math.E / EPSILON);
+		pool = powerOfTwo(DISTINCT_REGISTERS);
+		registers = Math.min(pool / 4, Math.max(16, powerOfTwo(Math.pow(1.04 / DISTINCT_ERROR, 2))));
+		precision = Integer.numberOfTrailingZeros(registers);
+		alpha = registers == 16 ? 0.673 : registers == 32 ? 0.697 : registers == 64 ? 0.709 : 0.7213 / (1 + 1.079 / registers);
+		for (int g = 0; g < 2; g++) {
+			counts[g] = new int[depth * width];
+			cents[g] = new long[depth * width];
+			ranks[g] = new byte[pool];
+		}
+		cells = new int[depth];
+		virtual = new int[registers];
+		long bytes = 2L * (depth * width * (4 + 8) + pool);
+		metrics.counter("sketch.bytes").set(bytes);
+		rotations = metrics.counter("sketch.rotations");
+		hotMin = metrics.counter("sketch.hotMin");
+		distinctLoad = metrics.counter("sketch.distinctLoad");
+		logger.info("Client sketches: " + depth + " rows of " + width + " cells, " + registers + " of " + pool
+				+ " registers per client, " + (bytes >> 10) + " KB");
+	}
+
+	private static int powerOfTwo(double n) {
+		int target = (int) Math.min(1 << 30, Math.ceil(n));
+		return target <= 1 ? 1 : Integer.highestOneBit(target - 1) << 1;
+	}
+
+	/**
+	 * Makes a purchase the subject of the queries and add(), moving the window on to its timestamp.
+	 *
+	 * @param clientID
+	 * @param location the purchase's location id
+	 * @param timestamp
+	 */
+	public void select(String clientID, int location, long timestamp) {
+		advance(timestamp / WINDOW_MILLIS);
+		if (!clientID.equals(this.clientID)) {
+			this.clientID = clientID;
+			clientHash = hash(clientID);
+			cells(clientHash, cells);
+			bVirtual = false;
+		}
+		long locationHash = mix(location * 0x9E3779B97F4A7C15L + 1);
+		register = (int) (locationHash >>> (64 - precision));
+		rank = (byte) (Long.numberOfLeadingZeros((locationHash << precision) | (1L << (precision - 1))) + 1);
+		frequency = -1;
+		spend = -1;
+		distinct = -1;
+	}
+
+	/**
+	 * @return the selected client's purchases in the window, the selected one included
+	 */
+	public int frequency() {
+		if (frequency < 0) {
+			frequency = estimateCount(cells) + 1;
+		}
+		return frequency;
+	}
+
+	/**
+	 * @param amount the selected purchase's total
+	 * @return the selected client's spend in the window, the selected purchase included
+	 */
+	public double spend(double amount) {
+		if (spend < 0) {
+			long min = Long.MAX_VALUE;
+			for (int cell : cells) {
+				min = Math.min(min, cents[0][cell] + cents[1][cell]);
+			}
+			spend = min / 100.0;
+		}
+		return spend + amount;
+	}
+
+	/**
+	 * @return the number of distinct locations the selected client bought at in the window, the selected
+	 * purchase's included
+	 */
+	public int distinctLocations() {
+		if (distinct < 0) {
+			distinct = (int) Math.max(1, Math.round(estimateDistinct()));
+		}
+		return distinct;
+	}
+
+	/**
+	 * @return true if the selected client is one of the top K by purchases in the window
+	 */
+	public boolean isHot() {
+		return hotIndex.containsKey(clientID);
+	}
+
+	/**
+	 * Counts the selected purchase, at most once.
+	 *
+	 * @param amount the purchase's total
+	 */
+	public void add(double amount) {
+		int[] now = counts[current];
+		int min = Integer.MAX_VALUE;
+		for (int cell : cells) {
+			min = Math.min(min, now[cell]);
+		}
+		for (int cell : cells) {
+			if (now[cell] == min) {
+				now[cell]++;
+			}
+		}
+		long amountCents = Math.round(amount * 100);
+		long[] nowCents = cents[current];
+		long minCents = Long.MAX_VALUE;
+		for (int cell : cells) {
+			minCents = Math.min(minCents, nowCents[cell]);
+		}
+		for (int cell : cells) {
+			nowCents[cell] = Math.max(nowCents[cell], minCents + amountCents);
+		}
+		int r = virtualRegister(clientHash, register);
+		if (ranks[current][r] < rank) {
+			if (ranks[current][r] == 0 && ranks[1 - current][r] == 0) {
+				poolUsed++;
+				distinctLoad.set(100L * poolUsed / pool);
+			}
+			ranks[current][r] = rank;
+		}
+		offerHot(clientID, clientHash, estimateCount(cells));
+		frequency = -1;
+		spend = -1;
+		distinct = -1;
+	}
+
+	/**
+	 * @return the hottest clients and their purchases in the window, most first
+	 */
+	public String topClients() {
+		Integer[] order = new Integer[hotSize];
+		for (int i = 0; i < hotSize; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Integer.compare(hotCounts[b], hotCounts[a]));
+		StringBuilder sb = new StringBuilder();
+		for (int i : order) {
+			sb.append(sb.length() == 0 ? "" : ", ").append(hotIDs[i]).append('=').append(hotCounts[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The client's cell in every row, row i hashing with h1 + i * h2 from one 64-bit hash.
+	 */
+	private void cells(long hash, int[] into) {
+		long h2 = mix(hash ^ 0x5851F42D4C957F2DL) | 1;
+		for (int row = 0; row < depth; row++) {
+			into[row] = row * width + (int) ((hash + row * h2) >>> 33) % width;
+		}
+	}
+
+	private int estimateCount(int[] rowCells) {
+		int min = Integer.MAX_VALUE;
+		for (int cell : rowCells) {
+			min = Math.min(min, counts[0][cell] + counts[1][cell]);
+		}
+		return min;
+	}
+
+	private int virtualRegister(long hash, int i) {
+		return (int) mix(hash + (i + 1) * 0x9E3779B97F4A7C15L) & (pool - 1);
+	}
+
+	/**
+	 * The virtual HyperLogLog estimate for the selected client, over both generations and the selected
+	 * location, less the pool's noise: with n the client's estimate over its registers and N the pool's,
+	 * (pool * registers / (pool - registers)) * (n / registers - N / pool).
+	 */
+	private double estimateDistinct() {
+		if (!bVirtual) {
+			for (int i = 0; i < registers; i++) {
+				virtual[i] = virtualRegister(clientHash, i);
+			}
+			bVirtual = true;
+		}
+		byte[] a = ranks[0];
+		byte[] b = ranks[1];
+		double sum = 0;
+		int zeros = 0;
+		for (int i = 0; i < registers; i++) {
+			int r = Math.max(a[virtual[i]], b[virtual[i]]);
+			if (i == register) {
+				r = Math.max(r, rank);
+			}
+			if (r == 0) {
+				zeros++;
+			}
+			sum += 1.0 / (1L << r);
+		}
+		double client = alpha * registers * registers / sum;
+		if (client <= 2.5 * registers && zeros > 0) {
+			client = registers * Math.log((double) registers / zeros);
+		}
+		// the pool is far larger than any client's share, linear counting holds until it is nearly full
+		double all = pool * Math.log((double) pool / Math.max(1, pool - poolUsed));
+		return (double) pool * registers / (pool - registers) * (client / registers - all / pool);
+	}
+
+	private void advance(long to) {
+		if (to <= window) {
+			return;
+		}
+		if (window != Long.MIN_VALUE) {
+			logger.info("Hottest clients in the window to " + new Date((window + 1) * WINDOW_MILLIS) + ": " + topClients());
+			int older = 1 - current;
+			clear(older);
+			if (to > window + 1) {
+				clear(current);
+			}
+			current = older;
+			rotations.incrementAndGet();
+			// the top K counts drop with the generation that went, re-estimate them
+			int[] hotCells = new int[depth];
+			for (int i = 0; i < hotSize; i++) {
+				cells(hotHashes[i], hotCells);
+				hotCounts[i] = estimateCount(hotCells);
+			}
+			for (int i = hotSize / 2 - 1; i >= 0; i--) {
+				siftDown(i);
+			}
+			hotMin.set(hotSize > 0 ? hotCounts[0] : 0);
+			distinctLoad.set(100L * poolUsed / pool);
+		}
+		window = to;
+	}
+
+	private void clear(int generation) {
+		Arrays.fill(counts[generation], 0);
+		Arrays.fill(cents[generation], 0);
+		Arrays.fill(ranks[generation], (byte) 0);
+		byte[] other = ranks[1 - generation];
+		poolUsed = 0;
+		for (byte r : other) {
+			if (r != 0) {
+				poolUsed++;
+			}
+		}
+	}
+
+	private void offerHot(String id, long hash, int count) {
+		Integer position = hotIndex.get(id);
+		if (position != null) {
+			hotCounts[position] = count;
+			siftDown(position);
+		}
+		else if (hotSize < TOP_K) {
+			hotIDs[hotSize] = id;
+			hotHashes[hotSize] = hash;
+			hotCounts[hotSize] = count;
+			hotIndex.put(id, hotSize);
+			siftUp(hotSize++);
+		}
+		else if (count > hotCounts[0]) {
+			hotIndex.remove(hotIDs[0]);
+			hotIDs[0] = id;
+			hotHashes[0] = hash;
+			hotCounts[0] = count;
+			hotIndex.put(id, 0);
+			siftDown(0);
+		}
+		else {
+			return;
+		}
+		hotMin.set(hotCounts[0]);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (hotCounts[parent] <= hotCounts[i]) {
+				break;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			if (left < hotSize && hotCounts[left] < hotCounts[smallest]) {
+				smallest = left;
+			}
+			if (left + 1 < hotSize && hotCounts[left + 1] < hotCounts[smallest]) {
+				smallest = left + 1;
+			}
+			if (smallest == i) {
+				return;
+			}
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+
+	private void swap(int i, int j) {
+		String id = hotIDs[i];
+		hotIDs[i] = hotIDs[j];
+		hotIDs[j] = id;
+		long hash = hotHashes[i];
+		hotHashes[i] = hotHashes[j];
+		hotHashes[j] = hash;
+		int count = hotCounts[i];
+		hotCounts[i] = hotCounts[j];
+		hotCounts[j] = count;
+		hotIndex.put(hotIDs[i], i);
+		hotIndex.put(hotIDs[j], j);
+	}
+
+	/**
+	 * A 64-bit FNV-1a hash of the string, mixed.
+	 */
+	private static long hash(String s) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * The MurmurHash3 finalizer.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB93FE1A85A53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
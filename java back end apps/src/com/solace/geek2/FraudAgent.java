@@ -15,14 +15,20 @@
 
 package com.solace.geek2;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+
 import org.apache.log4j.Logger;
 
 import com.solacesystems.jcsmp.JCSMPException;
 
 /**
  * Sub-class of the AbstractAgent, this class implements the main program of the Fraud Agent. Upon receipt 
- * of a purchase message, it checks to see if the customer has made a purchase at another location with the 
- * last 5 minutes, and if so, sends out a textual message to the customer informing them of the condition.
+ * of a purchase message, it checks it against the fraud rules (see FraudRules, e.g.: could the customer 
+ * have got here from the store of their last purchase since then?), and if one matches, sends out a textual 
+ * message to the customer informing them of the condition.
  * 
  * Obviously, this is for illustrative/architectural/demo purposes and is not intended to be any type of 
  * real-life fraud detection algorithm.
@@ -32,39 +38,70 @@ import com.solacesystems.jcsmp.JCSMPException;
  */
 public class FraudAgent extends AbstractAgent {
 	private static final Logger logger = Logger.getLogger(FraudAgent.class.getName());
-	
+	private final NotificationTemplate fraudAlert = new NotificationTemplate("fraud", "{text}", true);
+	private static final String GENERIC_ALERT = "Your last purchase looks like a possible fraudulent usage. " + 
+			"Please contact our customer service center.";
+	// the last few purchases of each client, see RecentPurchases
+	private final RecentPurchases recent = new RecentPurchases(new StoreLocations());
+	private final FraudRules rules = new FraudRules(recent, metrics);
 
+	/**
+	 * A late fraud alert is still worth sending, but not ahead of the checks on purchases being made now.
+	 */
+	public FraudAgent() {
+		setLatencyBudget("purchase", PURCHASE_TOPICS, 60000, LatencyBudget.OverBudget.DEFER);
+		rules.startWatching();
+	}
+	
 	/**
 	 * Implements the abstract method of the base. This method is called after the 
-	 * Receipt of a purchase message. Note that this message is already in the "database".
+	 * Receipt of a purchase message. Note that this message is already in the "database", but not yet in 
+	 * the agent's own recent purchases, which the fraud rules are evaluated against.
 	 */
 	@Override
 	public void onPurchase(PurchaseMessage pmsg) throws JCSMPException {
-		// lets see if we have a previous message from this customer
-		PurchaseMessage lastMsg = model.getLastPurchaseBefore(pmsg.clientID, pmsg);
-		if (lastMsg != null) {
-			// yes, we have a previous message. Was it at thye same store or a different one?
-			if (lastMsg.location.equals(pmsg.location ) == false) {
-				// hmm, Ok, different store. How long ago was that? Lets check the timestamps
-				long millsBetween = pmsg.timestamp - lastMsg.timestamp;
-				long mins = (millsBetween/1000)/60; 
-				
-				if (mins < 5) {
-					// this is not good, 2 purchases less than 5 minutes apart at different locations 
-					logger.info(pmsg.clientID + "'s last purchase was less than 5 minutes ago, from a different location. " + 
-							"Possible fraud!");
-					
-					// send a message out to the customer
-					String outTopic = "fraud/" + pmsg.location + "/" + pmsg.clientID;
-					String text = "Your last purchase was less than 5 minutes ago, from a different location. " + 
-							"This looks like a possible fraudulent usage. Please contact our customer service center.";
-					sendResponseMessage(pmsg, text, outTopic);
-				}			
-			}
-			else {
-				logger.info(pmsg.clientID + "'s last purchase was as the same location. This is OK. ");
-			}
+		int client = recent.clientSlot(pmsg.getClientID());
+		int location = recent.locationId(pmsg.getLocation());
+		FraudRules.Rule rule = rules.evaluate(pmsg.getClientID(), client, location, pmsg.getTimestamp(), pmsg.getTotal());
+		if (rule != null) {
+			logger.info(pmsg.getClientID() + "'s purchase at " + pmsg.getLocation() + " matched fraud rule " + 
+					rule.getName() + ". Possible fraud!");
+			
+			// send a message out to the customer
+			sendNotification(fraudAlert, pmsg, 0, rule.getAlert() != null ? rule.getAlert() : GENERIC_ALERT);
 		}
+		rules.record(pmsg.getClientID(), client, location, pmsg.getTimestamp(), pmsg.getTotal());
+	}
+	
+	/**
+	 * Too late to alert on, but the next purchase still has to be compared with this one.
+	 */
+	@Override
+	public void onStalePurchase(PurchaseMessage pmsg) throws JCSMPException {
+		rules.record(pmsg.getClientID(), recent.clientSlot(pmsg.getClientID()), recent.locationId(pmsg.getLocation()), 
+				pmsg.getTimestamp(), pmsg.getTotal());
+	}
+	
+	/**
+	 * A partition's clients go with their recent purchases and velocity windows, see FraudRules.handOff().
+	 */
+	@Override
+	protected void handOffPartition(int partition, DataOutputStream out) throws IOException {
+		rules.handOff(partition, out);
+	}
+	
+	@Override
+	protected void takeOverPartition(int partition, DataInputStream in) throws IOException {
+		rules.takeOver(in);
+	}
+	
+	/**
+	 * The fraud rules look at the client, location and timestamp, which do not come from the payload, 
+	 * and the total; the decoder can skip the rest of the payload.
+	 */
+	@Override
+	protected EnumSet<PurchaseField> getFieldsOfInterest() {
+		return EnumSet.of(PurchaseField.TOTAL);
 	}
 	
 	/**
@@ -0,0 +1,797 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The FraudAgent's checks, read from a rule file rather than written into the agent. Each line of the file
+ * is a rule: a name, the conditions that must all hold for a purchase to be suspect, and optionally the
+ * text of the alert sent to the client, e.g.
+ *
+ *     travel: speed > 900 => Your last purchase was made too far from here for you to have travelled in between.
+ *     burst: count >= 5 within 10m
+ *     big: amount > 1000 and location not in {store1, store2}
+ *     spree: sum > 3000 within 1h
+ *
+ * The conditions are:
+ *
+ *     amount OP N                  the purchase's total
+ *     count OP N within D          the client's purchases in the last D, this one included
+ *     sum OP N within D            their total
+ *     location [not] in {a, b}     the purchase's location
+ *     location changed within D    the previous purchase was less than D ago, from another location
+ *     speed OP N                   the speed in km/h it takes to get from the previous purchase's store to
+ *                                  this one in the time between them (see StoreLocations); never matches
+ *                                  if either store has no coordinates
+ *     frequency OP N               the client's purchases in the sketch window, this one included
+ *     spend OP N                   their total
+ *     locations OP N               the distinct locations among them
+ *     hot                          the client is one of the top K by purchases in the sketch window
+ *
+ * where OP is one of > >= < <= and a duration D is a number followed by ms, s, m, h or d. Counts and sums
+ * within D are exact, kept per client and window length by VelocityWindows; a window length that is new in
+ * a reloaded file only counts purchases from then on. The last four conditions are estimates, from the
+ * fixed-size ClientSketches, over its one configured window; the sketches are only kept while some rule
+ * uses them, and start empty when a reloaded file brings them back. Lines starting with # are comments.
+ * When the clients are partitioned between instances (see PartitionCoordinator), a client's ring and
+ * velocity windows move with it, the windows keeping time per partition, but the sketches stay where they
+ * are: they are estimates over every client an instance has seen, and one client's share of them cannot be
+ * taken out.
+ *
+ * The rules also decide how long a client is remembered. Each condition on earlier purchases can only
+ * match for so long after the latest of them: the window of a count, sum or location change, and for a
+ * speed above N, the time it takes at N to cover the distance between the two stores furthest apart. A
+ * client with no purchase for longer than the longest of these, by its own clock, is forgotten, ring and
+ * windows, and its slot re-used; checked every geek2.fraud.idleSweepMillis of event time (default a minute)
+ * or every such longest window, whichever is longer. A speed below N can match after any time, so a rule
+ * with one keeps every client. A client forgotten is counted in recent.evicted.
+ *
+ * The rules come from the file named by -Dgeek2.fraud.rules, or else fraud.rules on the classpath, or
+ * else a single rule alerting on a change of location within 5 minutes. Each line compiles to an array of
+ * Condition objects, evaluated against the client's slot with no parsing or allocation. A file on disk is
+ * checked for changes every geek2.fraud.rules.checkSecs seconds (default 5) and recompiled on a background
+ * thread; the processing thread picks up the new rules before its next purchase, so nothing is dropped or
+ * held up while they load.
+ * A file that does not compile is logged and the previous rules stay in force.
+ *
+ * Every rule keeps a rule.[name].nanos histogram of its evaluation time and a rule.[name].fired counter,
+ * and the whole evaluation a rules.decision histogram; reloads and failed reloads are counted in
+ * rules.reloads and rules.reloadErrors.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class FraudRules {
+	private static final Logger logger = Logger.getLogger(FraudRules.class.getName());
+	public static final String RULES_FILE = System.getProperty("geek2.fraud.rules");
+	public static final int CHECK_SECS = Integer.getInteger("geek2.fraud.rules.checkSecs", 5);
+	public static final long IDLE_SWEEP_MILLIS = Math.max(1, Long.getLong("geek2.fraud.idleSweepMillis", 60000));
+	static final String DEFAULT_RULES = "travel: location changed within 5m => Your last purchase was less than 5 minutes ago, "
+			+ "from a different location. This looks like a possible fraudulent usage. Please contact our customer service center.";
+
+	private static final Pattern RULE = Pattern.compile("\\s*([\\w.-]+)\\s*:\\s*(.*?)\\s*(?:=>\\s*(.*?)\\s*)?");
+	private static final Pattern AMOUNT = Pattern.compile("amount\\s*(>=|<=|>|<)\\s*([0-9.]+)");
+	private static final Pattern WINDOWED = Pattern.compile("(count|sum)\\s*(>=|<=|>|<)\\s*([0-9.]+)\\s+within\\s+(\\S+)");
+	private static final Pattern LOCATION_SET = Pattern.compile("location\\s+(not\\s+)?in\\s*\\{([^}]*)\\}");
+	private static final Pattern SPEED = Pattern.compile("speed\\s*(>=|<=|>|<)\\s*([0-9.]+)");
+	private static final Pattern LOCATION_CHANGED = Pattern.compile("location\\s+changed\\s+within\\s+(\\S+)");
+	private static final Pattern SKETCHED = Pattern.compile("(frequency|spend|locations)\\s*(>=|<=|>|<)\\s*([0-9.]+)");
+	private static final Pattern DURATION = Pattern.compile("(\\d+)(ms|s|m|h|d)");
+	// comparison operators
+	private static final int GT = 0;
+	private static final int GE = 1;
+	private static final int LT = 2;
+	private static final int LE = 3;
+
+	/**
+	 * A compiled condition of a rule.
+	 */
+	public interface Condition {
+		/**
+		 * @param recent the client's earlier purchases, not including this one
+		 * @param velocity the client's purchase counts and sums over time windows, not including this one
+		 * @param client the client's slot in recent
+		 * @param location the purchase's location id in recent
+		 * @param timestamp the purchase's timestamp
+		 * @param amount the purchase's total
+		 * @return true if the purchase meets the condition
+		 */
+		boolean matches(RecentPurchases recent, VelocityWindows velocity, int client, int location, long timestamp, double amount);
+	}
+
+	/**
+	 * A compiled rule.
+	 */
+	public static class Rule {
+		final String name;
+		final Condition[] conditions;
+		final String alert;
+		final LatencyHistogram nanos;
+		final AtomicLong fired;
+
+		Rule(String name, Condition[] conditions, String alert, AgentMetrics metrics) {
+			this.name = name;
+			this.conditions = conditions;
+			this.alert = alert;
+			nanos = metrics.histogram("rule." + name + ".nanos");
+			fired = metrics.counter("rule." + name + ".fired");
+		}
+
+		boolean matches(RecentPurchases recent, VelocityWindows velocity, int client, int location, long timestamp, double amount) {
+			for (Condition condition : conditions) {
+				if (!condition.matches(recent, velocity, client, location, timestamp, amount)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the text to send the client, or null for a generic alert
+		 */
+		public String getAlert() {
+			return alert;
+		}
+	}
+
+	/**
+	 * A condition that refers to agent state, which is looked up on the processing thread when the rules
+	 * are taken into use.
+	 */
+	private interface Bound {
+		void bind(RecentPurchases recent, VelocityWindows velocity, ClientSketches sketches);
+	}
+
+	/**
+	 * A condition on the client's earlier purchases, which can only match for so long after the latest of
+	 * them.
+	 */
+	private interface Lookback {
+		/**
+		 * @param locations
+		 * @return how long after the client's latest purchase the condition can still match, Long.MAX_VALUE if
+		 * there is no telling
+		 */
+		long lookbackMillis(StoreLocations locations);
+	}
+
+	/**
+	 * A set of locations, named in the rule and turned into location ids.
+	 */
+	private static class LocationSet implements Condition, Bound {
+		final String[] names;
+		final boolean bNegated;
+		final BitSet ids = new BitSet();
+
+		LocationSet(String[] names, boolean bNegated) {
+			this.names = names;
+			this.bNegated = bNegated;
+		}
+
+		public void bind(RecentPurchases recent, VelocityWindows velocity, ClientSketches sketches) {
+			for (String name : names) {
+				ids.set(recent.locationId(name));
+			}
+		}
+
+		public boolean matches(RecentPurchases recent, VelocityWindows velocity, int client, int location, long timestamp, double amount) {
+			return ids.get(location) != bNegated;
+		}
+	}
+
+	/**
+	 * A count or sum of the client's purchases within a time window, this one included.
+	 */
+	private static class Windowed implements Condition, Bound, Lookback {
+		final long millis;
+		final boolean bSum;
+		final int op;
+		final double threshold;
+		int window;
+
+		Windowed(long millis, boolean bSum, int op, double threshold) {
+			this.millis = millis;
+			this.bSum = bSum;
+			this.op = op;
+			this.threshold = threshold;
+		}
+
+		public void bind(RecentPurchases recent, VelocityWindows velocity, ClientSketches sketches) {
+			window = velocity.window(millis);
+		}
+
+		public boolean matches(RecentPurchases recent, VelocityWindows velocity, int client, int location, long timestamp, double amount) {
+			double value = bSum ? velocity.sum(window, client) + amount : velocity.count(window, client) + 1;
+			return compare(value, op, threshold);
+		}
+
+		public long lookbackMillis(StoreLocations locations) {
+			return millis;
+		}
+	}
+
+	/**
+	 * The speed it takes to get from the previous purchase's store to this one.
+	 */
+	private static class Speed implements Condition, Lookback {
+		final int op;
+		final double threshold;
+
+		Speed(int op, double threshold) {
+			this.op = op;
+			this.threshold = threshold;
+		}
+
+		public boolean matches(RecentPurchases recent, VelocityWindows velocity, int client, int location, long timestamp, double amount) {
+			return recent.count(client) > 0 && compare(recent.getLocations().speedKmh(recent.previousLocation(client), 
+					location, timestamp - recent.previousTimestamp(client)), op, threshold);
+		}
+
+		public long lookbackMillis(StoreLocations locations) {
+			if ((op == GT || op == GE) && threshold > 0) {
+				return (long) Math.ceil(locations.maxDistanceKm() * 3600000.0 / threshold);
+			}
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * A previous purchase from another location, less than a time window ago.
+	 */
+	private static class LocationChanged implements Condition, Lookback {
+		final long window;
+
+		LocationChanged(long window) {
+			this.window = window;
+		}
+
+		public boolean matches(RecentPurchases recent, VelocityWindows velocity, int client, int location, long timestamp, double amount) {
+			return recent.count(client) > 0 && recent.previousLocation(client) != location
+					&& timestamp - recent.previousTimestamp(client) < window;
+		}
+
+		public long lookbackMillis(StoreLocations locations) {
+			return window;
+		}
+	}
+
+	/**
+	 * An estimate from the sketches, about the purchase selected in them.
+	 */
+	private static class Sketched implements Condition, Bound {
+		static final int FREQUENCY = 0;
+		static final int SPEND = 1;
+		static final int LOCATIONS = 2;
+		static final int HOT = 3;
+		final int feature;
+		final int op;
+		final double threshold;
+		ClientSketches sketches;
+
+		Sketched(int feature, int op, double threshold) {
+			this.feature = feature;
+			this.op = op;
+			this.threshold = threshold;
+		}
+
+		public void bind(RecentPurchases recent, VelocityWindows velocity, ClientSketches sketches) {
+			this.sketches = sketches;
+		}
+
+		public boolean matches(RecentPurchases recent, VelocityWindows velocity, int client, int location, long timestamp, double amount) {
+			switch (feature) {
+			case FREQUENCY:
+				return compare(sketches.frequency(), op, threshold);
+			case SPEND:
+				return compare(sketches.spend(amount), op, threshold);
+			case LOCATIONS:
+				return compare(sketches.distinctLocations(), op, threshold);
+			default:
+				return sketches.isHot();
+			}
+		}
+	}
+
+	private final AgentMetrics metrics;
+	private final RecentPurchases recent;
+	private final VelocityWindows velocity;
+	// the client last given a clock by clock(), which evaluate() and record() both ask for
+	private String clockClient;
+	private int clientClock;
+	// null unless a rule has a sketch condition
+	private ClientSketches sketches;
+	// the purchase last selected in the sketches by evaluate(), which record() then need not select again
+	private String selectedClient;
+	private int selectedLocation;
+	private long selectedTimestamp;
+	// how long a client is remembered without a purchase, Long.MAX_VALUE for ever; and the event time of the
+	// next check for clients idle that long
+	private long idleMillis = Long.MAX_VALUE;
+	private long nextSweep = Long.MIN_VALUE;
+	private final AtomicLong evicted;
+	private final File file;
+	// used on the processing thread only
+	private Rule[] rules;
+	// compiled by the watcher, waiting for the processing thread to bind and take them
+	private final AtomicReference<Rule[]> pending = new AtomicReference<Rule[]>();
+	private final LatencyHistogram decision;
+	private final AtomicLong reloads;
+	private final AtomicLong reloadErrors;
+
+	/**
+	 * Loads and compiles the rules.
+	 *
+	 * @param recent the state the rules are evaluated against
+	 * @param metrics
+	 * @throws IllegalArgumentException if the rules do not compile
+	 */
+	public FraudRules(RecentPurchases recent, AgentMetrics metrics) {
+		this.recent = recent;
+		velocity = new VelocityWindows(Math.max(1, HashRing.PARTITIONS), metrics);
+		this.metrics = metrics;
+		decision = metrics.histogram("rules.decision");
+		reloads = metrics.counter("rules.reloads");
+		reloadErrors = metrics.counter("rules.reloadErrors");
+		evicted = metrics.counter("recent.evicted");
+		String text;
+		String source;
+		file = findFile();
+		try {
+			if (file != null) {
+				text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+				source = file.getPath();
+			}
+			else {
+				InputStream in = FraudRules.class.getClassLoader().getResourceAsStream("fraud.rules");
+				text = in != null ? readAll(in) : DEFAULT_RULES;
+				source = in != null ? "the classpath" : "the built-in default";
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Failed to read the fraud rules", e);
+		}
+		rules = bind(compile(text, metrics));
+		logger.info("Loaded " + rules.length + " fraud rules from " + source);
+	}
+
+	private static File findFile() {
+		if (RULES_FILE != null) {
+			return new File(RULES_FILE);
+		}
+		URL url = FraudRules.class.getClassLoader().getResource("fraud.rules");
+		if (url != null && "file".equals(url.getProtocol())) {
+			try {
+				return new File(url.toURI());
+			} catch (URISyntaxException e) {
+				// not a plain file after all, load it once from the classpath
+			}
+		}
+		return null;
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				bytes.write(buffer, 0, n);
+			}
+			return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Starts a daemon thread that recompiles the rule file when it changes. Does nothing if the rules did
+	 * not come from a file, or geek2.fraud.rules.checkSecs is not positive.
+	 */
+	public void startWatching() {
+		if (file == null || CHECK_SECS <= 0) {
+			return;
+		}
+		Thread watcher = new Thread(new Runnable() {
+			public void run() {
+				long lastModified = file.lastModified();
+				try {
+					while (true) {
+						Thread.sleep(CHECK_SECS * 1000L);
+						long modified = file.lastModified();
+						if (modified == lastModified) {
+							continue;
+						}
+						lastModified = modified;
+						try {
+							Rule[] compiled = compile(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), metrics);
+							pending.set(compiled);
+							reloads.incrementAndGet();
+							logger.info("Reloaded " + compiled.length + " fraud rules from " + file);
+						} catch (IOException | IllegalArgumentException e) {
+							reloadErrors.incrementAndGet();
+							logger.error("Keeping the current fraud rules, failed to reload " + file, e);
+						}
+					}
+				} catch (InterruptedException e) {
+					// agent is shutting down
+				}
+			}
+		}, "fraud-rules");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Evaluates every rule against a purchase. Called on the processing thread, before the purchase is
+	 * recorded.
+	 *
+	 * @param clientID
+	 * @param client the client's slot in RecentPurchases
+	 * @param location the purchase's location id
+	 * @param timestamp
+	 * @param amount
+	 * @return the first rule, in file order, that the purchase matched, or null
+	 */
+	public Rule evaluate(String clientID, int client, int location, long timestamp, double amount) {
+		if (pending.get() != null) {
+			rules = bind(pending.getAndSet(null));
+		}
+		velocity.advance(clock(clientID), timestamp);
+		if (sketches != null) {
+			sketches.select(clientID, location, timestamp);
+			selectedClient = clientID;
+			selectedLocation = location;
+			selectedTimestamp = timestamp;
+		}
+		long start = System.nanoTime();
+		long ruleStart = start;
+		Rule first = null;
+		for (Rule rule : rules) {
+			boolean bMatched = rule.matches(recent, velocity, client, location, timestamp, amount);
+			long end = System.nanoTime();
+			rule.nanos.record(end - ruleStart);
+			ruleStart = end;
+			if (bMatched) {
+				rule.fired.incrementAndGet();
+				if (first == null) {
+					first = rule;
+				}
+			}
+		}
+		decision.record(ruleStart - start);
+		return first;
+	}
+
+	/**
+	 * Adds a purchase to the state the rules are evaluated against: the client's ring of recent purchases,
+	 * the velocity windows and the sketches.
+	 *
+	 * @param clientID
+	 * @param client the client's slot in RecentPurchases
+	 * @param location the purchase's location id
+	 * @param timestamp
+	 * @param amount
+	 */
+	public void record(String clientID, int client, int location, long timestamp, double amount) {
+		recent.record(client, location, timestamp, amount);
+		velocity.add(client, clock(clientID), timestamp, amount);
+		if (sketches != null) {
+			if (clientID != selectedClient || location != selectedLocation || timestamp != selectedTimestamp) {
+				sketches.select(clientID, location, timestamp);
+			}
+			sketches.add(amount);
+			selectedClient = null;
+		}
+		if (timestamp >= nextSweep && idleMillis != Long.MAX_VALUE) {
+			evictIdle();
+			nextSweep = timestamp + Math.max(idleMillis, IDLE_SWEEP_MILLIS);
+		}
+	}
+
+	/**
+	 * Forgets the clients with no purchase for longer than any rule looks back, by their own clocks, with
+	 * whatever is left of them in the velocity windows.
+	 */
+	private void evictIdle() {
+		int slots = recent.slots();
+		boolean[] idle = new boolean[slots];
+		int n = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			String clientID = recent.clientID(slot);
+			if (clientID != null && recent.latestTimestamp(slot) < velocity.time(clock(clientID)) - idleMillis) {
+				idle[slot] = true;
+				n++;
+			}
+		}
+		if (n == 0) {
+			return;
+		}
+		// entries of windows no rule uses any more may still be due
+		velocity.drain(idle, (client, windowMillis, due, cents) -> { });
+		for (int slot = 0; slot < slots; slot++) {
+			if (idle[slot]) {
+				recent.forget(slot);
+			}
+		}
+		evicted.addAndGet(n);
+	}
+
+	/**
+	 * Writes the recent purchases and velocity window entries of the clients in a partition, and forgets
+	 * them, for another instance to take over with takeOver().
+	 *
+	 * @param partition
+	 * @param out
+	 * @throws IOException
+	 */
+	public void handOff(int partition, DataOutputStream out) throws IOException {
+		int slots = recent.slots();
+		boolean[] moving = new boolean[slots];
+		// the clients' order in the snapshot, which the velocity entries refer to
+		final int[] ordinals = new int[slots];
+		int clients = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			String clientID = recent.clientID(slot);
+			if (clientID != null && HashRing.partition(clientID, HashRing.PARTITIONS) == partition) {
+				moving[slot] = true;
+				ordinals[slot] = clients++;
+			}
+		}
+		out.writeInt(clients);
+		for (int slot = 0; slot < slots; slot++) {
+			if (moving[slot]) {
+				int count = recent.count(slot);
+				out.writeUTF(recent.clientID(slot));
+				out.writeInt(count);
+				// oldest first, the order they are recorded in
+				for (int back = count - 1; back >= 0; back--) {
+					out.writeUTF(recent.locationName(recent.locationAt(slot, back)));
+					out.writeLong(recent.timestampAt(slot, back));
+					out.writeDouble(recent.amountAt(slot, back));
+				}
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream entries = new DataOutputStream(bytes);
+		final int[] entryCount = new int[1];
+		velocity.drain(moving, (client, windowMillis, due, cents) -> {
+			try {
+				entries.writeInt(ordinals[client]);
+				entries.writeLong(windowMillis);
+				entries.writeLong(due);
+				entries.writeLong(cents);
+				entryCount[0]++;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		out.writeInt(entryCount[0]);
+		bytes.writeTo(out);
+		for (int slot = 0; slot < slots; slot++) {
+			if (moving[slot]) {
+				recent.forget(slot);
+			}
+		}
+	}
+
+	/**
+	 * Adds the clients written by handOff() on another instance.
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	public void takeOver(DataInputStream in) throws IOException {
+		int[] slots = new int[in.readInt()];
+		int[] clocks = new int[slots.length];
+		for (int i = 0; i < slots.length; i++) {
+			String clientID = in.readUTF();
+			int slot = recent.clientSlot(clientID);
+			slots[i] = slot;
+			clocks[i] = clock(clientID);
+			for (int count = in.readInt(); count > 0; count--) {
+				recent.record(slot, recent.locationId(in.readUTF()), in.readLong(), in.readDouble());
+			}
+		}
+		for (int entries = in.readInt(); entries > 0; entries--) {
+			int ordinal = in.readInt();
+			velocity.restore(slots[ordinal], clocks[ordinal], in.readLong(), in.readLong(), in.readLong());
+		}
+	}
+
+	/**
+	 * @param clientID
+	 * @return the client's clock in the velocity windows: its partition, so that the purchases held for a
+	 * partition while it is handed over are counted in its own time
+	 */
+	private int clock(String clientID) {
+		if (HashRing.PARTITIONS == 0) {
+			return 0;
+		}
+		if (clientID != clockClient) {
+			clockClient = clientID;
+			clientClock = HashRing.partition(clientID, HashRing.PARTITIONS);
+		}
+		return clientClock;
+	}
+
+	/**
+	 * Resolves the location names, time windows and sketches of the rules; on the processing thread, which
+	 * owns them. The sketches are created for the first rules that use them, and dropped with the last.
+	 * Works out how long the rules look back, which is how long an idle client is remembered.
+	 */
+	private Rule[] bind(Rule[] compiled) {
+		boolean bSketched = false;
+		long lookback = 0;
+		for (Rule rule : compiled) {
+			for (Condition condition : rule.conditions) {
+				bSketched |= condition instanceof Sketched;
+				if (condition instanceof Lookback) {
+					lookback = Math.max(lookback, ((Lookback) condition).lookbackMillis(recent.getLocations()));
+				}
+			}
+		}
+		if (lookback != idleMillis) {
+			idleMillis = lookback;
+			logger.info(lookback == Long.MAX_VALUE ? "Remembering every client, a speed rule can match after any time"
+					: "Forgetting clients after " + lookback + " ms without a purchase");
+		}
+		if (!bSketched) {
+			sketches = null;
+			selectedClient = null;
+		}
+		else if (sketches == null) {
+			sketches = new ClientSketches(metrics);
+		}
+		for (Rule rule : compiled) {
+			for (Condition condition : rule.conditions) {
+				if (condition instanceof Bound) {
+					((Bound) condition).bind(recent, velocity, sketches);
+				}
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * Compiles a rule file.
+	 *
+	 * @param text the contents of the file
+	 * @param metrics
+	 * @return the rules, in the order of the file
+	 * @throws IllegalArgumentException naming the line that does not compile
+	 */
+	static Rule[] compile(String text, AgentMetrics metrics) {
+		ArrayList<Rule> compiled = new ArrayList<Rule>();
+		String[] lines = text.split("\r?\n");
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			Matcher m = RULE.matcher(line);
+			if (!m.matches() || m.group(2).isEmpty()) {
+				throw new IllegalArgumentException("line " + (i + 1) + ": expected <name>: <conditions> [=> <alert>]");
+			}
+			String[] parts = m.group(2).split("\\s+and\\s+");
+			Condition[] conditions = new Condition[parts.length];
+			for (int j = 0; j < parts.length; j++) {
+				try {
+					conditions[j] = condition(parts[j].trim());
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("line " + (i + 1) + ": " + e.getMessage());
+				}
+			}
+			compiled.add(new Rule(m.group(1), conditions, m.group(3), metrics));
+		}
+		return compiled.toArray(new Rule[compiled.size()]);
+	}
+
+	private static Condition condition(String s) {
+		Matcher m = AMOUNT.matcher(s);
+		if (m.matches()) {
+			final int op = operator(m.group(1));
+			final double threshold = number(m.group(2));
+			return new Condition() {
+				public boolean matches(RecentPurchases recent, VelocityWindows velocity, int client, int location, long timestamp, double amount) {
+					return compare(amount, op, threshold);
+				}
+			};
+		}
+		m = WINDOWED.matcher(s);
+		if (m.matches()) {
+			return new Windowed(duration(m.group(4)), m.group(1).equals("sum"), operator(m.group(2)), number(m.group(3)));
+		}
+		m = LOCATION_SET.matcher(s);
+		if (m.matches()) {
+			String[] names = m.group(2).trim().split("\\s*,\\s*");
+			return new LocationSet(names, m.group(1) != null);
+		}
+		m = SPEED.matcher(s);
+		if (m.matches()) {
+			return new Speed(operator(m.group(1)), number(m.group(2)));
+		}
+		m = LOCATION_CHANGED.matcher(s);
+		if (m.matches()) {
+			return new LocationChanged(duration(m.group(1)));
+		}
+		m = SKETCHED.matcher(s);
+		if (m.matches()) {
+			int feature = m.group(1).equals("frequency") ? Sketched.FREQUENCY : m.group(1).equals("spend") ? Sketched.SPEND
+					: Sketched.LOCATIONS;
+			return new Sketched(feature, operator(m.group(2)), number(m.group(3)));
+		}
+		if (s.equals("hot")) {
+			return new Sketched(Sketched.HOT, GT, 0);
+		}
+		throw new IllegalArgumentException("unknown condition '" + s + "'");
+	}
+
+	private static int operator(String op) {
+		return op.equals(">") ? GT : op.equals(">=") ? GE : op.equals("<") ? LT : LE;
+	}
+
+	private static boolean compare(double value, int op, double threshold) {
+		switch (op) {
+		case GT:
+			return value > threshold;
+		case GE:
+			return value >= threshold;
+		case LT:
+			return value < threshold;
+		default:
+			return value <= threshold;
+		}
+	}
+
+	private static double number(String s) {
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("bad number '" + s + "'");
+		}
+	}
+
+	private static long duration(String s) {
+		Matcher m = DURATION.matcher(s);
+		if (!m.matches()) {
+			throw new IllegalArgumentException("bad duration '" + s + "', expected e.g. 500ms, 30s, 5m, 1h or 1d");
+		}
+		long n = Long.parseLong(m.group(1));
+		String unit = m.group(2);
+		return unit.equals("ms") ? n : unit.equals("s") ? n * 1000 : unit.equals("m") ? n * 60000
+				: unit.equals("h") ? n * 3600000 : n * 86400000;
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Assigns partitions to instances by consistent hashing. Clients are hashed to one of a fixed number of
+ * partitions, -Dgeek2.partitions, the same for every producer and agent; each instance is placed on a ring at
+ * geek2.partition.vnodes points (default 64), and a partition belongs to the instance at the first point
+ * at or after the partition's own. An instance joining or leaving so only moves the partitions next to its
+ * points, about 1/n of them, and the many points per instance even out the share each gets.
+ *
+ * The hashes are defined here, not taken from String.hashCode(), so that every JVM places the clients and
+ * instances alike. Immutable.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class HashRing {
+	public static final int PARTITIONS = Math.max(0, Integer.getInteger("geek2.partitions", 0));
+	public static final int VNODES = Math.max(1, Integer.getInteger("geek2.partition.vnodes", 64));
+
+	private final String[] owners;
+
+	/**
+	 * @param instances the members; may be empty, when no partition has an owner
+	 * @param partitions
+	 */
+	public HashRing(Collection<String> instances, int partitions) {
+		owners = new String[partitions];
+		if (instances.isEmpty()) {
+			return;
+		}
+		// the points, sorted, each with the instance in its low bits
+		String[] members = instances.toArray(new String[instances.size()]);
+		Arrays.sort(members);
+		long[] points = new long[members.length * VNODES];
+		for (int m = 0; m < members.length; m++) {
+			for (int v = 0; v < VNODES; v++) {
+				points[m * VNODES + v] = (hash(members[m] + "#" + v) & ~0xFFFFL) | m;
+			}
+		}
+		Arrays.sort(points);
+		for (int p = 0; p < partitions; p++) {
+			long point = hash("partition#" + p) & ~0xFFFFL;
+			int i = Arrays.binarySearch(points, point);
+			if (i < 0) {
+				i = -i - 1;
+			}
+			owners[p] = members[(int) (points[i % points.length] & 0xFFFF)];
+		}
+	}
+
+	/**
+	 * @param partition
+	 * @return the instance that owns the partition, or null if there are none
+	 */
+	public String owner(int partition) {
+		return owners[partition];
+	}
+
+	/**
+	 * @param clientID
+	 * @param partitions
+	 * @return the client's partition, 0 to partitions-1
+	 */
+	public static int partition(String clientID, int partitions) {
+		return partition(hash(clientID), partitions);
+	}
+
+	/**
+	 * @param clientHash the hash() of a client ID
+	 * @param partitions
+	 * @return the client's partition, 0 to partitions-1
+	 */
+	public static int partition(long clientHash, int partitions) {
+		return (int) ((clientHash >>> 1) % partitions);
+	}
+
+	/**
+	 * A 64-bit FNV-1a hash of the string's chars, mixed by the MurmurHash3 finalizer.
+	 */
+	static long hash(String s) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB93FE1A85A53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
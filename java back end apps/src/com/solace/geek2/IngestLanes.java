@@ -0,0 +1,350 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The queue between the transport's delivery thread and an agent's processing thread, split into lanes so
+ * that a flood of one kind of message does not hold up another. Each incoming message is classified into a
+ * lane, by its topic or its priority header, and the processing thread takes from the lanes either by
+ * weighted round-robin (each lane in turn, up to its weight in messages) or by strict priority (always the
+ * first lane that has anything). Each lane is bounded; a full lane blocks the delivery thread, as the single
+ * queue did.
+ *
+ * The lanes are configured with system properties, in priority order:
+ *
+ *     -Dgeek2.lanes=fraud:4,routine:1                  lane names and weights (default one lane, "default")
+ *     -Dgeek2.lanes.fraud=fraud/>,priority>=5         what goes into a lane: topic patterns, or priority>=N
+ *     -Dgeek2.lanes.policy=wrr                        or strict
+ *     -Dgeek2.lanes.capacity=100                      per lane
+ *
+ * With -Dgeek2.spill=true a message that finds its lane full is not waited for but appended to the lane's
+ * own SpillQueue on disk, and so is everything after it for that lane until its spilled messages have been
+ * replayed into it, in order, as it drains. Other lanes are not held up: a lane with room takes its
+ * messages straight away. Only AbstractAgent's direct subscriptions spill, see enableSpill().
+ *
+ * A message matching several lanes goes into the first of them. Messages that match none go into the first
+ * lane without rules, or the last lane if every lane has rules. Each lane keeps the counters
+ * lane.[name].messages, lane.[name].depth (current) and lane.[name].maxDepth, and a lane.[name].wait
+ * histogram of the time from put() to being taken.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class IngestLanes {
+	private static final Logger logger = Logger.getLogger(IngestLanes.class.getName());
+	public static final int CAPACITY = Math.max(1, Integer.getInteger("geek2.lanes.capacity", 100));
+	public static final boolean STRICT = "strict".equals(System.getProperty("geek2.lanes.policy"));
+
+	private static class Lane {
+		final String name;
+		final int weight;
+		// -1 if the lane takes no messages by priority
+		int minPriority = -1;
+		boolean bHasRules;
+		// a ring of messages and the times they were put
+		final TransportMessage[] messages = new TransportMessage[CAPACITY];
+		final long[] putNanos = new long[CAPACITY];
+		int head;
+		int count;
+		// overflow on disk, null unless enabled
+		SpillQueue spill;
+		final AtomicLong taken;
+		final AtomicLong depth;
+		final AtomicLong maxDepth;
+		final LatencyHistogram wait;
+
+		Lane(String name, int weight, AgentMetrics metrics) {
+			this.name = name;
+			this.weight = weight;
+			taken = metrics.counter("lane." + name + ".messages");
+			depth = metrics.counter("lane." + name + ".depth");
+			maxDepth = metrics.counter("lane." + name + ".maxDepth");
+			wait = metrics.histogram("lane." + name + ".wait");
+		}
+	}
+
+	private final Lane[] lanes;
+	private final Lane defaultLane;
+	private final TopicRouter<Lane> topicRules = new TopicRouter<Lane>();
+	private final ArrayList<Lane> matched = new ArrayList<Lane>();
+	private final AgentMetrics metrics;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private int total;
+	private boolean bSpill;
+	// weighted round-robin position: the lane being served and how many more it may have in a row
+	private int current;
+	private int credit;
+
+	/**
+	 * Sets up the lanes from the system properties.
+	 *
+	 * @param metrics
+	 */
+	public IngestLanes(AgentMetrics metrics) {
+		this.metrics = metrics;
+		String[] specs = System.getProperty("geek2.lanes", "default:1").split(",");
+		lanes = new Lane[specs.length];
+		Lane firstWithoutRules = null;
+		for (int i = 0; i < specs.length; i++) {
+			String[] nameAndWeight = specs[i].trim().split(":");
+			int weight = nameAndWeight.length > 1 ? Math.max(1, Integer.parseInt(nameAndWeight[1].trim())) : 1;
+			Lane lane = new Lane(nameAndWeight[0], weight, metrics);
+			lanes[i] = lane;
+			String rules = System.getProperty("geek2.lanes." + lane.name);
+			if (rules != null) {
+				for (String rule : rules.split(",")) {
+					rule = rule.trim();
+					if (rule.startsWith("priority>=")) {
+						lane.minPriority = Integer.parseInt(rule.substring("priority>=".length()).trim());
+					}
+					else {
+						topicRules.add(rule, lane);
+					}
+					lane.bHasRules = true;
+				}
+			}
+			if (!lane.bHasRules && firstWithoutRules == null) {
+				firstWithoutRules = lane;
+			}
+		}
+		defaultLane = firstWithoutRules != null ? firstWithoutRules : lanes[lanes.length - 1];
+		credit = lanes[0].weight;
+		if (lanes.length > 1) {
+			logger.info(lanes.length + " ingest lanes, served by " + (STRICT ? "strict priority" : "weighted round-robin"));
+		}
+	}
+
+	/**
+	 * Spills messages that do not fit in their lane from now on, rather than wait for room. The messages must
+	 * not need acknowledging, as the ones replayed from the spill queues cannot be.
+	 *
+	 * @param name the owner, e.g. the agent's class name, which the spill queues are named after
+	 */
+	public void enableSpill(String name) {
+		lock.lock();
+		try {
+			for (Lane lane : lanes) {
+				lane.spill = new SpillQueue(name + "-" + lane.name, metrics);
+			}
+			bSpill = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Deletes the spill queues, if any.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			for (Lane lane : lanes) {
+				if (lane.spill != null) {
+					lane.spill.close();
+					lane.spill = null;
+				}
+			}
+			bSpill = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a message in its lane, or in the lane's spill queue if the lane is full or has messages spilled
+	 * already. Waits while the lane is full and there is no spill queue or it is full too.
+	 *
+	 * @param msg
+	 * @throws InterruptedException
+	 */
+	public void put(TransportMessage msg) throws InterruptedException {
+		lock.lock();
+		try {
+			Lane lane = classify(msg);
+			while (true) {
+				if (lane.spill != null && (!lane.spill.isEmpty() || lane.count == CAPACITY)) {
+					if (lane.spill.append(msg)) {
+						notEmpty.signal();
+						return;
+					}
+				}
+				else if (lane.count < CAPACITY) {
+					break;
+				}
+				notFull.await();
+			}
+			enqueue(lane, msg);
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void enqueue(Lane lane, TransportMessage msg) {
+		int tail = (lane.head + lane.count) % CAPACITY;
+		lane.messages[tail] = msg;
+		lane.putNanos[tail] = System.nanoTime();
+		lane.count++;
+		lane.depth.set(lane.count);
+		if (lane.count > lane.maxDepth.get()) {
+			lane.maxDepth.set(lane.count);
+		}
+		total++;
+	}
+
+	/**
+	 * Moves spilled messages back into their lanes, oldest first, while there is room.
+	 */
+	private void refill() {
+		for (Lane lane : lanes) {
+			TransportMessage spilled;
+			while (lane.count < CAPACITY && (spilled = lane.spill.peek()) != null) {
+				lane.spill.remove();
+				enqueue(lane, spilled);
+			}
+		}
+	}
+
+	private boolean isEmpty() {
+		if (total > 0) {
+			return false;
+		}
+		for (int i = 0; bSpill && i < lanes.length; i++) {
+			if (!lanes[i].spill.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the next message by the lane policy, or null if every lane is empty
+	 */
+	public TransportMessage poll() {
+		lock.lock();
+		try {
+			return isEmpty() ? null : next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param timeout
+	 * @param unit
+	 * @return the next message by the lane policy, or null if none arrived within the timeout
+	 * @throws InterruptedException
+	 */
+	public TransportMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (isEmpty()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the next message by the lane policy, waiting for one if need be
+	 * @throws InterruptedException
+	 */
+	public TransportMessage take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (isEmpty()) {
+				notEmpty.await();
+			}
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called with the lock held.
+	 */
+	private Lane classify(TransportMessage msg) {
+		int priority = msg.getPriority();
+		if (priority >= 0) {
+			for (Lane lane : lanes) {
+				if (lane.minPriority >= 0 && priority >= lane.minPriority) {
+					return lane;
+				}
+			}
+		}
+		if (topicRules.size() == 0 || topicRules.route(msg.getTopic(), matched) == 0) {
+			return defaultLane;
+		}
+		// the first lane, in priority order, of those the topic matched
+		for (Lane lane : lanes) {
+			if (matched.contains(lane)) {
+				return lane;
+			}
+		}
+		return defaultLane;
+	}
+
+	/**
+	 * Takes the next message; called with the lock held and at least one message queued or spilled.
+	 */
+	private TransportMessage next() {
+		if (bSpill) {
+			refill();
+		}
+		Lane lane;
+		if (STRICT) {
+			int i = 0;
+			while (lanes[i].count == 0) {
+				i++;
+			}
+			lane = lanes[i];
+		}
+		else {
+			// move on when the lane has had its turn or has nothing, refilling the next lane's credit
+			while (credit == 0 || lanes[current].count == 0) {
+				current = (current + 1) % lanes.length;
+				credit = lanes[current].weight;
+			}
+			credit--;
+			lane = lanes[current];
+		}
+		TransportMessage msg = lane.messages[lane.head];
+		lane.wait.record(System.nanoTime() - lane.putNanos[lane.head]);
+		lane.messages[lane.head] = null;
+		lane.head = (lane.head + 1) % CAPACITY;
+		lane.count--;
+		lane.depth.set(lane.count);
+		lane.taken.incrementAndGet();
+		total--;
+		notFull.signalAll();
+		return msg;
+	}
+}
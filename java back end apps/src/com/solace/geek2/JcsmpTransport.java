@@ -0,0 +1,378 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.solacesystems.jcsmp.BytesMessage;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.ConsumerFlowProperties;
+import com.solacesystems.jcsmp.DeliveryMode;
+import com.solacesystems.jcsmp.FlowReceiver;
+import com.solacesystems.jcsmp.JCSMPException;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.JCSMPProperties;
+import com.solacesystems.jcsmp.JCSMPSendMultipleEntry;
+import com.solacesystems.jcsmp.JCSMPSession;
+import com.solacesystems.jcsmp.JCSMPStreamingPublishCorrelatingEventHandler;
+import com.solacesystems.jcsmp.JCSMPStreamingPublishEventHandler;
+import com.solacesystems.jcsmp.ProducerFlowProperties;
+import com.solacesystems.jcsmp.TextMessage;
+import com.solacesystems.jcsmp.XMLMessageConsumer;
+import com.solacesystems.jcsmp.XMLMessageListener;
+import com.solacesystems.jcsmp.XMLMessageProducer;
+import com.solacesystems.jcsmp.transaction.TransactedSession;
+
+/**
+ * The Transport on a Solace broker session.
+ *
+ * Topic subscriptions share the session's one direct consumer; when there is more than one, each message
+ * goes to the listeners whose subscription matches its topic. Queues are bound with client acknowledgement.
+ * Outbound slots are sent as BytesMessages with sendMultiple(); compressible payloads at or above the
+ * compression threshold are deflated on the way out, and guaranteed slots are published persistent with the slot as
+ * the correlation key. A transacted queue binding gets a TransactedSession of its own, with a synchronous
+ * flow and a producer that always publishes persistent.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class JcsmpTransport implements Transport {
+	private static final Logger logger = Logger.getLogger(JcsmpTransport.class.getName());
+
+	private static class Subscription {
+		final String pattern;
+		final Listener listener;
+		Subscription(String pattern, Listener listener) {
+			this.pattern = pattern;
+			this.listener = listener;
+		}
+	}
+
+	private final JCSMPSession session;
+	private final AgentMetrics metrics;
+	private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private XMLMessageConsumer directConsumer = null;
+	private final CopyOnWriteArrayList<FlowReceiver> flows = new CopyOnWriteArrayList<FlowReceiver>();
+	private final CopyOnWriteArrayList<TransactedSession> transactedSessions = new CopyOnWriteArrayList<TransactedSession>();
+
+	/**
+	 * Creates and connects the session.
+	 *
+	 * @param host msg-backbone-ip:port
+	 * @param vpn message-vpn
+	 * @param username client-username
+	 * @param password
+	 * @param metrics receives the outbound compression counters
+	 * @throws JCSMPException
+	 */
+	public JcsmpTransport(String host, String vpn, String username, String password, AgentMetrics metrics) throws JCSMPException {
+		this.metrics = metrics;
+		final JCSMPProperties properties = new JCSMPProperties();
+		properties.setProperty(JCSMPProperties.HOST, host);
+		properties.setProperty(JCSMPProperties.VPN_NAME, vpn);
+		properties.setProperty(JCSMPProperties.USERNAME, username);
+		properties.setProperty(JCSMPProperties.PASSWORD, password);
+		// let the API have as many guaranteed messages unacknowledged as the publisher's window
+		properties.setProperty(JCSMPProperties.PUB_ACK_WINDOW_SIZE, OutboundPublisher.WINDOW);
+		// stamp what we publish, and what we receive from publishers that don't, so agents know a message's age
+		properties.setProperty(JCSMPProperties.GENERATE_SEND_TIMESTAMPS, true);
+		properties.setProperty(JCSMPProperties.GENERATE_RCV_TIMESTAMPS, true);
+		session = JCSMPFactory.onlyInstance().createSession(properties);
+		session.connect();
+	}
+
+	@Override
+	public synchronized void subscribe(String topicPattern, Listener listener) throws JCSMPException {
+		subscriptions.add(new Subscription(topicPattern, listener));
+		if (directConsumer == null) {
+			directConsumer = session.getMessageConsumer(new XMLMessageListener() {
+				public void onReceive(BytesXMLMessage msg) {
+					dispatch(msg);
+				}
+				public void onException(JCSMPException e) {
+					logger.warn("Consumer received exception", e);
+				}
+			});
+			directConsumer.start();
+		}
+		session.addSubscription(JCSMPFactory.onlyInstance().createTopic(topicPattern));
+	}
+
+	@Override
+	public synchronized void unsubscribe(String topicPattern, Listener listener) throws JCSMPException {
+		for (Subscription subscription : subscriptions) {
+			if (subscription.pattern.equals(topicPattern) && subscription.listener == listener) {
+				subscriptions.remove(subscription);
+				session.removeSubscription(JCSMPFactory.onlyInstance().createTopic(topicPattern));
+				return;
+			}
+		}
+	}
+
+	private void dispatch(BytesXMLMessage msg) {
+		JcsmpMessage received = new JcsmpMessage(msg, false);
+		if (subscriptions.size() == 1) {
+			subscriptions.get(0).listener.onMessage(received);
+			return;
+		}
+		String topic = received.getTopic();
+		for (Subscription subscription : subscriptions) {
+			if (TopicMatcher.matches(subscription.pattern, topic)) {
+				subscription.listener.onMessage(received);
+			}
+		}
+	}
+
+	@Override
+	public void bindQueue(String queueName, final Listener listener) throws JCSMPException {
+		ConsumerFlowProperties flowProperties = new ConsumerFlowProperties();
+		flowProperties.setEndpoint(JCSMPFactory.onlyInstance().createQueue(queueName));
+		flowProperties.setAckMode(JCSMPProperties.SUPPORTED_MESSAGE_ACK_CLIENT);
+		FlowReceiver flow = session.createFlow(new XMLMessageListener() {
+			public void onReceive(BytesXMLMessage msg) {
+				listener.onMessage(new JcsmpMessage(msg, true));
+			}
+			public void onException(JCSMPException e) {
+				logger.warn("Flow received exception", e);
+			}
+		}, flowProperties);
+		flow.start();
+		flows.add(flow);
+	}
+
+	@Override
+	public Transaction bindTransactedQueue(String queueName) throws JCSMPException {
+		final TransactedSession transactedSession = session.createTransactedSession();
+		transactedSessions.add(transactedSession);
+		ConsumerFlowProperties flowProperties = new ConsumerFlowProperties();
+		flowProperties.setEndpoint(JCSMPFactory.onlyInstance().createQueue(queueName));
+		// no listener: the flow is read with receive()
+		final FlowReceiver flow = transactedSession.createFlow(null, flowProperties, null);
+		flow.start();
+		XMLMessageProducer producer = transactedSession.createProducer(new ProducerFlowProperties(), new JCSMPStreamingPublishEventHandler() {
+			public void responseReceived(String messageID) {
+				// there are no acks per message in a transaction, commit() reports the outcome
+			}
+			public void handleError(String messageID, JCSMPException e, long timestamp) {
+				logger.warn("Transacted producer received error", e);
+			}
+		});
+		final JcsmpPublisher publisher = new JcsmpPublisher(producer, metrics, true);
+		return new Transaction() {
+			public TransportMessage receive(int timeoutMillis) throws JCSMPException {
+				BytesXMLMessage msg = flow.receive(timeoutMillis);
+				return msg == null ? null : new JcsmpMessage(msg, false);
+			}
+			public int send(OutboundPublisher.Slot[] slots, int offset, int count) throws JCSMPException {
+				return publisher.send(slots, offset, count);
+			}
+			public void commit() throws JCSMPException {
+				transactedSession.commit();
+			}
+			public void rollback() throws JCSMPException {
+				transactedSession.rollback();
+			}
+		};
+	}
+
+	@Override
+	public Publisher createPublisher(AckListener acks) throws JCSMPException {
+		return new JcsmpPublisher(session.getMessageProducer(new AckHandler(acks)), metrics, false);
+	}
+
+	@Override
+	public void close() {
+		if (directConsumer != null) {
+			directConsumer.close();
+		}
+		for (FlowReceiver flow : flows) {
+			flow.close();
+		}
+		for (TransactedSession transactedSession : transactedSessions) {
+			// rolls back anything not committed
+			transactedSession.close();
+		}
+		session.closeSession();
+	}
+
+	/**
+	 * A received JCSMP message.
+	 */
+	private static class JcsmpMessage implements TransportMessage {
+		private final BytesXMLMessage msg;
+		private final boolean bClientAck;
+
+		JcsmpMessage(BytesXMLMessage msg, boolean bClientAck) {
+			this.msg = msg;
+			this.bClientAck = bClientAck;
+		}
+
+		public String getTopic() {
+			return msg.getDestination().getName();
+		}
+
+		public CharSequence getText() {
+			return msg instanceof TextMessage ? ((TextMessage) msg).getText() : null;
+		}
+
+		public ByteBuffer getPayload() {
+			// the message's own attachment buffer rather than a copy from getData()
+			return msg instanceof TextMessage ? null : msg.getAttachmentByteBuffer();
+		}
+
+		public String getContentType() {
+			return msg.getHTTPContentType();
+		}
+
+		public String getContentEncoding() {
+			return msg.getHTTPContentEncoding();
+		}
+
+		public int getPriority() {
+			return msg.getPriority();
+		}
+
+		public long getSentMillis() {
+			Long sent = msg.getSenderTimestamp();
+			return sent != null ? sent : msg.getReceiveTimestamp();
+		}
+
+		public long getMessageId() {
+			return msg.getMessageIdLong();
+		}
+
+		public void ack() {
+			if (bClientAck) {
+				msg.ackMessage();
+			}
+		}
+	}
+
+	/**
+	 * Sends slots with sendMultiple(). Only used on the publisher thread, or for a transaction, on the thread
+	 * that owns it.
+	 */
+	private static class JcsmpPublisher implements Publisher {
+		private final XMLMessageProducer producer;
+		// a transacted producer publishes everything persistent, and without correlation: commit() reports
+		private final boolean bTransacted;
+		private final JCSMPSendMultipleEntry[] entries = new JCSMPSendMultipleEntry[OutboundPublisher.BATCH_SIZE];
+		private final PayloadCompression compression = new PayloadCompression();
+		private final AtomicLong compressedOut;
+		private final AtomicLong compressedOutBytes;
+		private final AtomicLong compressedOutRawBytes;
+		private final AtomicLong compressedOutNanos;
+
+		JcsmpPublisher(XMLMessageProducer producer, AgentMetrics metrics, boolean bTransacted) {
+			this.producer = producer;
+			this.bTransacted = bTransacted;
+			for (int i = 0; i < entries.length; i++) {
+				entries[i] = JCSMPFactory.onlyInstance().createSendMultipleEntry(null, null);
+			}
+			compressedOut = metrics.counter("compression.out.messages");
+			compressedOutBytes = metrics.counter("compression.out.compressedBytes");
+			compressedOutRawBytes = metrics.counter("compression.out.rawBytes");
+			compressedOutNanos = metrics.counter("compression.out.cpuNanos");
+		}
+
+		@SuppressWarnings("deprecation")
+		public int send(OutboundPublisher.Slot[] slots, int offset, int count) throws JCSMPException {
+			for (int i = 0; i < count; i++) {
+				OutboundPublisher.Slot slot = slots[offset + i];
+				// each slot keeps its message: a guaranteed one is held by the API until it is acknowledged
+				BytesMessage message = (BytesMessage) slot.transportMessage;
+				if (message == null) {
+					message = JCSMPFactory.onlyInstance().createMessage(BytesMessage.class);
+					slot.transportMessage = message;
+				}
+				// a retry still has its payload attached from the first attempt
+				if (slot.attempts == 0) {
+					OutboundBuffer buffer = slot.buffer;
+					int len = buffer.length();
+					// setData() would need an exact-size array per send; the attachment API copies a slice of our buffer
+					if (slot.compressible && PayloadCompression.shouldCompress(len)) {
+						long start = System.nanoTime();
+						int compressedLen = compression.compress(buffer.bytes(), 0, len);
+						compressedOutNanos.addAndGet(System.nanoTime() - start);
+						compressedOut.incrementAndGet();
+						compressedOutRawBytes.addAndGet(len);
+						compressedOutBytes.addAndGet(compressedLen);
+						message.writeNewAttachment(compression.getCompressed(), 0, compressedLen);
+						message.setHTTPContentEncoding(PayloadCompression.CONTENT_ENCODING);
+					}
+					else {
+						message.writeNewAttachment(buffer.bytes(), 0, len);
+						message.setHTTPContentEncoding(null);
+					}
+					message.setHTTPContentType(slot.contentType);
+				}
+				if (bTransacted) {
+					message.setDeliveryMode(DeliveryMode.PERSISTENT);
+					message.setCorrelationKey(null);
+				}
+				else if (slot.guaranteed) {
+					message.setDeliveryMode(DeliveryMode.PERSISTENT);
+					message.setCorrelationKey(slot);
+				}
+				else {
+					message.setDeliveryMode(DeliveryMode.DIRECT);
+					message.setCorrelationKey(null);
+				}
+				entries[i].setMessage(message).setDestination(slot.topic);
+			}
+			return producer.sendMultiple(entries, 0, count, 0);
+		}
+	}
+
+	/**
+	 * Passes the broker's acks for guaranteed messages on, by correlation key.
+	 */
+	private static class AckHandler implements JCSMPStreamingPublishCorrelatingEventHandler {
+		private final AckListener acks;
+
+		AckHandler(AckListener acks) {
+			this.acks = acks;
+		}
+
+		@Override
+		public void responseReceivedEx(Object key) {
+			acks.acked((OutboundPublisher.Slot) key);
+		}
+
+		@Override
+		public void handleErrorEx(Object key, JCSMPException e, long timestamp) {
+			if (key instanceof OutboundPublisher.Slot) {
+				acks.rejected((OutboundPublisher.Slot) key, e);
+			}
+			else {
+				// not tied to a message, e.g. the session going down
+				logger.warn("Producer received error", e);
+			}
+		}
+
+		@Override
+		public void responseReceived(String messageID) {
+			// superseded by responseReceivedEx()
+		}
+
+		@Override
+		public void handleError(String messageID, JCSMPException e, long timestamp) {
+			// superseded by handleErrorEx()
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+
+/**
+ * Runtime support for the generated JSON codecs (see CodecGenerator). This is a small forward-only JSON
+ * scanner: it does not build a tree of the document, it hands back positions, so a codec can decode the
+ * fields it is interested in and step over the rest character by character. Positions are indexes into
+ * the CharSequence, which for a Utf8Payload are byte offsets.
+ *
+ * It also holds the few writer helpers the generated encoders share.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public final class JsonCodecSupport {
+
+	private JsonCodecSupport() {
+	}
+
+	/**
+	 * @return the position of the first member key (or the closing brace) of the object starting at pos
+	 */
+	public static int beginObject(CharSequence json, int pos) throws JSONException {
+		return skipWhitespace(json, expect(json, skipWhitespace(json, pos), '{'));
+	}
+
+	/**
+	 * @return the position of the first element (or the closing bracket) of the array starting at pos
+	 */
+	public static int beginArray(CharSequence json, int pos) throws JSONException {
+		return skipWhitespace(json, expect(json, skipWhitespace(json, pos), '['));
+	}
+
+	/**
+	 * @return the position of the value that follows the key ending at keyEnd
+	 */
+	public static int valueStart(CharSequence json, int keyEnd) throws JSONException {
+		return skipWhitespace(json, expect(json, skipWhitespace(json, keyEnd), ':'));
+	}
+
+	/**
+	 * Steps over the separator after a member or element.
+	 *
+	 * @return the position of the next member or element, or of the closing brace or bracket
+	 */
+	public static int nextMember(CharSequence json, int pos) throws JSONException {
+		pos = skipWhitespace(json, pos);
+		if (peek(json, pos) == ',') {
+			pos = skipWhitespace(json, pos + 1);
+		}
+		return pos;
+	}
+
+	/**
+	 * @return true if the value spanning [start, end) is a quoted string
+	 */
+	public static boolean isString(CharSequence json, int start, int end) {
+		return end - start >= 2 && json.charAt(start) == '"';
+	}
+
+	/**
+	 * Decodes the string value spanning [start, end), which may also be a literal null.
+	 */
+	public static String parseString(CharSequence json, int start, int end) throws JSONException {
+		return isString(json, start, end) ? unescape(json, start, end) : null;
+	}
+
+	public static long parseLong(CharSequence json, int start, int end) throws JSONException {
+		return (long) parseDouble(json, start, end);
+	}
+
+	/**
+	 * Writes a member key, pre-encoded with its leading comma (e.g. ,"total":), dropping the comma for the
+	 * first member of an object.
+	 */
+	public static void writeKey(OutboundBuffer out, byte[] key, boolean first) {
+		if (first) {
+			out.write(key, 1, key.length - 1);
+		}
+		else {
+			out.write(key);
+		}
+	}
+
+	/**
+	 * @return the pre-encoded form of a member key, as writeKey() expects it
+	 */
+	public static byte[] encodeKey(String name) {
+		return (",\"" + name + "\":").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a number the way org.json does: whole values without a fraction.
+	 */
+	public static void writeNumber(OutboundBuffer out, double value) {
+		if (value == (long) value && Math.abs(value) < 1e15) {
+			long whole = (long) value;
+			if (whole < 0) {
+				out.writeByte('-');
+				whole = -whole;
+			}
+			out.writeDigits(whole);
+		}
+		else {
+			out.writeUtf8(Double.toString(value));
+		}
+	}
+
+	public static void writeNumber(OutboundBuffer out, long value) {
+		if (value < 0) {
+			out.writeUtf8(Long.toString(value));
+		}
+		else {
+			out.writeDigits(value);
+		}
+	}
+
+	/**
+	 * Writes a quoted, escaped string, or a literal null.
+	 */
+	public static void writeString(OutboundBuffer out, String value) {
+		if (value == null) {
+			out.writeByte('n');
+			out.writeByte('u');
+			out.writeByte('l');
+			out.writeByte('l');
+			return;
+		}
+		out.writeByte('"');
+		int plainStart = 0;
+		int len = value.length();
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+				continue;
+			}
+			if (plainStart < i) {
+				out.writeUtf8(value, plainStart, i);
+			}
+			out.writeByte('\\');
+			switch (c) {
+			case '"': out.writeByte('"'); break;
+			case '\\': out.writeByte('\\'); break;
+			case '\b': out.writeByte('b'); break;
+			case '\t': out.writeByte('t'); break;
+			case '\n': out.writeByte('n'); break;
+			case '\f': out.writeByte('f'); break;
+			case '\r': out.writeByte('r'); break;
+			default:
+				out.writeByte('u');
+				for (int shift = 12; shift >= 0; shift -= 4) {
+					out.writeByte(Character.forDigit((c >> shift) & 0xF, 16));
+				}
+				break;
+			}
+			plainStart = i + 1;
+		}
+		if (plainStart < len) {
+			out.writeUtf8(value, plainStart, len);
+		}
+		out.writeByte('"');
+	}
+
+	/**
+	 * Compares the quoted key spanning [start, end) against an unquoted field name without building a String.
+	 */
+	public static boolean keyEquals(CharSequence json, int start, int end, String field) {
+		int len = field.length();
+		if (end - start != len + 2) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (json.charAt(start + 1 + i) != field.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static char peek(CharSequence json, int pos) throws JSONException {
+		if (pos >= json.length()) {
+			throw new JSONException("Unexpected end of JSON payload");
+		}
+		return json.charAt(pos);
+	}
+
+	private static int expect(CharSequence json, int pos, char c) throws JSONException {
+		if (peek(json, pos) != c) {
+			throw new JSONException("Expected '" + c + "' at " + pos + " in JSON payload");
+		}
+		return pos + 1;
+	}
+
+	private static int skipWhitespace(CharSequence json, int pos) {
+		int len = json.length();
+		while (pos < len) {
+			char c = json.charAt(pos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Steps over a quoted string starting at pos and returns the index just after the closing quote.
+	 */
+	public static int skipString(CharSequence json, int pos) throws JSONException {
+		pos = expect(json, pos, '"');
+		while (true) {
+			char c = peek(json, pos++);
+			if (c == '\\') {
+				pos++;
+			}
+			else if (c == '"') {
+				return pos;
+			}
+		}
+	}
+
+	/**
+	 * Steps over any JSON value (string, number, literal, object or array) and returns the index just after it.
+	 */
+	public static int skipValue(CharSequence json, int pos) throws JSONException {
+		char c = peek(json, pos);
+		if (c == '"') {
+			return skipString(json, pos);
+		}
+		if (c == '{' || c == '[') {
+			int depth = 0;
+			while (true) {
+				c = peek(json, pos);
+				if (c == '"') {
+					pos = skipString(json, pos);
+					continue;
+				}
+				if (c == '{' || c == '[') {
+					depth++;
+				}
+				else if (c == '}' || c == ']') {
+					if (--depth == 0) {
+						return pos + 1;
+					}
+				}
+				pos++;
+			}
+		}
+		int len = json.length();
+		while (pos < len) {
+			c = json.charAt(pos);
+			if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	public static double parseDouble(CharSequence json, int start, int end) throws JSONException {
+		if (peek(json, start) == '"') {
+			// org.json accepted quoted numbers, so we do too
+			start++;
+			end--;
+		}
+		try {
+			return Double.parseDouble(json.subSequence(start, end).toString());
+		} catch (NumberFormatException e) {
+			throw new JSONException("Invalid number in JSON payload: " + json.subSequence(start, end));
+		}
+	}
+
+	/**
+	 * Decodes the quoted string spanning [start, end), resolving escape sequences. When the payload is a
+	 * Utf8Payload, runs of non-ASCII bytes are decoded as UTF-8.
+	 */
+	private static String unescape(CharSequence json, int start, int end) throws JSONException {
+		Utf8Payload utf8 = json instanceof Utf8Payload ? (Utf8Payload) json : null;
+		StringBuilder sb = null;
+		int plainStart = start + 1;
+		for (int pos = start + 1; pos < end - 1; pos++) {
+			char c = json.charAt(pos);
+			if (c != '\\') {
+				continue;
+			}
+			if (sb == null) {
+				sb = new StringBuilder(end - start);
+			}
+			appendPlain(json, utf8, plainStart, pos, sb);
+			c = json.charAt(++pos);
+			switch (c) {
+			case 'b': sb.append('\b'); break;
+			case 't': sb.append('\t'); break;
+			case 'n': sb.append('\n'); break;
+			case 'f': sb.append('\f'); break;
+			case 'r': sb.append('\r'); break;
+			case 'u':
+				try {
+					sb.append((char) Integer.parseInt(json.subSequence(pos + 1, pos + 5).toString(), 16));
+				} catch (NumberFormatException e) {
+					throw new JSONException("Illegal escape in JSON payload");
+				}
+				pos += 4;
+				break;
+			default: sb.append(c); break;
+			}
+			plainStart = pos + 1;
+		}
+		if (sb == null) {
+			// no escapes, the common case
+			return utf8 != null ? utf8.decodeUtf8(start + 1, end - 1) : json.subSequence(start + 1, end - 1).toString();
+		}
+		appendPlain(json, utf8, plainStart, end - 1, sb);
+		return sb.toString();
+	}
+
+	private static void appendPlain(CharSequence json, Utf8Payload utf8, int start, int end, StringBuilder sb) {
+		if (start >= end) {
+			return;
+		}
+		if (utf8 != null) {
+			sb.append(utf8.decodeUtf8(start, end));
+		}
+		else {
+			sb.append(json, start, end);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How old a type of message may be when an agent gets to it, and what the agent does with it when it is
+ * older than that, see AbstractAgent.setLatencyBudget(). The age of a message is the time since it was
+ * published (TransportMessage.getSentMillis()), so it includes the time spent in the broker's queue as
+ * well as in the agent's.
+ *
+ * Each budget keeps the counters shed.[name].skipped, .deferred, .summarized and .expired (deferred, but
+ * pushed out of a full stale lane), and a shed.[name].age histogram of the age of every message of its type.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class LatencyBudget {
+	/**
+	 * What to do with a message that is over budget, from the least to the most lenient.
+	 */
+	public enum OverBudget {
+		// drop it without handling it
+		SKIP,
+		// only fold it into the agent's state: a purchase goes into the Model and to onStalePurchase()
+		// instead of onPurchase(), any other message is dropped like SKIP
+		SUMMARIZE,
+		// handle it when there is nothing within budget to handle, see AbstractAgent
+		DEFER
+	}
+
+	final String name;
+	final long budgetMillis;
+	final OverBudget action;
+	final AtomicLong skipped;
+	final AtomicLong deferred;
+	final AtomicLong summarized;
+	final AtomicLong expired;
+	final LatencyHistogram age;
+
+	/**
+	 * @param name the message type, for the metrics and for -Dgeek2.budget.[name]Millis, which overrides
+	 * budgetMillis
+	 * @param budgetMillis
+	 * @param action
+	 * @param metrics
+	 */
+	LatencyBudget(String name, long budgetMillis, OverBudget action, AgentMetrics metrics) {
+		this.name = name;
+		this.budgetMillis = Long.getLong("geek2.budget." + name + "Millis", budgetMillis);
+		this.action = action;
+		skipped = metrics.counter("shed." + name + ".skipped");
+		deferred = metrics.counter("shed." + name + ".deferred");
+		summarized = metrics.counter("shed." + name + ".summarized");
+		expired = metrics.counter("shed." + name + ".expired");
+		age = metrics.histogram("shed." + name + ".age");
+	}
+
+	/**
+	 * Records the age of a message of this type.
+	 *
+	 * @param msg
+	 * @param now
+	 * @return true if the message is over budget. A message of unknown age never is.
+	 */
+	boolean isOverBudget(TransportMessage msg, long now) {
+		long sent = msg.getSentMillis();
+		if (sent == 0) {
+			return false;
+		}
+		long ageMillis = Math.max(0, now - sent);
+		age.record(ageMillis * 1000000);
+		return ageMillis > budgetMillis;
+	}
+
+	@Override
+	public String toString() {
+		return name + " " + budgetMillis + " ms, then " + action;
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with power-of-two microsecond buckets: bucket 0 counts values under 1us,
+ * bucket i counts values in [2^(i-1), 2^i) microseconds, and the last bucket everything from about 35
+ * minutes up. Percentiles are reported as the upper bound of the bucket they fall in, so they are
+ * accurate to within a factor of two, which is plenty to tell a healthy broker from a struggling one.
+ * Can be recorded into from any thread.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 32;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * @param nanos the measured latency
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @param percentile e.g. 99.0
+	 * @return the upper bound, in microseconds, of the bucket holding that percentile, 0 if nothing was recorded
+	 */
+	public long getPercentileMicros(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return 1L << i;
+			}
+		}
+		return maxMicros.get();
+	}
+
+	/**
+	 * @return e.g. "count=1200 meanUs=310 p50Us=256 p99Us=2048 maxUs=3100"
+	 */
+	@Override
+	public String toString() {
+		long n = count.get();
+		return "count=" + n + " meanUs=" + (n == 0 ? 0 : totalMicros.get() / n)
+				+ " p50Us=" + getPercentileMicros(50) + " p99Us=" + getPercentileMicros(99)
+				+ " maxUs=" + maxMicros.get();
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+import com.solacesystems.jcsmp.JCSMPException;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.Topic;
+
+/**
+ * Runs agents and a purchase generator in one JVM on the LoopbackTransport, with no broker, and reports
+ * how fast the agents got through the purchases. Every run sends the same purchases in the same order, so
+ * runs can be compared, and the whole pipeline can be profiled in one process.
+ *
+ *     LoopbackRunner <purchases> <agent class> [<agent class> ...]
+ *
+ * e.g. LoopbackRunner 1000000 com.solace.geek2.PurchaseAgent com.solace.geek2.FraudAgent. Purchases go to
+ * purchase/store<n>/<client> for geek2.loopback.stores stores (default 10) and geek2.loopback.clients
+ * clients (default 1000), in -Dgeek2.payloadFormat. Each agent subscribes to purchase/>, or with
+ * -Dgeek2.loopback.host=true the agents run together in one AgentHost, which subscribes once for all of them.
+ * With -Dgeek2.loopback.queues=true each agent (or the host) binds to a queue of its own, named after its
+ * class, instead, e.g. to try -Dgeek2.transacted=true.
+ *
+ * The purchases carry no event time, so the agents go by when they were sent, unless
+ * -Dgeek2.loopback.eventTimeStepMillis=N stamps them N ms apart, ending now: a backlog replayed as fast
+ * as the agents take it. -Dgeek2.loopback.eventTimeJitterMillis=J then puts each purchase up to J ms early,
+ * out of order, to exercise the agents' ReorderBuffer.
+ *
+ * -Dgeek2.loopback.instances=N runs N instances of each agent (or host). With -Dgeek2.partitions=P the
+ * purchases go to purchase/store<n>/<client>/<partition> and the instances of an agent split the clients
+ * between them (see PartitionCoordinator); the run then waits for the instances to form their groups before
+ * it sends anything. Half way through, -Dgeek2.loopback.joinInstances=J more instances of each start, and
+ * the first -Dgeek2.loopback.leaveInstances=L leave, so the partitions are handed off while purchases
+ * keep coming. With the purchases stamped (eventTimeStepMillis) and taken as they come
+ * (-Dgeek2.eventTime.reorderMillis=0), the agents' rule counters then add up to the same as for one
+ * instance, unless partition.late shows purchases that came after their handoff.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class LoopbackRunner {
+	private static final Logger logger = Logger.getLogger(LoopbackRunner.class.getName());
+
+	public static void main(String... args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: LoopbackRunner <purchases> <agent class> [<agent class> ...]");
+			System.exit(-1);
+		}
+		long purchases = Long.parseLong(args[0]);
+		int stores = Integer.getInteger("geek2.loopback.stores", 10);
+		int clients = Integer.getInteger("geek2.loopback.clients", 1000);
+		boolean bBinary = "binary".equals(System.getProperty("geek2.payloadFormat"));
+		long eventTimeStep = Long.getLong("geek2.loopback.eventTimeStepMillis", 0);
+		long eventTimeJitter = Long.getLong("geek2.loopback.eventTimeJitterMillis", 0);
+
+		int instances = Math.max(1, Integer.getInteger("geek2.loopback.instances", 1));
+		int joining = Integer.getInteger("geek2.loopback.joinInstances", 0);
+		int leaving = Integer.getInteger("geek2.loopback.leaveInstances", 0);
+		int partitions = HashRing.PARTITIONS;
+
+		ArrayList<AbstractAgent> agents = new ArrayList<AbstractAgent>();
+		try {
+			for (int i = 0; i < instances; i++) {
+				agents.addAll(createAgents(args));
+			}
+		} catch (IllegalArgumentException e) {
+			logger.error("Cannot run the agents", e);
+			System.out.println(e.getMessage());
+			System.exit(-1);
+		}
+		int agentCount = args.length - 1;
+		int perInstance = agents.size() / instances;
+		for (AbstractAgent agent : agents) {
+			start(agent);
+		}
+		// let the agents subscribe before anything is published, and partitioned, agree on who owns what
+		Thread.sleep(500 + (partitions > 0 ? PartitionCoordinator.HANDOFF_MILLIS + PartitionCoordinator.HEARTBEAT_MILLIS : 0));
+
+		LoopbackTransport transport = new LoopbackTransport();
+		Transport.Publisher publisher = transport.createPublisher(null);
+		Topic[] topics = new Topic[stores * clients];
+		for (int s = 0; s < stores; s++) {
+			for (int c = 0; c < clients; c++) {
+				String topic = "purchase/store" + s + "/client" + c;
+				if (partitions > 0) {
+					topic += "/" + HashRing.partition("client" + c, partitions);
+				}
+				topics[s * clients + c] = JCSMPFactory.onlyInstance().createTopic(topic);
+			}
+		}
+		OutboundBuffer payload = PurchaseClient.generatePayload("gas", "12", 0, bBinary);
+		OutboundPublisher.Slot[] slot = {new OutboundPublisher.Slot()};
+		slot[0].buffer.write(payload.bytes(), 0, payload.length());
+		slot[0].contentType = bBinary ? BinaryCodecSupport.CONTENT_TYPE : null;
+		slot[0].compressible = true;
+
+		long firstEventTime = System.currentTimeMillis() - purchases * eventTimeStep;
+		long start = System.nanoTime();
+		for (long n = 0; n < purchases; n++) {
+			if (n == purchases / 2 && (joining > 0 || leaving > 0)) {
+				for (int i = 0; i < joining; i++) {
+					for (AbstractAgent agent : createAgents(args)) {
+						agents.add(agent);
+						start(agent);
+					}
+				}
+				for (int i = 0; i < leaving * perInstance && i < agents.size(); i++) {
+					agents.get(i).leavePartitions();
+				}
+				logger.info(joining + " instances joining and " + leaving + " leaving after " + n + " purchases");
+			}
+			// deterministic spread over stores and clients
+			slot[0].topic = topics[(int) ((n * 7919) % topics.length)];
+			if (eventTimeStep > 0) {
+				long eventTime = firstEventTime + n * eventTimeStep - (n * 31) % (eventTimeJitter + 1);
+				payload = PurchaseClient.generatePayload("gas", "12", eventTime, bBinary);
+				slot[0].buffer.reset();
+				slot[0].buffer.write(payload.bytes(), 0, payload.length());
+			}
+			publisher.send(slot, 0, 1);
+		}
+		if (partitions > 0) {
+			// each purchase is taken by one instance of each agent, or dropped as late
+			for (int a = 0; a < perInstance; a++) {
+				String name = agents.get(a).getClass().getSimpleName();
+				while (sum(agents, name, "partition.accepted") + sum(agents, name, "partition.late") < purchases) {
+					Thread.sleep(1);
+				}
+			}
+		}
+		else {
+			for (AbstractAgent agent : agents) {
+				while (agent.metrics.counter("ingest.processed").get() < purchases) {
+					Thread.sleep(1);
+				}
+			}
+		}
+		long elapsedNanos = System.nanoTime() - start;
+
+		String result = purchases + " purchases through " + agentCount + " agents in " + (elapsedNanos / 1000000)
+				+ " ms, " + (long) (purchases * 1e9 / elapsedNanos) + " purchases/s";
+		System.out.println(result);
+		logger.info(result);
+		for (AbstractAgent agent : agents) {
+			logger.info(agent.getClass().getSimpleName() + " " + agent.metrics.snapshot());
+		}
+		transport.close();
+	}
+
+	/**
+	 * @return the agents named on the command line, or an AgentHost running them with -Dgeek2.loopback.host
+	 * @throws IllegalArgumentException if an agent cannot be created, see AgentHost.createAgent()
+	 */
+	private static ArrayList<AbstractAgent> createAgents(String... args) {
+		ArrayList<AbstractAgent> agents = new ArrayList<AbstractAgent>();
+		for (int i = 1; i < args.length; i++) {
+			agents.add(AgentHost.createAgent(args[i]));
+		}
+		if (Boolean.parseBoolean(System.getProperty("geek2.loopback.host"))) {
+			AgentHost host = new AgentHost(agents);
+			agents.clear();
+			agents.add(host);
+		}
+		return agents;
+	}
+
+	/**
+	 * Runs an agent on a thread of its own, with a transport of its own.
+	 */
+	private static void start(final AbstractAgent agent) {
+		final boolean bQueues = Boolean.parseBoolean(System.getProperty("geek2.loopback.queues"));
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					agent.run(new LoopbackTransport(), bQueues ? agent.getClass().getSimpleName() : "purchase/>");
+				} catch (JCSMPException | InterruptedException e) {
+					logger.error("Agent stopped", e);
+				}
+			}
+		}, agent.getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return a counter added up over the instances of an agent
+	 */
+	private static long sum(ArrayList<AbstractAgent> agents, String name, String counter) {
+		long total = 0;
+		for (AbstractAgent agent : agents) {
+			if (agent.getClass().getSimpleName().equals(name)) {
+				total += agent.metrics.counter(counter).get();
+			}
+		}
+		return total;
+	}
+}
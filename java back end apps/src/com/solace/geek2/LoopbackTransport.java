@@ -0,0 +1,318 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.solacesystems.jcsmp.JCSMPException;
+/**
+ * A Transport on an in-process broker, shared by every LoopbackTransport in the JVM, so agents and purchase
+ * clients can run together without a Solace broker, e.g. for performance tests and profiling.
+ *
+ * Delivery is synchronous: publishing a message calls the listener of every matching subscription, and of
+ * every queue subscribed to a matching topic, on the publishing thread before send() returns. Guaranteed
+ * messages are acknowledged as soon as they have been delivered, and ack() on a received message does
+ * nothing. A queue takes the messages of its subscriptions, which are added with addQueueSubscription();
+ * a queue bound without any is subscribed to -Dgeek2.loopback.queueTopic (default "purchase/>"). Messages
+ * for a queue with no listener bound are kept, up to geek2.loopback.queueDepth (default 10000) per queue,
+ * and delivered when one binds; a queue with several listeners delivers to them in turn. A transacted
+ * binding holds its sends until commit(), and on rollback() puts the messages it received back in front of
+ * the ones still waiting for it; to try out the rollback path, every geek2.loopback.failCommits'th commit
+ * (default 0, none) fails and rolls back.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class LoopbackTransport implements Transport {
+	private static final Logger logger = Logger.getLogger(LoopbackTransport.class.getName());
+	public static final String DEFAULT_QUEUE_TOPIC = System.getProperty("geek2.loopback.queueTopic", "purchase/>");
+	public static final int QUEUE_DEPTH = Integer.getInteger("geek2.loopback.queueDepth", 10000);
+	public static final int FAIL_COMMITS = Integer.getInteger("geek2.loopback.failCommits", 0);
+
+	private static class Subscription {
+		final String pattern;
+		final LoopbackTransport owner;
+		final Listener listener;
+		final LoopbackQueue queue;
+		Subscription(String pattern, LoopbackTransport owner, Listener listener, LoopbackQueue queue) {
+			this.pattern = pattern;
+			this.owner = owner;
+			this.listener = listener;
+			this.queue = queue;
+		}
+	}
+
+	private static class LoopbackQueue {
+		final ArrayList<Listener> listeners = new ArrayList<Listener>();
+		final ArrayDeque<TransportMessage> backlog = new ArrayDeque<TransportMessage>();
+		boolean bSubscribed;
+		int next;
+
+		synchronized void deliver(TransportMessage msg) {
+			if (listeners.isEmpty()) {
+				if (backlog.size() < QUEUE_DEPTH) {
+					backlog.add(msg);
+				}
+				else {
+					logger.warn("Loopback queue full, discarding message on " + msg.getTopic());
+				}
+				return;
+			}
+			next = (next + 1) % listeners.size();
+			listeners.get(next).onMessage(msg);
+		}
+
+		synchronized void bind(Listener listener) {
+			listeners.add(listener);
+			TransportMessage msg;
+			while ((msg = backlog.poll()) != null) {
+				listener.onMessage(msg);
+			}
+		}
+
+		synchronized void unbind(Listener listener) {
+			listeners.remove(listener);
+		}
+	}
+
+	// the in-process broker
+	private static final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private static final HashMap<String, LoopbackQueue> queues = new HashMap<String, LoopbackQueue>();
+	private static final AtomicLong nextMessageId = new AtomicLong();
+
+	private final ArrayList<Listener> boundListeners = new ArrayList<Listener>();
+	private final ArrayList<LoopbackQueue> boundQueues = new ArrayList<LoopbackQueue>();
+
+	@Override
+	public void subscribe(String topicPattern, Listener listener) {
+		subscriptions.add(new Subscription(topicPattern, this, listener, null));
+	}
+
+	@Override
+	public void unsubscribe(String topicPattern, Listener listener) {
+		for (Subscription subscription : subscriptions) {
+			if (subscription.owner == this && subscription.pattern.equals(topicPattern) && subscription.listener == listener) {
+				subscriptions.remove(subscription);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Subscribes a queue to a topic, like configuring a queue's subscriptions on the broker. Creates the
+	 * queue if needed. Queue subscriptions outlive the transport that added them.
+	 *
+	 * @param queueName
+	 * @param topicPattern
+	 */
+	public static void addQueueSubscription(String queueName, String topicPattern) {
+		LoopbackQueue queue = getQueue(queueName);
+		queue.bSubscribed = true;
+		subscriptions.add(new Subscription(topicPattern, null, null, queue));
+	}
+
+	private static LoopbackQueue getQueue(String queueName) {
+		synchronized (queues) {
+			LoopbackQueue queue = queues.get(queueName);
+			if (queue == null) {
+				queue = new LoopbackQueue();
+				queues.put(queueName, queue);
+			}
+			return queue;
+		}
+	}
+
+	@Override
+	public void bindQueue(String queueName, Listener listener) {
+		LoopbackQueue queue = getQueue(queueName);
+		synchronized (queues) {
+			if (!queue.bSubscribed) {
+				addQueueSubscription(queueName, DEFAULT_QUEUE_TOPIC);
+			}
+		}
+		queue.bind(listener);
+		boundQueues.add(queue);
+		boundListeners.add(listener);
+	}
+
+	@Override
+	public Transaction bindTransactedQueue(String queueName) {
+		final LinkedBlockingDeque<TransportMessage> inbox = new LinkedBlockingDeque<TransportMessage>();
+		bindQueue(queueName, new Listener() {
+			public void onMessage(TransportMessage msg) {
+				inbox.add(msg);
+			}
+		});
+		return new Transaction() {
+			private final ArrayList<TransportMessage> received = new ArrayList<TransportMessage>();
+			private final ArrayList<LoopbackMessage> staged = new ArrayList<LoopbackMessage>();
+			private long commits;
+
+			public TransportMessage receive(int timeoutMillis) throws JCSMPException {
+				TransportMessage msg;
+				try {
+					msg = inbox.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new JCSMPException("Interrupted in receive()", e);
+				}
+				if (msg != null) {
+					received.add(msg);
+				}
+				return msg;
+			}
+
+			public int send(OutboundPublisher.Slot[] slots, int offset, int count) {
+				for (int i = offset; i < offset + count; i++) {
+					OutboundPublisher.Slot slot = slots[i];
+					staged.add(new LoopbackMessage(slot.topic.getName(), Arrays.copyOf(slot.buffer.bytes(), slot.buffer.length()), slot.contentType));
+				}
+				return count;
+			}
+
+			public void commit() throws JCSMPException {
+				if (FAIL_COMMITS > 0 && ++commits % FAIL_COMMITS == 0) {
+					rollback();
+					throw new JCSMPException("Commit " + commits + " failed, as -Dgeek2.loopback.failCommits asked");
+				}
+				for (LoopbackMessage msg : staged) {
+					publish(msg);
+				}
+				staged.clear();
+				received.clear();
+			}
+
+			public void rollback() {
+				staged.clear();
+				for (int i = received.size() - 1; i >= 0; i--) {
+					inbox.addFirst(received.get(i));
+				}
+				received.clear();
+			}
+		};
+	}
+
+	@Override
+	public Publisher createPublisher(final AckListener acks) {
+		return new Publisher() {
+			public int send(OutboundPublisher.Slot[] slots, int offset, int count) {
+				for (int i = offset; i < offset + count; i++) {
+					OutboundPublisher.Slot slot = slots[i];
+					publish(slot.topic.getName(), Arrays.copyOf(slot.buffer.bytes(), slot.buffer.length()), slot.contentType);
+					if (slot.guaranteed) {
+						acks.acked(slot);
+					}
+				}
+				return count;
+			}
+		};
+	}
+
+	/**
+	 * Delivers a payload to every matching subscription and queue.
+	 */
+	private static void publish(String topic, byte[] payload, String contentType) {
+		publish(new LoopbackMessage(topic, payload, contentType));
+	}
+
+	private static void publish(LoopbackMessage msg) {
+		String topic = msg.topic;
+		for (Subscription subscription : subscriptions) {
+			if (TopicMatcher.matches(subscription.pattern, topic)) {
+				if (subscription.queue != null) {
+					subscription.queue.deliver(msg);
+				}
+				else {
+					subscription.listener.onMessage(msg);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		for (Subscription subscription : subscriptions) {
+			if (subscription.owner == this) {
+				subscriptions.remove(subscription);
+			}
+		}
+		for (int i = 0; i < boundQueues.size(); i++) {
+			boundQueues.get(i).unbind(boundListeners.get(i));
+		}
+	}
+
+	/**
+	 * A delivered message. Every receiver gets the same one, each call to getPayload() a buffer of its own over
+	 * the shared bytes.
+	 */
+	private static class LoopbackMessage implements TransportMessage {
+		private final String topic;
+		private final byte[] payload;
+		private final String contentType;
+		private final long sentMillis = System.currentTimeMillis();
+		// a rolled back message is put back as it is, so it keeps its id
+		private final long messageId = nextMessageId.incrementAndGet();
+
+		LoopbackMessage(String topic, byte[] payload, String contentType) {
+			this.topic = topic;
+			this.payload = payload;
+			this.contentType = contentType;
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+
+		public CharSequence getText() {
+			return null;
+		}
+
+		public ByteBuffer getPayload() {
+			return ByteBuffer.wrap(payload);
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getContentEncoding() {
+			return null;
+		}
+
+		public int getPriority() {
+			return -1;
+		}
+
+		public long getSentMillis() {
+			return sentMillis;
+		}
+
+		public long getMessageId() {
+			return messageId;
+		}
+
+		public void ack() {
+		}
+	}
+}
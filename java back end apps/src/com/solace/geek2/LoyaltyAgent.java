@@ -14,7 +14,10 @@
 
 package com.solace.geek2;
 
-import java.util.HashMap;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
 
 import org.apache.log4j.Logger;
 
@@ -22,115 +25,118 @@ import com.solacesystems.jcsmp.JCSMPException;
 
 /**
  * Sub-class of the AbstractAgent, this class implements the main program of the Loyalty Agent. Upon receipt 
- * of a purchase message, stores the message in a "database". This simple illustrative program implements 3 loyalty
- * levels: one after $20 in total purchase history, another after $40 and a final one after $60. Upon first achieving 
- * a given level, a thank you is sent out to the customer with a reward offered to them.
+ * of a purchase message, adds it to the client's spend over the last geek2.loyalty.periodDays days (default 
+ * 30; 0 for lifetime spend). The loyalty levels are the tiers of LoyaltyTiers, by default one after $20 in 
+ * spend, another after $40 and a final one after $60. Upon first achieving a given level, a thank you is sent 
+ * out to the customer with a reward offered to them. As spend leaves the period a client's level falls back, 
+ * and reaching a tier again earns its reward again.
+ * 
+ * The clients' levels and spend are held in a LoyaltyTable, each client's spend in per-day buckets by the 
+ * purchases' event time, so checking it is O(1). A purchase older than the period is not counted. Clients 
+ * whose spend has all left the period are compacted out of memory once a day (of event time).
  * 
  * @author Mike O'Brien
  *
  */public class LoyaltyAgent extends AbstractAgent {
 	private static final Logger logger = Logger.getLogger(LoyaltyAgent.class.getName());
+	public static final int PERIOD_DAYS = Math.max(0, Integer.getInteger("geek2.loyalty.periodDays", 30));
+	private final NotificationTemplate rewardNotice = new NotificationTemplate("loyalty", 
+			"Thank you for your total purchases of ${amount} at Geeks2. You have earned {text}! " + 
+			"Please come again soon to claim your reward.");
 
-	// and enumeration for the loyalty levels 
-	public enum eLoyalityLevel {eNone, e20, e40, e60 }
-	
-	// a data structure for storing the current loyalty level of specific customers
-	public class ClientLoyalityLevel {
-		public String clientId;
-		public eLoyalityLevel currentLoyaltyLevel = eLoyalityLevel.eNone;
-	}
-	// a map of the current loyalty level for all customers
-	public HashMap<String, ClientLoyalityLevel> clientLoyaltyMap = new HashMap<String, ClientLoyalityLevel>(); 
+	private final LoyaltyTiers tiers = new LoyaltyTiers();
+	// the current loyalty level and spend of all customers
+	private final LoyaltyTable members = new LoyaltyTable(PERIOD_DAYS, metrics);
+	// the latest day a purchase was made on, by event time
+	private int today;
 	
 	/**
-	 * Fetches the currently loyalty level for a given customer 
-	 * @param clientID
-	 * @return
+	 * Adds a purchase to its client's spend, compacting first if it is the first purchase of a new day
+	 * @param pmsg
+	 * @return the client's slot in the table
 	 */
-	private eLoyalityLevel getClientLoyalty(String clientID) {
-		eLoyalityLevel eRc = eLoyalityLevel.eNone;
-		if (clientLoyaltyMap.containsKey(clientID)) {
-			ClientLoyalityLevel current = clientLoyaltyMap.get(clientID);
-			eRc = current.currentLoyaltyLevel;
+	private int addPurchase(PurchaseMessage pmsg) {
+		int day = LoyaltyTable.day(pmsg.getTimestamp());
+		if (day > today) {
+			today = day;
+			members.compact(today);
 		}
-		return eRc;
+		int slot = members.slot(pmsg.getClientID());
+		members.add(slot, pmsg.getTimestamp(), pmsg.getTotal());
+		return slot;
 	}
+	
 	/**
-	 * Sets the current loyalty level for a given customer
-	 * @param clientID
-	 * @param eLevel
+	 * Every purchase counts towards the loyalty levels, so stale ones are deferred rather than dropped.
+	 * 
+	 * @throws IllegalArgumentException if there are more tiers than the table can hold levels for
 	 */
-	private void setClientLoyalty(String clientID, eLoyalityLevel eLevel) {
-		ClientLoyalityLevel current = null;
-		if (clientLoyaltyMap.containsKey(clientID)) {
-			current = clientLoyaltyMap.get(clientID);
-		}
-		else {
-			current = new ClientLoyalityLevel();
-			current.clientId = clientID;
+	public LoyaltyAgent() {
+		setLatencyBudget("purchase", PURCHASE_TOPICS, 60000, LatencyBudget.OverBudget.DEFER);
+		if (tiers.count() > Byte.MAX_VALUE) {
+			throw new IllegalArgumentException("At most " + Byte.MAX_VALUE + " loyalty tiers, not " + tiers.count());
 		}
-		current.currentLoyaltyLevel = eLevel;
-		clientLoyaltyMap.put(clientID, current);		
+		logger.info("Loyalty tiers " + tiers + (PERIOD_DAYS > 0 ? " over " + PERIOD_DAYS + " days" : " over all time"));
 	}
 	
 	/**
 	 * Implements the abstract method of the base. This method is called after the 
-	 * Receipt of a purchase message. Note that this message is already in the "database".
+	 * Receipt of a purchase message.
 	 * 
 	 * It checks to see if the client has achieved a new loyalty level and if so sends out a message
-	 * Informing the customer and offering a reward
+	 * Informing the customer and offering a reward. A purchase that passes several tiers at once earns the
+	 * reward of the highest.
 	 */
 	@Override
 	public void onPurchase(PurchaseMessage pmsg) throws JCSMPException {
-		boolean bSend = false;
-		String howMuch = "";
-		String reward = "";
-		String thisClientId = pmsg.clientID;
-		double tally = model.getTotalPurchasesForClient(thisClientId);
-		logger.info(thisClientId + " has spent a total of $" + tally);
+		String thisClientId = pmsg.getClientID();
+		int slot = addPurchase(pmsg);
+		double total = members.total(slot);
+		int level = members.level(slot);
+		logger.info(thisClientId + " has spent a total of $" + total);
 		
-		if (tally > 20.0f) {
-			eLoyalityLevel eLevel = getClientLoyalty(thisClientId);
-			if (eLevel == eLoyalityLevel.eNone) {
-				setClientLoyalty(thisClientId, eLoyalityLevel.e20);
-				howMuch = "20";
-				reward = "a free coffee";
-				bSend = true;
-				logger.info(thisClientId + " has achieved loyalty level " + howMuch);
-			}
+		if (total > tiers.next(level)) {
+			level = tiers.levelFor(total);
+			members.setLevel(slot, level);
+			double howMuch = tiers.threshold(level);
+			logger.info(thisClientId + " has achieved loyalty level " + howMuch);
+			sendNotification(rewardNotice, pmsg, howMuch, tiers.reward(level));
 		}
-
-		if (tally > 40.0f) {
-			eLoyalityLevel eLevel = getClientLoyalty(thisClientId);
-			if ((eLevel == eLoyalityLevel.eNone) || (eLevel == eLoyalityLevel.e20)) {
-				setClientLoyalty(thisClientId, eLoyalityLevel.e40);
-				howMuch = "40";
-				reward = "$2.00 in free gas";
-				bSend = true;
-				logger.info(thisClientId + " has achieved loyalty level " + howMuch);
-			}
-		}
-		
-		if (tally > 60.0f) {
-			eLoyalityLevel eLevel = getClientLoyalty(thisClientId);
-			if ((eLevel == eLoyalityLevel.eNone) || (eLevel == eLoyalityLevel.e20)|| (eLevel == eLoyalityLevel.e40)) {
-				setClientLoyalty(thisClientId, eLoyalityLevel.e60);
-				howMuch = "60";
-				reward = "$5.00 in free gas";
-				bSend = true;
-				logger.info(thisClientId + " has achieved loyalty level " + howMuch);
-			}
-		}
-
-		if (bSend) {
-			String json = "{ \"message\": \"Thank you for your total purchases of $" + howMuch + ".00 at Geeks2. You have earned " + 
-					reward + "! Please come again soon to claim your reward.\"}";
-			String raw = "Thank you for your total purchases of $" + howMuch + ".00 at Geeks2. You have earned " + 
-					reward + "! Please come again soon to claim your reward.";
-			String outTopic = "loyalty/" + pmsg.location + "/" + pmsg.clientID;
-			this.sendTextMessage(raw, outTopic);
+		else if (level > 0 && total <= tiers.threshold(level)) {
+			// spend has left the period
+			members.setLevel(slot, tiers.levelFor(total));
 		}
 	}
+	
+	/**
+	 * Too late to reward now, but it still counts towards the client's spend.
+	 */
+	@Override
+	public void onStalePurchase(PurchaseMessage pmsg) throws JCSMPException {
+		addPurchase(pmsg);
+	}
+	
+	/**
+	 * The levels reached by a partition's clients go with them, with their spend.
+	 */
+	@Override
+	protected void handOffPartition(int partition, DataOutputStream out) throws IOException {
+		members.handOff(partition, HashRing.PARTITIONS, out);
+	}
+	
+	@Override
+	protected void takeOverPartition(int partition, DataInputStream in) throws IOException {
+		members.takeOver(in);
+	}
+	
+	/**
+	 * Loyalty levels are based only on the purchase totals.
+	 */
+	@Override
+	protected EnumSet<PurchaseField> getFieldsOfInterest() {
+		return EnumSet.of(PurchaseField.TOTAL);
+	}
+	
 	/**
 	 * Main program for the Loyalty agent
 	 * @param args
@@ -0,0 +1,321 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The LoyaltyAgent's members: each client's level and spend, in an open-addressing hash table of parallel
+ * primitive arrays. A client is keyed by the 64-bit HashRing hash of its id rather than by the id itself, so
+ * no String is kept per member and finding one compares numbers. Two ids can still share a key (around one
+ * chance in a million at tens of millions of members), so each member also keeps a check, the id's
+ * String.hashCode(), which is computed quite differently: a member is the one with both the key and the
+ * check, and clients whose keys collide get slots of their own, counted in loyalty.keyCollisions. Only ids
+ * alike in both, around one chance in 10^15 at that size, would share a member. A lookup is one linear
+ * probe from the key's home slot, which either finds the client or is where it is added. The table doubles
+ * at three quarters full; presize it with -Dgeek2.loyalty.capacity (default 1024) to the number of members
+ * expected.
+ *
+ * Spend is kept in cents over a period of days, in a circular array of per-day buckets per member with a
+ * running sum (see LoyaltyAgent): the buckets only move on when the member is next looked at, so adding a
+ * purchase and checking the spend are O(1). Without a period there are no buckets, and a member costs a key,
+ * a check, a level, a sum and a day: 25 bytes, over the load factor; each day of the period adds 4 bytes.
+ * Members with no spend left in the period are compacted out by rebuilding the table without them, as are
+ * those of a partition handed to another instance, so entries are never deleted in place.
+ *
+ * Slots move when the table grows or is rebuilt: a slot from slot() is only good until the next slot(),
+ * compact() or handOff(). Levels go up to Byte.MAX_VALUE. Keeps loyalty.clients (members now),
+ * loyalty.compacted and loyalty.keyCollisions. Not thread safe; used on the agent's processing thread.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class LoyaltyTable {
+	public static final int CAPACITY = Math.max(16, Integer.getInteger("geek2.loyalty.capacity", 1024));
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+	// marks a free slot; a client whose hash is EMPTY is keyed as 1, which is in the same partition
+	private static final long EMPTY = 0;
+
+	private final int periodDays;
+	// per slot: the client's key and check, level, spend in the period in cents, and the day of its newest
+	// bucket
+	private long[] keys;
+	private int[] checks;
+	private byte[] levels;
+	private long[] cents;
+	private int[] lastDays;
+	// per slot, periodDays buckets from slot * periodDays, the day d at d % periodDays; null without a period
+	private int[] days;
+	private int mask;
+	// 64 less log2 of the capacity, for the home slot
+	private int shift;
+	private int size;
+
+	private final AtomicLong clientsGauge;
+	private final AtomicLong compacted;
+	private final AtomicLong keyCollisions;
+
+	/**
+	 * @param periodDays the days to keep spend for, 0 for lifetime spend
+	 * @param metrics
+	 */
+	public LoyaltyTable(int periodDays, AgentMetrics metrics) {
+		this.periodDays = periodDays;
+		allocate(Integer.highestOneBit(CAPACITY * 4 / 3 - 1) << 1);
+		clientsGauge = metrics.counter("loyalty.clients");
+		compacted = metrics.counter("loyalty.compacted");
+		keyCollisions = metrics.counter("loyalty.keyCollisions");
+	}
+
+	/**
+	 * @param clientID
+	 * @return the client's slot, added at level 0 with nothing spent the first time the client is seen
+	 */
+	public int slot(String clientID) {
+		return slot(key(clientID), clientID.hashCode());
+	}
+
+	private int slot(long key, int check) {
+		// the top bits of a Fibonacci hash, which unlike the low bits do not follow the key's partition
+		int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+		boolean bCollided = false;
+		while (keys[slot] != key || checks[slot] != check) {
+			if (keys[slot] == EMPTY) {
+				if (size >= (mask + 1) / 4 * 3) {
+					rehash(keys.length * 2, -1, 0, -1);
+					return slot(key, check);
+				}
+				if (bCollided) {
+					keyCollisions.incrementAndGet();
+				}
+				keys[slot] = key;
+				checks[slot] = check;
+				size++;
+				clientsGauge.set(size);
+				return slot;
+			}
+			bCollided |= keys[slot] == key;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static long key(String clientID) {
+		long key = HashRing.hash(clientID);
+		return key == EMPTY ? 1 : key;
+	}
+
+	/**
+	 * @param slot
+	 * @return the number of tiers the client has reached, see LoyaltyTiers
+	 */
+	public int level(int slot) {
+		return levels[slot];
+	}
+
+	/**
+	 * @param slot
+	 * @param level 0 to Byte.MAX_VALUE
+	 */
+	public void setLevel(int slot, int level) {
+		levels[slot] = (byte) level;
+	}
+
+	/**
+	 * @param slot
+	 * @return the client's spend in the period
+	 */
+	public double total(int slot) {
+		return cents[slot] / 100.0;
+	}
+
+	/**
+	 * Adds a purchase to the client's spend, unless it was made before the period.
+	 *
+	 * @param slot
+	 * @param timestamp
+	 * @param amount
+	 */
+	public void add(int slot, long timestamp, double amount) {
+		long amountCents = Math.round(amount * 100);
+		if (days == null) {
+			cents[slot] += amountCents;
+			return;
+		}
+		int day = day(timestamp);
+		rotate(slot, day);
+		if (lastDays[slot] - day >= periodDays) {
+			return;
+		}
+		days[slot * periodDays + day % periodDays] += amountCents;
+		cents[slot] += amountCents;
+	}
+
+	/**
+	 * @param timestamp
+	 * @return the day of a purchase made at the time, counted from the epoch
+	 */
+	public static int day(long timestamp) {
+		return (int) (timestamp / DAY_MILLIS);
+	}
+
+	/**
+	 * Moves the client's buckets on to a day, taking the days that leave the period off the spend.
+	 */
+	private void rotate(int slot, int day) {
+		int lastDay = lastDays[slot];
+		if (day <= lastDay) {
+			return;
+		}
+		int base = slot * periodDays;
+		if (day - lastDay >= periodDays) {
+			Arrays.fill(days, base, base + periodDays, 0);
+			cents[slot] = 0;
+		}
+		else {
+			for (int d = lastDay + 1; d <= day; d++) {
+				cents[slot] -= days[base + d % periodDays];
+				days[base + d % periodDays] = 0;
+			}
+		}
+		lastDays[slot] = day;
+	}
+
+	/**
+	 * Drops the clients who have spent nothing in the period up to a day. Does nothing without a period.
+	 *
+	 * @param today
+	 */
+	public void compact(int today) {
+		if (days != null) {
+			compacted.addAndGet(rehash(keys.length, -1, 0, today));
+		}
+	}
+
+	/**
+	 * Writes the clients of a partition, and forgets them.
+	 *
+	 * @param partition
+	 * @param partitions
+	 * @param out
+	 * @throws IOException
+	 */
+	public void handOff(int partition, int partitions, DataOutputStream out) throws IOException {
+		int moving = 0;
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != EMPTY && HashRing.partition(keys[slot], partitions) == partition) {
+				moving++;
+			}
+		}
+		out.writeInt(moving);
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != EMPTY && HashRing.partition(keys[slot], partitions) == partition) {
+				out.writeLong(keys[slot]);
+				out.writeInt(checks[slot]);
+				out.writeByte(levels[slot]);
+				out.writeLong(cents[slot]);
+				out.writeInt(lastDays[slot]);
+				out.writeInt(days == null ? 0 : periodDays);
+				for (int d = 0; days != null && d < periodDays; d++) {
+					out.writeInt(days[slot * periodDays + d]);
+				}
+			}
+		}
+		rehash(keys.length, partition, partitions, -1);
+	}
+
+	/**
+	 * Adds the clients written by handOff(). Buckets from an instance with a different period are dropped,
+	 * keeping only the spend.
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	public void takeOver(DataInputStream in) throws IOException {
+		for (int n = in.readInt(); n > 0; n--) {
+			int slot = slot(in.readLong(), in.readInt());
+			levels[slot] = in.readByte();
+			cents[slot] = in.readLong();
+			lastDays[slot] = in.readInt();
+			int buckets = in.readInt();
+			for (int d = 0; d < buckets; d++) {
+				int bucket = in.readInt();
+				if (buckets == periodDays) {
+					days[slot * periodDays + d] = bucket;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of clients held
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		checks = new int[capacity];
+		levels = new byte[capacity];
+		cents = new long[capacity];
+		lastDays = new int[capacity];
+		days = periodDays > 0 ? new int[capacity * periodDays] : null;
+		mask = capacity - 1;
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		size = 0;
+	}
+
+	/**
+	 * Re-inserts the clients into new arrays, leaving out those of the partition, if not -1, and if today is
+	 * not -1 those with nothing spent in the period up to today.
+	 *
+	 * @param capacity a power of two
+	 * @return the number left out
+	 */
+	private int rehash(int capacity, int partition, int partitions, int today) {
+		long[] oldKeys = keys;
+		int[] oldChecks = checks;
+		byte[] oldLevels = levels;
+		long[] oldCents = cents;
+		int[] oldLastDays = lastDays;
+		int[] oldDays = days;
+		int removed = 0;
+		allocate(capacity);
+		for (int old = 0; old < oldKeys.length; old++) {
+			long key = oldKeys[old];
+			if (key == EMPTY) {
+				continue;
+			}
+			if ((partition >= 0 && HashRing.partition(key, partitions) == partition)
+					|| (today >= 0 && today - oldLastDays[old] >= periodDays)) {
+				removed++;
+				continue;
+			}
+			int slot = slot(key, oldChecks[old]);
+			levels[slot] = oldLevels[old];
+			cents[slot] = oldCents[old];
+			lastDays[slot] = oldLastDays[old];
+			if (days != null) {
+				System.arraycopy(oldDays, old * periodDays, days, slot * periodDays, periodDays);
+			}
+		}
+		clientsGauge.set(size);
+		return removed;
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The LoyaltyAgent's tiers: the total a client has to have spent to reach each, and the reward that comes
+ * with it. They are read from a properties file, one tier per line:
+ *
+ *     20=a free coffee
+ *
+ * (more than $20 spent in all earns a free coffee), named by -Dgeek2.loyalty.tiers, or else tiers.properties
+ * on the classpath, or else the three original tiers of $20, $40 and $60. There can be any number of tiers.
+ *
+ * A client's level is the number of tiers reached, 0 to count(); the tiers are numbered from 1 in order of
+ * their thresholds. The thresholds are held in an array with room for one more than the top tier, which
+ * can never be passed, so the check for a new tier is always one comparison: the client's total against
+ * next(level). Immutable.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class LoyaltyTiers {
+	private static final Logger logger = Logger.getLogger(LoyaltyTiers.class.getName());
+	public static final String TIERS_FILE = System.getProperty("geek2.loyalty.tiers");
+
+	// thresholds[level] is the total to beat for level + 1; the last is infinite
+	private final double[] thresholds;
+	// rewards[level] comes with level + 1
+	private final String[] rewards;
+
+	/**
+	 * Loads the tiers from the file or resource, if there is one.
+	 *
+	 * @throws IllegalArgumentException if the tiers cannot be read
+	 */
+	public LoyaltyTiers() {
+		this(load());
+	}
+
+	/**
+	 * @param tiers thresholds mapped to rewards
+	 * @throws IllegalArgumentException naming a threshold that is not a number
+	 */
+	public LoyaltyTiers(Properties tiers) {
+		TreeMap<Double, String> sorted = new TreeMap<Double, String>();
+		for (Map.Entry<Object, Object> entry : tiers.entrySet()) {
+			String threshold = ((String) entry.getKey()).trim();
+			try {
+				sorted.put(Double.parseDouble(threshold), ((String) entry.getValue()).trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad loyalty tier " + threshold + ": expected the total to spend");
+			}
+		}
+		thresholds = new double[sorted.size() + 1];
+		rewards = new String[sorted.size()];
+		int level = 0;
+		for (Map.Entry<Double, String> tier : sorted.entrySet()) {
+			thresholds[level] = tier.getKey();
+			rewards[level] = tier.getValue();
+			level++;
+		}
+		thresholds[level] = Double.POSITIVE_INFINITY;
+	}
+
+	private static Properties load() {
+		Properties tiers = new Properties();
+		try {
+			InputStream in = TIERS_FILE != null ? new FileInputStream(TIERS_FILE)
+					: LoyaltyTiers.class.getClassLoader().getResourceAsStream("tiers.properties");
+			if (in == null) {
+				logger.info("No tiers.properties on the classpath, using the default loyalty tiers");
+				tiers.setProperty("20", "a free coffee");
+				tiers.setProperty("40", "$2.00 in free gas");
+				tiers.setProperty("60", "$5.00 in free gas");
+				return tiers;
+			}
+			try {
+				tiers.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Failed to read the loyalty tiers", e);
+		}
+		logger.info("Loaded " + tiers.size() + " loyalty tiers");
+		return tiers;
+	}
+
+	/**
+	 * @return the number of tiers, which is the top level
+	 */
+	public int count() {
+		return rewards.length;
+	}
+
+	/**
+	 * @param level a client's level, 0 to count()
+	 * @return the total the client has to spend more than to reach the next level; infinite at the top
+	 */
+	public double next(int level) {
+		return thresholds[level];
+	}
+
+	/**
+	 * @param total
+	 * @return the level of a client who has spent the total
+	 */
+	public int levelFor(double total) {
+		int level = 0;
+		while (total > thresholds[level]) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * @param level 1 to count()
+	 * @return the total spent to reach the level
+	 */
+	public double threshold(int level) {
+		return thresholds[level - 1];
+	}
+
+	/**
+	 * @param level 1 to count()
+	 * @return the reward that comes with the level
+	 */
+	public String reward(int level) {
+		return rewards[level - 1];
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(Arrays.copyOf(thresholds, rewards.length));
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map bounded to a maximum number of entries, which evicts the least recently used entry when full.
+ * Not thread safe.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class LruCache<K, V> extends LinkedHashMap<K, V> {
+	private static final long serialVersionUID = 1L;
+	private final int maxEntries;
+
+	public LruCache(int maxEntries) {
+		super(16, 0.75f, true);
+		this.maxEntries = maxEntries;
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+		return size() > maxEntries;
+	}
+}
@@ -14,14 +14,16 @@
 package com.solace.geek2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.function.Predicate;
 
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONStringer;
-import org.json.JSONWriter;
 
 /**
  * This class encapsulates a simple RAM database with all product purchases from 
@@ -32,14 +34,16 @@ import org.json.JSONWriter;
  *
  */
 public class Model {
-	// definitions of the fields in the JSOn schema
-	public static String jsonField_purchases = "purchases";
-	public static String jsonField_message = "message";
-	public static String jsonField_total = "total";
-	public static String jsonField_product = "product";
-	public static String jsonField_amount = "amount";
+	// definitions of the fields in the JSOn schema, see schema/purchase.schema and the generated codecs
+	public static final String jsonField_purchases = PurchaseMessageJsonCodec.FIELD_PURCHASES;
+	public static final String jsonField_message = PurchaseMessageJsonCodec.FIELD_MESSAGE;
+	public static final String jsonField_total = PurchaseMessageJsonCodec.FIELD_TOTAL;
+	public static final String jsonField_product = ProductPurchaseJsonCodec.FIELD_PRODUCT;
+	public static final String jsonField_amount = ProductPurchaseJsonCodec.FIELD_AMOUNT;
 	
 	private ArrayList<PurchaseMessage> Purchases = new ArrayList<PurchaseMessage>();
+	// false when nothing looks purchases up, so that they are decoded but not kept
+	private boolean storing = true;
 	private static final Logger logger = Logger.getLogger(Model.class.getName());
 	
 	/**
@@ -72,14 +76,14 @@ public class Model {
 		logger.debug("looking up last purchase for client " + clientID);
 		PurchaseMessage lastMessage = null;
 		for (PurchaseMessage oneObj: Purchases) {
-			if (oneObj.clientID.equals(clientID)) {
+			if (oneObj.getClientID().equals(clientID)) {
 				if (lastMessage == null) {
-					if (msg.timestamp != oneObj.timestamp) {
+					if (msg.getTimestamp() != oneObj.getTimestamp()) {
 						lastMessage = oneObj;
 					}
 				}
-				else if (msg.timestamp != oneObj.timestamp) {
-					if (oneObj.timestamp > lastMessage.timestamp) {
+				else if (msg.getTimestamp() != oneObj.getTimestamp()) {
+					if (oneObj.getTimestamp() > lastMessage.getTimestamp()) {
 						lastMessage = oneObj;
 					}
 				}
@@ -97,12 +101,41 @@ public class Model {
 	public double getTotalPurchasesForClient(String clientID) {
 		double rc = 0.0f;
 		for (PurchaseMessage oneObj: Purchases) {
-			if (oneObj.clientID.equals(clientID)) {
-				rc += oneObj.total;
+			if (oneObj.getClientID().equals(clientID)) {
+				rc += oneObj.getTotal();
 			}
 		}
 		return rc;
 	}
+	/**
+	 * Takes the purchases of some customers out of the "database", e.g. to hand them to another instance.
+	 * 
+	 * @param clientFilter selects the customers by client id
+	 * @return the purchases taken out, in the order they were stored
+	 */
+	public ArrayList<PurchaseMessage> removePurchases(Predicate<String> clientFilter) {
+		ArrayList<PurchaseMessage> removed = new ArrayList<PurchaseMessage>();
+		ArrayList<PurchaseMessage> kept = new ArrayList<PurchaseMessage>(Purchases.size());
+		for (PurchaseMessage oneObj: Purchases) {
+			(clientFilter.test(oneObj.getClientID()) ? removed : kept).add(oneObj);
+		}
+		Purchases = kept;
+		return removed;
+	}
+	
+	/**
+	 * Sets whether loaded purchases are stored in the "database". Only an agent that looks them up needs 
+	 * them stored, otherwise they would pile up for nothing.
+	 * 
+	 * @param storing
+	 */
+	public void setStoring(boolean storing) {
+		this.storing = storing;
+		if (!storing) {
+			Purchases.clear();
+		}
+	}
+	
 	/**
 	 * Converts a PurchaseMessage object into a json payload
 	 * 
@@ -111,31 +144,13 @@ public class Model {
 	 * @return
 	 */
 	public static String toJson(PurchaseMessage msg, boolean includeMessageText) {
-	    JSONWriter jsonWriter = new JSONStringer();
-
-		jsonWriter.object();
-		jsonWriter.key(jsonField_total);
-		jsonWriter.value(msg.total);
-		
-		if (includeMessageText) {
-			jsonWriter.key(jsonField_message);
-			jsonWriter.value(msg.message);
+		OutboundBuffer out = new OutboundBuffer(256);
+		EnumSet<PurchaseField> fields = EnumSet.allOf(PurchaseField.class);
+		if (!includeMessageText) {
+			fields.remove(PurchaseField.MESSAGE);
 		}
-		
-	    jsonWriter.key(jsonField_purchases);
-	    jsonWriter.array();
-		for (ProductPurchase oneObj: msg.Purchases) {
-			jsonWriter.object();
-			jsonWriter.key(jsonField_product);
-			jsonWriter.value(oneObj.product);
-			jsonWriter.key(jsonField_amount);
-			jsonWriter.value(oneObj.amount);
-			jsonWriter.endObject();
-		}
-		jsonWriter.endArray();
-		jsonWriter.endObject();
-		
-		return jsonWriter.toString();
+		PurchaseMessageJsonCodec.encode(msg, fields, out);
+		return new String(out.bytes(), 0, out.length(), StandardCharsets.UTF_8);
 	}
 	/**
 	 * Loads a json based message payload into Java objects
@@ -147,36 +162,58 @@ public class Model {
 	 * @throws IOException
 	 */
 	public PurchaseMessage loadFromJson(String strJsonData, String clientId, String location) throws IOException {
+		return loadFromJson(strJsonData, clientId, location, EnumSet.allOf(PurchaseField.class));
+	}
+	/**
+	 * Loads a json based message payload into Java objects, decoding only the requested fields. Fields that
+	 * are not requested are skipped over without being materialized, and the product list (if requested) is
+	 * only decoded when PurchaseMessage.getPurchases() is first called.
+	 * 
+	 * @param strJsonData
+	 * @param clientId
+	 * @param location
+	 * @param fields
+	 * @return
+	 * @throws IOException
+	 */
+	public PurchaseMessage loadFromJson(CharSequence strJsonData, String clientId, String location, EnumSet<PurchaseField> fields) throws IOException {
     	logger.debug("loading message from json payload.");
 
-	    // using a JSON parser
-	    JSONObject obj = new JSONObject(strJsonData);
-	
 	    PurchaseMessage msg = new PurchaseMessage();
-	    msg.clientID = clientId;
-	    msg.location = location;
-	    msg.total = obj.getDouble(jsonField_total);
+	    msg.setClientID(clientId);
+	    msg.setLocation(location);
 	    
 	    // the "PurchaseMessage" java object has a field to store a text message that is part of the defined
 	    // payload for some of the messages in this solution. Incoming purchases do not have a text message,
 	    // so we will likley not be loading any messages
-	    if (obj.has(jsonField_message)) {
-		    msg.message = obj.getString(jsonField_message);
+	    PurchaseMessageJsonCodec.decode(strJsonData, fields, msg);
+	    if (storing) {
+	    	Purchases.add(msg);
 	    }
-        
-	    // iterate over a potential array of product purchases
-	    ArrayList<JSONObject> edgePairsObj = parseJsonArray(obj, jsonField_purchases);
-	    for (JSONObject jsonObj: edgePairsObj) {
-	    	ProductPurchase purchase = new ProductPurchase();
-	    	purchase.amount = jsonObj.getDouble(jsonField_amount);
-	    	purchase.product  = jsonObj.getString(jsonField_product);
-	    	
-	    	// add this product purchase into the PurchaseMessage object
-	    	msg.Purchases.add(purchase);
+	    
+	    return msg;
+    }
+	/**
+	 * Loads a payload in the generated binary format (see BinaryCodecSupport) into Java objects, decoding 
+	 * only the requested fields, in the same way as loadFromJson().
+	 * 
+	 * @param binaryData
+	 * @param clientId
+	 * @param location
+	 * @param fields
+	 * @return
+	 */
+	public PurchaseMessage loadFromBinary(ByteBuffer binaryData, String clientId, String location, EnumSet<PurchaseField> fields) {
+    	logger.debug("loading message from binary payload.");
+
+	    PurchaseMessage msg = new PurchaseMessage();
+	    msg.setClientID(clientId);
+	    msg.setLocation(location);
+	    PurchaseMessageBinaryCodec.decode(binaryData, fields, msg);
+	    if (storing) {
+	    	Purchases.add(msg);
 	    }
-	    Purchases.add(msg);
 	    
-	    logger.debug("loaded " + msg.Purchases.size() + " product purchases from json payload.");
 	    return msg;
     }
 }
@@ -0,0 +1,134 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import com.solacesystems.jcsmp.Topic;
+
+/**
+ * A precompiled outbound notification. The pattern text is split once, at construction, into constant
+ * UTF-8 byte segments and typed slots, e.g.
+ *
+ *     "Thank you for your purchase at Geek2's store, location {location}"
+ *
+ * Supported slots are {location}, {client}, {amount} (rendered with two decimals) and {text}. Rendering
+ * copies the constant bytes and encodes the slot values straight into an OutboundBuffer. The template also
+ * owns the topic cache for its message type, so agents get both the payload and the destination from it.
+ * A template can be marked guaranteed, in which case its notifications are published persistent and tracked
+ * until the broker acknowledges them (see OutboundPublisher).
+ *
+ * Not thread safe, as the topic cache is not even for lookups: each agent instance has its own templates,
+ * since several instances of an agent can run in one JVM (see LoopbackRunner).
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class NotificationTemplate {
+	private static final int SLOT_LOCATION = 0;
+	private static final int SLOT_CLIENT = 1;
+	private static final int SLOT_AMOUNT = 2;
+	private static final int SLOT_TEXT = 3;
+	private static final String[] SLOT_NAMES = {"{location}", "{client}", "{amount}", "{text}"};
+
+	// segments[i] is written before slots[i]; the last segment has no slot after it
+	private final byte[][] segments;
+	private final int[] slots;
+	private final TopicCache topics;
+	private final boolean guaranteed;
+
+	/**
+	 * Creates a template for notifications published as direct messages.
+	 *
+	 * @param messageType the first level of the outbound topic, e.g. "confirm"
+	 * @param pattern the notification text with its slots
+	 */
+	public NotificationTemplate(String messageType, String pattern) {
+		this(messageType, pattern, false);
+	}
+
+	/**
+	 * @param messageType the first level of the outbound topic, e.g. "confirm"
+	 * @param pattern the notification text with its slots
+	 * @param guaranteed true to publish these notifications persistent, with broker acknowledgement
+	 */
+	public NotificationTemplate(String messageType, String pattern, boolean guaranteed) {
+		this.guaranteed = guaranteed;
+		ArrayList<byte[]> segmentList = new ArrayList<byte[]>();
+		ArrayList<Integer> slotList = new ArrayList<Integer>();
+		int pos = 0;
+		while (true) {
+			int nextSlot = -1;
+			int nextIndex = pattern.length();
+			for (int s = 0; s < SLOT_NAMES.length; s++) {
+				int idx = pattern.indexOf(SLOT_NAMES[s], pos);
+				if (idx >= 0 && idx < nextIndex) {
+					nextIndex = idx;
+					nextSlot = s;
+				}
+			}
+			segmentList.add(pattern.substring(pos, nextIndex).getBytes(StandardCharsets.UTF_8));
+			if (nextSlot < 0) {
+				break;
+			}
+			slotList.add(nextSlot);
+			pos = nextIndex + SLOT_NAMES[nextSlot].length();
+		}
+		segments = segmentList.toArray(new byte[segmentList.size()][]);
+		slots = new int[slotList.size()];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = slotList.get(i);
+		}
+		topics = new TopicCache(messageType);
+	}
+
+	/**
+	 * Renders the notification into out, replacing its previous contents.
+	 *
+	 * @param out
+	 * @param location
+	 * @param clientId
+	 * @param amount value for the {amount} slot, ignored if the template has none
+	 * @param text value for the {text} slot, ignored if the template has none
+	 */
+	public void render(OutboundBuffer out, String location, String clientId, double amount, String text) {
+		out.reset();
+		for (int i = 0; i < slots.length; i++) {
+			out.write(segments[i]);
+			switch (slots[i]) {
+			case SLOT_LOCATION: out.writeUtf8(location); break;
+			case SLOT_CLIENT: out.writeUtf8(clientId); break;
+			case SLOT_AMOUNT: out.writeAmount(amount); break;
+			case SLOT_TEXT: out.writeUtf8(text); break;
+			}
+		}
+		out.write(segments[slots.length]);
+	}
+
+	/**
+	 * Returns the cached [type]/location/clientId topic for this notification.
+	 *
+	 * @param location
+	 * @param clientId
+	 * @return
+	 */
+	public Topic getTopic(String location, String clientId) {
+		return topics.get(location, clientId);
+	}
+
+	public boolean isGuaranteed() {
+		return guaranteed;
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.solacesystems.jcsmp.Topic;
+
+/**
+ * Coalesces and rate limits outbound notifications per topic, i.e. per message type, location and customer,
+ * so a burst of purchases turns into a handful of notifications instead of one each.
+ *
+ * For every topic:
+ *   - a notification identical to the last one sent on it within geek2.throttle.dedupeMillis (default 60000)
+ *     is suppressed;
+ *   - notifications are at least geek2.throttle.debounceMillis apart (default 1000), and limited by a token
+ *     bucket of geek2.throttle.burst tokens (default 5) refilled one every geek2.throttle.refillMillis
+ *     (default 10000);
+ *   - a notification that can not go out yet is held back, and replaced by any newer one for the same topic
+ *     (coalesced), so when the topic is allowed again only the latest is sent.
+ *
+ * The agent offers each notification, sends it right away if offer() says so, and regularly sends whatever
+ * pollDue() hands back. State for at most TopicCache.MAX_ENTRIES topics is kept, least recently used first
+ * out; a held back notification is still sent if its topic's state is evicted. Not thread safe, it is only
+ * used on the processing thread.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class NotificationThrottle {
+	public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("geek2.throttle.enabled", "true"));
+	public static final long DEBOUNCE_MILLIS = Long.getLong("geek2.throttle.debounceMillis", 1000);
+	public static final long DEDUPE_MILLIS = Long.getLong("geek2.throttle.dedupeMillis", 60000);
+	public static final int BURST = Math.max(1, Integer.getInteger("geek2.throttle.burst", 5));
+	public static final long REFILL_MILLIS = Math.max(1, Long.getLong("geek2.throttle.refillMillis", 10000));
+
+	/**
+	 * A notification held back for a topic, as handed back by pollDue().
+	 */
+	public static class Notification {
+		public NotificationTemplate template;
+		public Topic topic;
+		public String location;
+		public String clientId;
+		public double amount;
+		public String text;
+
+		void set(NotificationTemplate template, Topic topic, String location, String clientId, double amount, String text) {
+			this.template = template;
+			this.topic = topic;
+			this.location = location;
+			this.clientId = clientId;
+			this.amount = amount;
+			this.text = text;
+		}
+
+		boolean sameAs(NotificationTemplate template, String location, double amount, String text) {
+			return this.template == template && this.location.equals(location) && this.amount == amount
+					&& (this.text == null ? text == null : this.text.equals(text));
+		}
+	}
+
+	private static class TopicState {
+		int tokens = BURST;
+		long lastRefill;
+		long lastSent = Long.MIN_VALUE / 2;
+		// what was last sent, for suppressing repeats
+		final Notification sent = new Notification();
+		boolean hasSent;
+		// the notification held back, if bPending
+		final Notification pending = new Notification();
+		boolean bPending;
+		long due;
+
+		TopicState(long now) {
+			lastRefill = now;
+		}
+
+		void refill(long now) {
+			long earned = (now - lastRefill) / REFILL_MILLIS;
+			if (earned > 0) {
+				tokens = (int) Math.min(BURST, tokens + earned);
+				lastRefill += earned * REFILL_MILLIS;
+			}
+			if (tokens == BURST) {
+				lastRefill = now;
+			}
+		}
+
+		/**
+		 * @return the earliest time a notification may be sent, now if it may be sent now
+		 */
+		long allowedAt(long now) {
+			refill(now);
+			long at = Math.max(now, lastSent + DEBOUNCE_MILLIS);
+			if (tokens == 0) {
+				at = Math.max(at, lastRefill + REFILL_MILLIS);
+			}
+			return at;
+		}
+
+		void markSent(long now, Notification notification) {
+			tokens--;
+			lastSent = now;
+			sent.set(notification.template, notification.topic, notification.location, notification.clientId,
+					notification.amount, notification.text);
+			hasSent = true;
+		}
+	}
+
+	private final LruCache<Topic, TopicState> states = new LruCache<Topic, TopicState>(TopicCache.MAX_ENTRIES);
+	private final PriorityQueue<TopicState> dueQueue = new PriorityQueue<TopicState>(64, (a, b) -> Long.compare(a.due, b.due));
+	// handed back by offer() and pollDue(), valid until the next call
+	private final Notification outgoing = new Notification();
+
+	private final AtomicLong sentNow;
+	private final AtomicLong sentDeferred;
+	private final AtomicLong coalesced;
+	private final AtomicLong suppressed;
+
+	public NotificationThrottle(AgentMetrics metrics) {
+		sentNow = metrics.counter("throttle.sentImmediately");
+		sentDeferred = metrics.counter("throttle.sentDeferred");
+		coalesced = metrics.counter("throttle.coalesced");
+		suppressed = metrics.counter("throttle.suppressed");
+	}
+
+	/**
+	 * Offers a notification for its topic.
+	 *
+	 * @return true if it should be sent now, false if it was suppressed or held back
+	 */
+	public boolean offer(NotificationTemplate template, Topic topic, String location, String clientId,
+			double amount, String text, long now) {
+		TopicState state = states.get(topic);
+		if (state == null) {
+			state = new TopicState(now);
+			states.put(topic, state);
+		}
+		if (state.hasSent && now - state.lastSent < DEDUPE_MILLIS && state.sent.sameAs(template, location, amount, text)) {
+			if (state.bPending) {
+				// the newest news is what was already sent, so drop the held back one too
+				state.bPending = false;
+				dueQueue.remove(state);
+				coalesced.incrementAndGet();
+			}
+			suppressed.incrementAndGet();
+			return false;
+		}
+		if (state.bPending) {
+			state.pending.set(template, topic, location, clientId, amount, text);
+			coalesced.incrementAndGet();
+			return false;
+		}
+		long allowedAt = state.allowedAt(now);
+		outgoing.set(template, topic, location, clientId, amount, text);
+		if (allowedAt <= now) {
+			state.markSent(now, outgoing);
+			sentNow.incrementAndGet();
+			return true;
+		}
+		state.pending.set(template, topic, location, clientId, amount, text);
+		state.bPending = true;
+		state.due = allowedAt;
+		dueQueue.add(state);
+		return false;
+	}
+
+	/**
+	 * @return true if notifications are held back
+	 */
+	public boolean hasPending() {
+		return !dueQueue.isEmpty();
+	}
+
+	/**
+	 * @return milliseconds until the next held back notification is due, 0 if one is due already
+	 */
+	public long millisUntilDue(long now) {
+		TopicState next = dueQueue.peek();
+		return next == null ? Long.MAX_VALUE : Math.max(0, next.due - now);
+	}
+
+	/**
+	 * Returns the next held back notification that is due, and counts it as sent. The returned object is
+	 * re-used, so its fields must be read before the next call to offer() or pollDue().
+	 *
+	 * @param now
+	 * @return the notification, or null if none is due
+	 */
+	public Notification pollDue(long now) {
+		while (true) {
+			TopicState state = dueQueue.peek();
+			if (state == null || state.due > now) {
+				return null;
+			}
+			dueQueue.poll();
+			long allowedAt = state.allowedAt(now);
+			if (allowedAt > now) {
+				// not allowed yet after all, e.g. the clock moved
+				state.due = allowedAt;
+				dueQueue.add(state);
+				continue;
+			}
+			state.bPending = false;
+			Notification pending = state.pending;
+			outgoing.set(pending.template, pending.topic, pending.location, pending.clientId, pending.amount, pending.text);
+			state.markSent(now, outgoing);
+			sentDeferred.incrementAndGet();
+			return outgoing;
+		}
+	}
+}
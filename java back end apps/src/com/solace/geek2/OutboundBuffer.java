@@ -0,0 +1,212 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+/**
+ * A reusable byte buffer that outbound payloads are rendered into. The buffer only grows, so once it
+ * has reached the size of the largest notification, rendering into it does not allocate.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public final class OutboundBuffer {
+	private byte[] data;
+	private int length;
+
+	public OutboundBuffer(int initialCapacity) {
+		data = new byte[initialCapacity];
+	}
+
+	/**
+	 * Empties the buffer so the next payload can be rendered into it.
+	 */
+	public void reset() {
+		length = 0;
+	}
+
+	/**
+	 * The backing array. Only the first length() bytes are valid.
+	 * @return
+	 */
+	public byte[] bytes() {
+		return data;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public void writeByte(int b) {
+		ensureCapacity(1);
+		data[length++] = (byte) b;
+	}
+
+	public void write(byte[] src) {
+		ensureCapacity(src.length);
+		System.arraycopy(src, 0, data, length, src.length);
+		length += src.length;
+	}
+
+	public void write(byte[] src, int offset, int len) {
+		ensureCapacity(len);
+		System.arraycopy(src, offset, data, length, len);
+		length += len;
+	}
+
+	/**
+	 * Appends the UTF-8 encoding of a string, without going through String.getBytes().
+	 *
+	 * @param s
+	 */
+	public void writeUtf8(String s) {
+		writeUtf8(s, 0, s.length());
+	}
+
+	/**
+	 * Appends the UTF-8 encoding of the chars of s in [start, end).
+	 *
+	 * @param s
+	 * @param start
+	 * @param end
+	 */
+	public void writeUtf8(String s, int start, int end) {
+		// worst case is 3 bytes per char (a surrogate pair is 2 chars for 4 bytes)
+		ensureCapacity((end - start) * 3);
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				data[length++] = (byte) c;
+			}
+			else if (c < 0x800) {
+				data[length++] = (byte) (0xC0 | (c >> 6));
+				data[length++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				data[length++] = (byte) (0xF0 | (cp >> 18));
+				data[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				data[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				data[length++] = (byte) (0x80 | (cp & 0x3F));
+			}
+			else if (Character.isSurrogate(c)) {
+				// unpaired surrogate, same replacement String.getBytes() would use
+				data[length++] = (byte) '?';
+			}
+			else {
+				data[length++] = (byte) (0xE0 | (c >> 12));
+				data[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				data[length++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Appends a dollar amount with exactly two decimals (e.g. 12.5 is written as "12.50").
+	 *
+	 * @param amount
+	 */
+	public void writeAmount(double amount) {
+		long cents = Math.round(amount * 100.0);
+		if (cents < 0) {
+			ensureCapacity(1);
+			data[length++] = '-';
+			cents = -cents;
+		}
+		writeDigits(cents / 100);
+		ensureCapacity(3);
+		int fraction = (int) (cents % 100);
+		data[length++] = '.';
+		data[length++] = (byte) ('0' + fraction / 10);
+		data[length++] = (byte) ('0' + fraction % 10);
+	}
+
+	/**
+	 * Appends a non-negative whole number in decimal.
+	 *
+	 * @param value
+	 */
+	public void writeDigits(long value) {
+		int digits = 1;
+		for (long v = value / 10; v > 0; v /= 10) {
+			digits++;
+		}
+		ensureCapacity(digits);
+		int pos = length + digits;
+		do {
+			data[--pos] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+		length += digits;
+	}
+
+	/**
+	 * Appends a 32 bit big-endian value.
+	 *
+	 * @param value
+	 */
+	public void writeInt(int value) {
+		ensureCapacity(4);
+		data[length++] = (byte) (value >>> 24);
+		data[length++] = (byte) (value >>> 16);
+		data[length++] = (byte) (value >>> 8);
+		data[length++] = (byte) value;
+	}
+
+	/**
+	 * Overwrites the 32 bit big-endian value at a position already written, e.g. a length placeholder.
+	 *
+	 * @param position
+	 * @param value
+	 */
+	public void writeIntAt(int position, int value) {
+		data[position] = (byte) (value >>> 24);
+		data[position + 1] = (byte) (value >>> 16);
+		data[position + 2] = (byte) (value >>> 8);
+		data[position + 3] = (byte) value;
+	}
+
+	/**
+	 * Appends a 64 bit big-endian value.
+	 *
+	 * @param value
+	 */
+	public void writeLong(long value) {
+		ensureCapacity(8);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			data[length++] = (byte) (value >>> shift);
+		}
+	}
+
+	/**
+	 * Appends an unsigned LEB128 varint (7 bits per byte, low bits first).
+	 *
+	 * @param value a non-negative value
+	 */
+	public void writeVarint(int value) {
+		ensureCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			data[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[length++] = (byte) value;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > data.length) {
+			byte[] bigger = new byte[Math.max(data.length * 2, length + extra)];
+			System.arraycopy(data, 0, bigger, 0, length);
+			data = bigger;
+		}
+	}
+}
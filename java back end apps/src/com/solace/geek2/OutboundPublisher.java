@@ -0,0 +1,322 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.solacesystems.jcsmp.JCSMPException;
+import com.solacesystems.jcsmp.Topic;
+
+/**
+ * Publishes an agent's outbound messages on a dedicated thread, so the processing thread only renders
+ * the payload and moves on.
+ *
+ * Outbound messages live in a fixed pool of slots, each with its own payload buffer (and whatever message
+ * object the transport keeps with it). The processing thread claims a free slot, renders into it and hands
+ * it over; the publisher thread collects ready slots into batches of up to geek2.publisher.batchSize
+ * messages (default 50, the most sendMultiple() accepts), waiting at most geek2.publisher.lingerMillis
+ * (default 1) for a batch to fill, hands the whole batch to the transport in one call and returns the slots
+ * to the pool. When all geek2.publisher.slots slots (default 1024) are in flight, claiming a slot blocks,
+ * which pushes back on the processing thread instead of queueing without bound.
+ *
+ * Slots marked guaranteed are published persistent and stay in flight until the transport reports the
+ * broker's acknowledgement. At most geek2.publisher.window (default 255, the largest
+ * publish window the API allows) guaranteed messages are unacknowledged at a time; beyond that the
+ * publisher thread waits for acks. The publish-to-ack latency of every guaranteed message is recorded,
+ * and a message the broker rejects is re-sent up to geek2.publisher.maxRetries times (default 3) before it
+ * is dropped and counted. Retries re-use the slot, so they are bounded by the window too. Guaranteed
+ * publishing can be switched off with -Dgeek2.publisher.guaranteed=false, which sends everything direct.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class OutboundPublisher implements Runnable {
+	private static final Logger logger = Logger.getLogger(OutboundPublisher.class.getName());
+	public static final int BATCH_SIZE = Math.min(50, Math.max(1, Integer.getInteger("geek2.publisher.batchSize", 50)));
+	public static final long LINGER_MILLIS = Long.getLong("geek2.publisher.lingerMillis", 1);
+	public static final int SLOTS = Math.max(BATCH_SIZE, Integer.getInteger("geek2.publisher.slots", 1024));
+	public static final boolean GUARANTEED = Boolean.parseBoolean(System.getProperty("geek2.publisher.guaranteed", "true"));
+	public static final int WINDOW = Math.min(255, Math.max(BATCH_SIZE, Integer.getInteger("geek2.publisher.window", 255)));
+	public static final int MAX_RETRIES = Integer.getInteger("geek2.publisher.maxRetries", 3);
+	// how long close() waits for outstanding acks
+	public static final long CLOSE_TIMEOUT_MILLIS = Long.getLong("geek2.publisher.closeTimeoutMillis", 5000);
+
+	/**
+	 * One outbound message: the payload is rendered into buffer on the processing thread, and sent by the
+	 * transport on the publisher thread.
+	 */
+	public static class Slot {
+		public final OutboundBuffer buffer = new OutboundBuffer(256);
+		public Topic topic;
+		// null unless the payload is not JSON, e.g. BinaryCodecSupport.CONTENT_TYPE
+		public String contentType;
+		public boolean guaranteed;
+		// the receivers can inflate an x-geek2-deflate payload, so the transport may compress it; not so for
+		// notifications, which the web POS reads
+		public boolean compressible;
+		// the transport's message for this slot, re-used for every send
+		Object transportMessage;
+		// set by the publisher thread, read by the ack callback
+		volatile long sentNanos;
+		int attempts;
+	}
+
+	// queued by close() to stop the publisher thread
+	private static final Slot STOP = new Slot();
+
+	private final Transport.Publisher sender;
+	private final BlockingQueue<Slot> freeSlots = new ArrayBlockingQueue<Slot>(SLOTS);
+	// every slot, plus STOP, fits at once, so neither publish() nor a retry ever blocks
+	private final BlockingQueue<Slot> readySlots = new ArrayBlockingQueue<Slot>(SLOTS + 1);
+	private final Semaphore window = new Semaphore(WINDOW);
+	private final Slot[] batch = new Slot[BATCH_SIZE];
+	// whether batch[i] went out guaranteed; an acked slot can be re-claimed before sendBatch() is done with it
+	private final boolean[] batchGuaranteed = new boolean[BATCH_SIZE];
+	private final Thread thread;
+	private volatile boolean bStopping = false;
+
+	private final AtomicLong published;
+	private final AtomicLong batches;
+	private final AtomicLong publishErrors;
+	private final AtomicLong acked;
+	private final AtomicLong retried;
+	private final AtomicLong dropped;
+	private final AtomicLong windowWaitNanos;
+	private final LatencyHistogram ackLatency;
+
+	/**
+	 * Creates the transport's publisher, with this publisher handling its acks, and starts the publisher thread.
+	 *
+	 * @param transport
+	 * @param metrics
+	 * @throws JCSMPException
+	 */
+	public OutboundPublisher(Transport transport, AgentMetrics metrics) throws JCSMPException {
+		for (int i = 0; i < SLOTS; i++) {
+			freeSlots.add(new Slot());
+		}
+		published = metrics.counter("publisher.messages");
+		batches = metrics.counter("publisher.batches");
+		publishErrors = metrics.counter("publisher.errors");
+		acked = metrics.counter("publisher.guaranteed.acked");
+		retried = metrics.counter("publisher.guaranteed.retried");
+		dropped = metrics.counter("publisher.guaranteed.dropped");
+		windowWaitNanos = metrics.counter("publisher.guaranteed.windowWaitNanos");
+		ackLatency = metrics.histogram("publisher.guaranteed.ackLatency");
+
+		sender = transport.createPublisher(new AckHandler());
+
+		thread = new Thread(this, "outbound-publisher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Claims an empty slot to render a message into, waiting if every slot is in flight.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Slot claim() throws InterruptedException {
+		Slot slot = freeSlots.take();
+		slot.buffer.reset();
+		slot.contentType = null;
+		slot.guaranteed = false;
+		slot.compressible = false;
+		slot.attempts = 0;
+		return slot;
+	}
+
+	/**
+	 * Queues a rendered slot for publishing.
+	 *
+	 * @param slot
+	 */
+	public void publish(Slot slot) {
+		readySlots.add(slot);
+	}
+
+	/**
+	 * Publishes whatever is still queued, waits (up to geek2.publisher.closeTimeoutMillis) for outstanding
+	 * guaranteed messages to be acknowledged, and stops the publisher thread.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		// queued behind everything already published, so the publisher thread sends all of that first
+		readySlots.put(STOP);
+		thread.join();
+	}
+
+	@Override
+	public void run() {
+		long stopDeadline = 0;
+		try {
+			while (true) {
+				int count = collectBatch();
+				if (count > 0) {
+					sendBatch(count);
+				}
+				else if (bStopping) {
+					// nothing left to send, only retries of unacknowledged messages can still turn up
+					int unacked = WINDOW - window.availablePermits();
+					if (unacked == 0) {
+						break;
+					}
+					if (stopDeadline == 0) {
+						stopDeadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+					}
+					else if (System.currentTimeMillis() > stopDeadline) {
+						logger.warn("Stopping with " + unacked + " guaranteed messages still unacknowledged");
+						break;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Outbound publisher interrupted, stopping");
+		}
+	}
+
+	/**
+	 * Waits for a first ready slot, then for up to the linger time for the batch to fill. Once stopping,
+	 * the wait for a first slot is bounded too.
+	 */
+	private int collectBatch() throws InterruptedException {
+		int count = 0;
+		long deadline = 0;
+		while (count < BATCH_SIZE) {
+			Slot next;
+			if (count == 0) {
+				next = bStopping ? readySlots.poll(LINGER_MILLIS + 10, TimeUnit.MILLISECONDS) : readySlots.take();
+				deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MILLIS);
+			}
+			else {
+				next = readySlots.poll();
+				if (next == null) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining > 0) {
+						next = readySlots.poll(remaining, TimeUnit.NANOSECONDS);
+					}
+				}
+			}
+			if (next == null) {
+				break;
+			}
+			if (next == STOP) {
+				bStopping = true;
+				continue;
+			}
+			batch[count++] = next;
+		}
+		return count;
+	}
+
+	private void sendBatch(int count) throws InterruptedException {
+		int guaranteedCount = 0;
+		for (int i = 0; i < count; i++) {
+			Slot slot = batch[i];
+			slot.guaranteed &= GUARANTEED;
+			batchGuaranteed[i] = slot.guaranteed;
+			if (slot.guaranteed) {
+				guaranteedCount++;
+			}
+		}
+		if (guaranteedCount > 0 && !window.tryAcquire(guaranteedCount)) {
+			long start = System.nanoTime();
+			window.acquire(guaranteedCount);
+			windowWaitNanos.addAndGet(System.nanoTime() - start);
+		}
+		int sent = 0;
+		try {
+			long now = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				batch[i].sentNanos = now;
+			}
+			while (sent < count) {
+				sent += sender.send(batch, sent, count - sent);
+			}
+			batches.incrementAndGet();
+		} catch (JCSMPException e) {
+			// the messages of the call that threw were not accepted; the ones before it were
+			publishErrors.incrementAndGet();
+			logger.warn("Failed to publish " + (count - sent) + " of a batch of " + count + " messages", e);
+		}
+		published.addAndGet(sent);
+		for (int i = 0; i < count; i++) {
+			Slot slot = batch[i];
+			batch[i] = null;
+			if (!batchGuaranteed[i]) {
+				release(slot);
+			}
+			else if (i >= sent) {
+				window.release();
+				retryOrDrop(slot);
+			}
+			// sent guaranteed slots stay in flight until AckHandler sees their ack
+		}
+	}
+
+	/**
+	 * Queues a rejected guaranteed message to be sent again, or drops it once it is out of retries.
+	 */
+	private void retryOrDrop(Slot slot) {
+		if (++slot.attempts <= MAX_RETRIES) {
+			retried.incrementAndGet();
+			readySlots.add(slot);
+		}
+		else {
+			dropped.incrementAndGet();
+			logger.error("Dropping guaranteed message to " + slot.topic.getName() + " after " + slot.attempts + " attempts");
+			release(slot);
+		}
+	}
+
+	/**
+	 * Returns a slot to the pool. Slots handed to publish() are returned by the publisher itself; this is for
+	 * claimed slots that were sent some other way, such as in a transaction.
+	 *
+	 * @param slot
+	 */
+	public void release(Slot slot) {
+		slot.topic = null;
+		freeSlots.add(slot);
+	}
+
+	/**
+	 * Receives the outcome of guaranteed messages, on the transport's callback thread.
+	 */
+	private class AckHandler implements Transport.AckListener {
+		@Override
+		public void acked(Slot slot) {
+			ackLatency.record(System.nanoTime() - slot.sentNanos);
+			acked.incrementAndGet();
+			window.release();
+			release(slot);
+		}
+
+		@Override
+		public void rejected(Slot slot, Exception cause) {
+			publishErrors.incrementAndGet();
+			logger.warn("Broker rejected guaranteed message", cause);
+			window.release();
+			retryOrDrop(slot);
+		}
+	}
+}
@@ -0,0 +1,708 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.solacesystems.jcsmp.JCSMPException;
+
+/**
+ * Runs one instance of a partitioned agent: instead of every instance getting every purchase and keeping
+ * every client, each owns some of the -Dgeek2.partitions client partitions (see HashRing) and subscribes
+ * only to those. Producers put the client's partition in the topic, purchase/[location]/[client]/[partition],
+ * so the broker does the filtering; purchases on plain purchase/[location]/[client] topics, e.g. from the
+ * web POS, go to every instance and each keeps those of its own partitions.
+ *
+ * The instances of an agent form a group, geek2.partition.group (default the agent's class name). Each one
+ * announces itself on partition/[group]/member/[instance] every geek2.partition.heartbeatMillis (default
+ * 1000), with the time it joined. A join takes effect geek2.partition.handoffMillis (default 3000) after
+ * it, which gives every member time to hear of it; so does a leave, which an instance announces when asked
+ * to stop (see leave()). An instance that is not heard from for geek2.partition.timeoutMillis (default
+ * 5000) is taken to have left, from the handoff time after its last heartbeat. Since all of these times
+ * come from the messages, every member works out the same sequence of epochs, each with the members and
+ * ring in force from its start on, and places every purchase in the same one: the epoch of the time the
+ * purchase was sent (or received, if the transport does not say). A partition's purchases before an epoch
+ * are handled by its old owner, those from then on by its new owner, and none by both.
+ *
+ * When a partition changes hands, both owners are subscribed to it across the change. The old owner
+ * waits geek2.partition.graceMillis (default 1000) after the epoch starts for the last of its purchases,
+ * then writes the partition's state into a snapshot (see Owner), forgets it, and publishes it to the new
+ * owner on partition/[group]/snapshot/[instance]/[partition]. The new owner holds the partition's purchases
+ * until the snapshot is in, then handles them in the order they came. If no snapshot comes within
+ * geek2.partition.snapshotWaitMillis (default 10000), e.g. because the old owner died, it goes on without.
+ * A purchase that arrives at its old owner after the handoff is late, and dropped.
+ *
+ * The group's control messages do not queue behind the purchases in the agent's ingest lanes: they are
+ * passed to the processing thread in a queue of their own (see offerControl()), so that a backlog neither
+ * delays heartbeats until the instance is taken to have left, nor blocks the thread that delivers them.
+ *
+ * Used on the agent's processing thread, apart from leave() and offerControl(). Keeps partition.members and partition.owned
+ * (now), and counts partition.accepted, .filtered (not this instance's), .held, .late, .handoffs,
+ * .takeovers, .snapshotBytes, .snapshotTimeouts and .timeouts (members taken to have left).
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class PartitionCoordinator {
+	private static final Logger logger = Logger.getLogger(PartitionCoordinator.class.getName());
+	public static final long HEARTBEAT_MILLIS = Math.max(1, Long.getLong("geek2.partition.heartbeatMillis", 1000));
+	public static final long TIMEOUT_MILLIS = Long.getLong("geek2.partition.timeoutMillis", 5000);
+	public static final long HANDOFF_MILLIS = Long.getLong("geek2.partition.handoffMillis", 3000);
+	public static final long GRACE_MILLIS = Long.getLong("geek2.partition.graceMillis", 1000);
+	public static final long SNAPSHOT_WAIT_MILLIS = Long.getLong("geek2.partition.snapshotWaitMillis", 10000);
+	// purchases on topics without a partition level, which every instance gets
+	static final String UNPARTITIONED_TOPICS = "purchase/*/*";
+	private static final int SNAPSHOT_VERSION = 3;
+	// how long epochs are kept after the next one starts: beyond any handoff, snapshot wait or straggler
+	private static final long RETAIN_MILLIS = GRACE_MILLIS + SNAPSHOT_WAIT_MILLIS + HANDOFF_MILLIS;
+	private static final long PENDING_TICK_MILLIS = 50;
+	private static final AtomicInteger instancesInJvm = new AtomicInteger();
+
+	/**
+	 * The agent's side of a handoff.
+	 */
+	public interface Owner {
+		/**
+		 * Writes the state of the clients in a partition, and forgets it.
+		 *
+		 * @param partition
+		 * @param out
+		 * @throws IOException
+		 */
+		void handOff(int partition, DataOutputStream out) throws IOException;
+
+		/**
+		 * Reads the state written by handOff() on the old owner, and adds it to this instance's.
+		 *
+		 * @param partition
+		 * @param in
+		 * @throws IOException
+		 */
+		void takeOver(int partition, DataInputStream in) throws IOException;
+
+		/**
+		 * Handles a purchase that was held while the partition's snapshot was on its way.
+		 *
+		 * @param topic
+		 * @param msg
+		 * @throws JCSMPException
+		 */
+		void replay(String topic, TransportMessage msg) throws JCSMPException;
+
+		/**
+		 * Publishes a control message.
+		 *
+		 * @param topic
+		 * @param payload
+		 * @param bText true for UTF-8 text
+		 * @throws JCSMPException
+		 */
+		void send(String topic, byte[] payload, boolean bText) throws JCSMPException;
+	}
+
+	private static class Member {
+		final long joinStamp;
+		// the sender's time of its last heartbeat, and ours when it came
+		long lastStamp;
+		long lastSeen;
+		long leaveEffective = Long.MAX_VALUE;
+
+		Member(long joinStamp) {
+			this.joinStamp = joinStamp;
+		}
+	}
+
+	private static class Epoch {
+		final long start;
+		final HashRing ring;
+		final boolean[] mine;
+
+		Epoch(long start, HashRing ring, String self, int partitions) {
+			this.start = start;
+			this.ring = ring;
+			mine = new boolean[partitions];
+			for (int p = 0; p < partitions; p++) {
+				mine[p] = self.equals(ring.owner(p));
+			}
+		}
+	}
+
+	private final String group;
+	private final String self;
+	private final int partitions = HashRing.PARTITIONS;
+	private final Transport transport;
+	private final Transport.Listener listener;
+	private final Owner owner;
+	private final String prefix;
+	private final TreeMap<String, Member> members = new TreeMap<String, Member>();
+	// oldest first; the first also covers everything before its start
+	private ArrayList<Epoch> epochs = new ArrayList<Epoch>();
+	private final HashMap<String, HashRing> rings = new HashMap<String, HashRing>();
+	// by epoch start: the partitions this instance handed off, and those whose snapshot it has taken (or
+	// given up waiting for), at the start of the epoch
+	private final HashMap<Long, BitSet> handedOff = new HashMap<Long, BitSet>();
+	private final HashMap<Long, BitSet> resolved = new HashMap<Long, BitSet>();
+	// per partition: the start of the epoch it was last handed off at, purchases before which are late
+	private final long[] handedOffAt;
+	private final boolean[] subscribed;
+	private final ArrayList<ArrayList<TransportMessage>> held = new ArrayList<ArrayList<TransportMessage>>();
+	// control messages, from the transport's thread
+	private final ConcurrentLinkedQueue<TransportMessage> control = new ConcurrentLinkedQueue<TransportMessage>();
+	private long nextHeartbeat;
+	private long nextTick;
+	private volatile boolean bLeaveRequested;
+	private boolean bLeaving;
+	private boolean bFinished;
+
+	private final AtomicLong membersGauge;
+	private final AtomicLong owned;
+	private final AtomicLong accepted;
+	private final AtomicLong filtered;
+	private final AtomicLong heldCount;
+	private final AtomicLong late;
+	private final AtomicLong handoffs;
+	private final AtomicLong takeovers;
+	private final AtomicLong snapshotBytes;
+	private final AtomicLong snapshotTimeouts;
+	private final AtomicLong timeouts;
+
+	/**
+	 * @param group the name shared by the instances that split the partitions between them
+	 * @param transport
+	 * @param listener receives the purchases of the partitions subscribed to
+	 * @param owner
+	 * @param metrics
+	 */
+	public PartitionCoordinator(String group, Transport transport, Transport.Listener listener, Owner owner, AgentMetrics metrics) {
+		this.group = group;
+		String id = System.getProperty("geek2.partition.instance");
+		if (id == null) {
+			id = ManagementFactory.getRuntimeMXBean().getName() + "-" + instancesInJvm.incrementAndGet();
+		}
+		self = id.replace('/', '_');
+		this.transport = transport;
+		this.listener = listener;
+		this.owner = owner;
+		prefix = "partition/" + group + "/";
+		handedOffAt = new long[partitions];
+		Arrays.fill(handedOffAt, Long.MIN_VALUE);
+		subscribed = new boolean[partitions];
+		for (int p = 0; p < partitions; p++) {
+			held.add(null);
+		}
+		membersGauge = metrics.counter("partition.members");
+		owned = metrics.counter("partition.owned");
+		accepted = metrics.counter("partition.accepted");
+		filtered = metrics.counter("partition.filtered");
+		heldCount = metrics.counter("partition.held");
+		late = metrics.counter("partition.late");
+		handoffs = metrics.counter("partition.handoffs");
+		takeovers = metrics.counter("partition.takeovers");
+		snapshotBytes = metrics.counter("partition.snapshotBytes");
+		snapshotTimeouts = metrics.counter("partition.snapshotTimeouts");
+		timeouts = metrics.counter("partition.timeouts");
+	}
+
+	/**
+	 * @return the topics of the group's control messages that this instance needs, for the agent to route
+	 * to onControl()
+	 */
+	public String[] getControlTopics() {
+		return new String[] {prefix + "member/*", prefix + "snapshot/" + self + "/*"};
+	}
+
+	/**
+	 * Joins the group: subscribes, and announces this instance. Call once the agent can publish.
+	 *
+	 * @throws JCSMPException
+	 */
+	public void start() throws JCSMPException {
+		long now = System.currentTimeMillis();
+		logger.info("Instance " + self + " joining group " + group + " for its share of " + partitions + " partitions");
+		Member me = new Member(now);
+		me.lastStamp = now;
+		me.lastSeen = now;
+		members.put(self, me);
+		for (String topic : getControlTopics()) {
+			transport.subscribe(topic, listener);
+		}
+		transport.subscribe(UNPARTITIONED_TOPICS, listener);
+		tick(now);
+	}
+
+	/**
+	 * @return this instance's name in the group
+	 */
+	public String getInstance() {
+		return self;
+	}
+
+	/**
+	 * Asks the instance to leave the group: it announces that it is leaving, hands off its partitions once
+	 * the leave is in effect, and is then finished (see isFinished()). May be called from any thread.
+	 */
+	public void leave() {
+		bLeaveRequested = true;
+	}
+
+	/**
+	 * @return true once the instance has left the group, handed off all its partitions and unsubscribed
+	 */
+	public boolean isFinished() {
+		return bFinished;
+	}
+
+	/**
+	 * Takes a control message off the transport's thread, for pollControl(). May be called from any thread.
+	 *
+	 * @param msg
+	 * @return false if the message is not one of the group's control messages
+	 */
+	public boolean offerControl(TransportMessage msg) {
+		if (!msg.getTopic().startsWith(prefix)) {
+			return false;
+		}
+		control.add(msg);
+		return true;
+	}
+
+	/**
+	 * @return the next control message given to offerControl(), for the agent to route to onControl(), or
+	 * null if there is none
+	 */
+	public TransportMessage pollControl() {
+		return control.poll();
+	}
+
+	/**
+	 * @param now
+	 * @return true if tick() has something to do
+	 */
+	public boolean isDue(long now) {
+		return now >= nextTick || bLeaveRequested != bLeaving;
+	}
+
+	/**
+	 * @param now
+	 * @return how long until tick() has something to do
+	 */
+	public long millisUntilDue(long now) {
+		return Math.max(0, nextTick - now);
+	}
+
+	/**
+	 * Decides whether this instance handles a purchase, before it is decoded.
+	 *
+	 * @param topic
+	 * @param clientID
+	 * @param msg
+	 * @return true to handle it now; false if it belongs to another instance, is late, or is held until its
+	 * partition's snapshot arrives (when it is passed to Owner.replay())
+	 */
+	public boolean admit(String topic, String clientID, TransportMessage msg) {
+		int p = HashRing.partition(clientID, partitions);
+		long sent = msg.getSentMillis();
+		if (sent == 0) {
+			sent = System.currentTimeMillis();
+		}
+		int e = epochAt(sent);
+		if (!epochs.get(e).mine[p]) {
+			filtered.incrementAndGet();
+			return false;
+		}
+		if (sent < handedOffAt[p]) {
+			late.incrementAndGet();
+			return false;
+		}
+		if (awaitedAt(e, p) >= 0) {
+			ArrayList<TransportMessage> waiting = held.get(p);
+			if (waiting == null) {
+				waiting = new ArrayList<TransportMessage>();
+				held.set(p, waiting);
+			}
+			waiting.add(msg);
+			heldCount.incrementAndGet();
+			return false;
+		}
+		accepted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Handles a message on one of the control topics.
+	 *
+	 * @param topic
+	 * @param payload the payload, inflated if it was compressed
+	 * @throws JCSMPException
+	 */
+	public void onControl(String topic, byte[] payload) throws JCSMPException {
+		String rest = topic.substring(prefix.length());
+		if (rest.startsWith("member/")) {
+			onMember(rest.substring("member/".length()), new String(payload, StandardCharsets.UTF_8));
+		}
+		else if (rest.startsWith("snapshot/")) {
+			onSnapshot(payload);
+		}
+	}
+
+	private void onMember(String id, String text) {
+		String[] parts = text.trim().split(" ");
+		if (id.equals(self) || parts.length != 3) {
+			return;
+		}
+		long joinStamp;
+		long stamp;
+		try {
+			joinStamp = Long.parseLong(parts[1]);
+			stamp = Long.parseLong(parts[2]);
+		} catch (NumberFormatException e) {
+			logger.warn("Ignoring malformed membership message from " + id + ": " + text);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Member member = members.get(id);
+		boolean bChanged = false;
+		if (member == null || member.joinStamp != joinStamp) {
+			// new, or restarted under the same name
+			if (member != null && member.leaveEffective == Long.MAX_VALUE) {
+				member.leaveEffective = stamp;
+			}
+			member = new Member(joinStamp);
+			members.put(id, member);
+			logger.info("Instance " + id + " is in group " + group + ", from " + (joinStamp + HANDOFF_MILLIS));
+			bChanged = true;
+		}
+		member.lastStamp = stamp;
+		member.lastSeen = now;
+		if (parts[0].equals("leave") && member.leaveEffective == Long.MAX_VALUE) {
+			member.leaveEffective = stamp + HANDOFF_MILLIS;
+			logger.info("Instance " + id + " is leaving group " + group + ", from " + member.leaveEffective);
+			bChanged = true;
+		}
+		if (bChanged) {
+			rebuild(now);
+			nextTick = now;
+		}
+	}
+
+	private void onSnapshot(byte[] payload) throws JCSMPException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		try {
+			int version = in.readInt();
+			if (version != SNAPSHOT_VERSION) {
+				throw new IOException("unknown snapshot version " + version);
+			}
+			long start = in.readLong();
+			int p = in.readInt();
+			BitSet done = resolved.get(start);
+			if (done != null && done.get(p)) {
+				logger.warn("Snapshot of partition " + p + " arrived after this instance stopped waiting for it, merging it late");
+			}
+			owner.takeOver(p, in);
+			takeovers.incrementAndGet();
+			logger.info("Took over partition " + p + " as of " + start + ", " + payload.length + " bytes");
+			resolve(start, p);
+		} catch (IOException e) {
+			logger.error("Failed to read a partition snapshot", e);
+		}
+	}
+
+	/**
+	 * Sends heartbeats, notices members that have gone, hands off partitions and stops waiting for
+	 * snapshots when it is time, and follows the partitions owned with the subscriptions. Called by the agent
+	 * when isDue().
+	 *
+	 * @param now
+	 * @throws JCSMPException
+	 */
+	public void tick(long now) throws JCSMPException {
+		Member me = members.get(self);
+		if (bLeaveRequested && !bLeaving) {
+			bLeaving = true;
+			me.leaveEffective = now + HANDOFF_MILLIS;
+			logger.info("Instance " + self + " leaving group " + group + ", from " + me.leaveEffective);
+			nextHeartbeat = now;
+		}
+		if (now >= nextHeartbeat) {
+			me.lastStamp = now;
+			String text = (bLeaving ? "leave " : "alive ") + me.joinStamp + " " + (bLeaving ? me.leaveEffective - HANDOFF_MILLIS : now);
+			owner.send(prefix + "member/" + self, text.getBytes(StandardCharsets.UTF_8), true);
+			nextHeartbeat = now + HEARTBEAT_MILLIS;
+		}
+		for (Map.Entry<String, Member> entry : members.entrySet()) {
+			Member member = entry.getValue();
+			if (member != me && member.leaveEffective == Long.MAX_VALUE && now - member.lastSeen > TIMEOUT_MILLIS) {
+				member.leaveEffective = member.lastStamp + TIMEOUT_MILLIS + HANDOFF_MILLIS;
+				timeouts.incrementAndGet();
+				logger.warn("Instance " + entry.getKey() + " not heard from since " + member.lastStamp
+						+ ", taking it to have left group " + group + " from " + member.leaveEffective);
+			}
+		}
+		// stop waiting for snapshots that are not coming
+		for (int e = 1; e < epochs.size(); e++) {
+			Epoch epoch = epochs.get(e);
+			if (now <= epoch.start + GRACE_MILLIS + SNAPSHOT_WAIT_MILLIS) {
+				continue;
+			}
+			for (int p = 0; p < partitions; p++) {
+				if (awaitedAt(e, p) == e) {
+					snapshotTimeouts.incrementAndGet();
+					logger.warn("No snapshot of partition " + p + " from " + epochs.get(e - 1).ring.owner(p)
+							+ ", going on without its earlier state");
+					resolve(epoch.start, p);
+				}
+			}
+		}
+		rebuild(now);
+		boolean bPending = handOff(now);
+		for (int e = 1; e < epochs.size() && !bPending; e++) {
+			for (int p = 0; p < partitions && !bPending; p++) {
+				bPending = awaitedAt(e, p) >= 0;
+			}
+		}
+		subscribe();
+		bFinished = bLeaving && now >= me.leaveEffective && !bPending && owned.get() == 0 && !wantsAny();
+		if (bFinished) {
+			for (String topic : getControlTopics()) {
+				transport.unsubscribe(topic, listener);
+			}
+			transport.unsubscribe(UNPARTITIONED_TOPICS, listener);
+			logger.info("Instance " + self + " has left group " + group);
+		}
+		nextTick = bPending ? Math.min(nextHeartbeat, now + PENDING_TICK_MILLIS) : nextHeartbeat;
+	}
+
+	/**
+	 * Hands off the partitions whose epochs have been going for the grace period.
+	 *
+	 * @return true if a handoff is still to come
+	 */
+	private boolean handOff(long now) throws JCSMPException {
+		boolean bPending = false;
+		for (int e = 1; e < epochs.size(); e++) {
+			Epoch previous = epochs.get(e - 1);
+			Epoch epoch = epochs.get(e);
+			for (int p = 0; p < partitions; p++) {
+				if (!previous.mine[p] || epoch.mine[p] || isHandedOff(epoch.start, p)) {
+					continue;
+				}
+				// not before the stragglers are in, nor while still waiting for the state from before
+				if (now < epoch.start + GRACE_MILLIS || awaitedAt(e - 1, p) >= 0) {
+					bPending = true;
+					continue;
+				}
+				BitSet done = handedOff.get(epoch.start);
+				if (done == null) {
+					done = new BitSet();
+					handedOff.put(epoch.start, done);
+				}
+				done.set(p);
+				handedOffAt[p] = Math.max(handedOffAt[p], epoch.start);
+				String next = epoch.ring.owner(p);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				try {
+					out.writeInt(SNAPSHOT_VERSION);
+					out.writeLong(epoch.start);
+					out.writeInt(p);
+					owner.handOff(p, out);
+					out.flush();
+				} catch (IOException e2) {
+					logger.error("Failed to write the snapshot of partition " + p, e2);
+					continue;
+				}
+				if (next == null) {
+					logger.warn("No instance left in group " + group + " to take partition " + p + ", its state is dropped");
+					continue;
+				}
+				owner.send(prefix + "snapshot/" + next + "/" + p, bytes.toByteArray(), false);
+				handoffs.incrementAndGet();
+				snapshotBytes.addAndGet(bytes.size());
+				logger.info("Handed partition " + p + " to " + next + ", " + bytes.size() + " bytes");
+			}
+		}
+		return bPending;
+	}
+
+	/**
+	 * Works out the epochs from the members' join and leave times, dropping those long past.
+	 */
+	private void rebuild(long now) {
+		TreeSet<Long> starts = new TreeSet<Long>();
+		for (Iterator<Member> it = members.values().iterator(); it.hasNext();) {
+			Member member = it.next();
+			if (member.leaveEffective < now - RETAIN_MILLIS) {
+				it.remove();
+				continue;
+			}
+			starts.add(member.joinStamp + HANDOFF_MILLIS);
+			if (member.leaveEffective != Long.MAX_VALUE) {
+				starts.add(member.leaveEffective);
+			}
+		}
+		// the latest start that is long past stands for everything before it
+		Long floor = starts.floor(now - RETAIN_MILLIS);
+		if (floor != null) {
+			starts = new TreeSet<Long>(starts.tailSet(floor));
+		}
+		ArrayList<Epoch> rebuilt = new ArrayList<Epoch>();
+		HashMap<String, HashRing> used = new HashMap<String, HashRing>();
+		if (starts.isEmpty() || floor == null) {
+			rebuilt.add(new Epoch(Long.MIN_VALUE, ring(Long.MIN_VALUE, used), self, partitions));
+		}
+		for (long start : starts) {
+			rebuilt.add(new Epoch(start, ring(start, used), self, partitions));
+		}
+		rings.clear();
+		rings.putAll(used);
+		epochs = rebuilt;
+		handedOff.keySet().retainAll(starts);
+		resolved.keySet().retainAll(starts);
+		membersGauge.set(members.size());
+		int mine = 0;
+		for (boolean b : epochs.get(epochAt(now)).mine) {
+			mine += b ? 1 : 0;
+		}
+		owned.set(mine);
+	}
+
+	/**
+	 * The ring of the members in the group at a time, re-used while they stay the same.
+	 */
+	private HashRing ring(long at, HashMap<String, HashRing> used) {
+		ArrayList<String> current = new ArrayList<String>();
+		for (Map.Entry<String, Member> entry : members.entrySet()) {
+			Member member = entry.getValue();
+			if (member.joinStamp + HANDOFF_MILLIS <= at && at < member.leaveEffective) {
+				current.add(entry.getKey());
+			}
+		}
+		String key = current.toString();
+		HashRing ring = used.get(key);
+		if (ring == null) {
+			ring = rings.get(key);
+			if (ring == null) {
+				ring = new HashRing(current, partitions);
+			}
+			used.put(key, ring);
+		}
+		return ring;
+	}
+
+	private int epochAt(long time) {
+		for (int e = epochs.size() - 1; e > 0; e--) {
+			if (epochs.get(e).start <= time) {
+				return e;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the epoch at which the partition came to this instance from another, if it has owned it since
+	 * then up to epoch e and its snapshot has not been taken yet; otherwise -1
+	 */
+	private int awaitedAt(int e, int p) {
+		if (!epochs.get(e).mine[p]) {
+			return -1;
+		}
+		while (e > 0 && epochs.get(e - 1).mine[p]) {
+			e--;
+		}
+		if (e == 0 || epochs.get(e - 1).ring.owner(p) == null) {
+			return -1;
+		}
+		BitSet done = resolved.get(epochs.get(e).start);
+		return done != null && done.get(p) ? -1 : e;
+	}
+
+	private boolean isHandedOff(long start, int p) {
+		BitSet done = handedOff.get(start);
+		return done != null && done.get(p);
+	}
+
+	/**
+	 * Marks a partition's snapshot as taken, or given up on, and handles the purchases held for it.
+	 */
+	private void resolve(long start, int p) throws JCSMPException {
+		BitSet done = resolved.get(start);
+		if (done == null) {
+			done = new BitSet();
+			resolved.put(start, done);
+		}
+		done.set(p);
+		ArrayList<TransportMessage> waiting = held.get(p);
+		if (waiting != null) {
+			held.set(p, null);
+			for (TransportMessage msg : waiting) {
+				owner.replay(msg.getTopic(), msg);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the instance still needs any partition's purchases
+	 */
+	private boolean wantsAny() {
+		for (boolean b : subscribed) {
+			if (b) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Subscribes to the partitions this instance owns now or later, or owned and has yet to hand off, and
+	 * unsubscribes from the rest.
+	 */
+	private void subscribe() throws JCSMPException {
+		Epoch last = epochs.get(epochs.size() - 1);
+		for (int p = 0; p < partitions; p++) {
+			boolean bWanted = last.mine[p];
+			for (int e = 0; e + 1 < epochs.size() && !bWanted; e++) {
+				bWanted = epochs.get(e).mine[p] && !epochs.get(e + 1).mine[p] && !isHandedOff(epochs.get(e + 1).start, p);
+			}
+			if (bWanted != subscribed[p]) {
+				String topic = "purchase/*/*/" + p;
+				if (bWanted) {
+					transport.subscribe(topic, listener);
+				}
+				else {
+					transport.unsubscribe(topic, listener);
+				}
+				subscribed[p] = bWanted;
+			}
+		}
+	}
+}
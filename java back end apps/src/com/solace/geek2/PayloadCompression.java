@@ -0,0 +1,136 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of message payloads. Payloads of at least the threshold size (system property
+ * geek2.compress.threshold, in bytes, default 512; zero or less turns compression off) are deflated
+ * with a preset dictionary of the JSON keys and product names we send, which is what makes short
+ * purchase messages worth compressing at all. A compressed message is flagged by its HTTP content
+ * encoding header, so receivers can tell it apart from a plain one. Only messages whose receivers are our
+ * agents are compressed, purchases and partition snapshots: the notifications go to the web POS, which
+ * cannot inflate them (see OutboundPublisher.Slot.compressible).
+ *
+ * The output is a standard zlib stream (as jzlib would also produce and read), but it is produced with
+ * java.util.zip since its Deflater and Inflater can be reset and reused per message. Instances are not
+ * thread safe: use one per sending or receiving thread.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class PayloadCompression {
+	public static final String CONTENT_ENCODING = "x-geek2-deflate";
+	public static final int THRESHOLD = Integer.getInteger("geek2.compress.threshold", 512);
+
+	// zlib favours matches near the end of the dictionary, so the most common fragments go last
+	private static final byte[] DICTIONARY = ("Geeks2 Geek2's store, location Please contact our customer service center. "
+			+ "Thank you for your purchase at Thank you for your total purchases of at Geeks2. You have earned "
+			+ "\"message\":\"" + "premium regular unleaded diesel car wash oil change windshield fluid "
+			+ "snacks water soda sandwich coffee gas "
+			+ "{\"product\":\"gas\",\"amount\":{\"product\":\"coffee\",\"amount\":"
+			+ "{\"total\":\"purchases\":[{\"product\":\"\"amount\":}]}").getBytes(StandardCharsets.UTF_8);
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater inflater = new Inflater();
+	private byte[] compressed = new byte[1024];
+	private byte[] inflated = new byte[4096];
+	private byte[] inflateInput = new byte[1024];
+
+	/**
+	 * @param payloadLength
+	 * @return true if a payload of this size should be sent compressed
+	 */
+	public static boolean shouldCompress(int payloadLength) {
+		return THRESHOLD > 0 && payloadLength >= THRESHOLD;
+	}
+
+	/**
+	 * @param msg
+	 * @return true if the message carries a payload compressed by this class
+	 */
+	public static boolean isCompressed(TransportMessage msg) {
+		return CONTENT_ENCODING.equals(msg.getContentEncoding());
+	}
+
+	/**
+	 * Compresses len bytes of src. The result is the first (returned value) bytes of getCompressed(),
+	 * which stays valid until the next call.
+	 *
+	 * @param src
+	 * @param offset
+	 * @param len
+	 * @return the compressed length
+	 */
+	public int compress(byte[] src, int offset, int len) {
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(src, offset, len);
+		deflater.finish();
+		int size = 0;
+		while (!deflater.finished()) {
+			if (size == compressed.length) {
+				compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			}
+			size += deflater.deflate(compressed, size, compressed.length - size);
+		}
+		return size;
+	}
+
+	public byte[] getCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Inflates a compressed payload into a new, exactly sized array. A fresh array is returned (rather
+	 * than a reused buffer) since the decoded message may still refer to it after the next one arrives.
+	 *
+	 * @param src the compressed bytes between position and limit; the buffer itself is not modified
+	 * @return
+	 * @throws DataFormatException if the payload is not a stream written by compress()
+	 */
+	public byte[] decompress(ByteBuffer src) throws DataFormatException {
+		int len = src.remaining();
+		if (inflateInput.length < len) {
+			inflateInput = new byte[Math.max(len, inflateInput.length * 2)];
+		}
+		src.duplicate().get(inflateInput, 0, len);
+
+		inflater.reset();
+		inflater.setInput(inflateInput, 0, len);
+		int size = 0;
+		while (!inflater.finished()) {
+			if (size == inflated.length) {
+				inflated = Arrays.copyOf(inflated, inflated.length * 2);
+			}
+			int n = inflater.inflate(inflated, size, inflated.length - size);
+			size += n;
+			if (n == 0) {
+				if (inflater.needsDictionary()) {
+					inflater.setDictionary(DICTIONARY);
+				}
+				else if (inflater.needsInput()) {
+					throw new DataFormatException("Truncated compressed payload");
+				}
+			}
+		}
+		return Arrays.copyOf(inflated, size);
+	}
+}
@@ -14,16 +14,49 @@
 package com.solace.geek2;
 
 /**
- * Simple "data structure". Holds a single product purchased.
+ * Simple "data structure". Holds a single product purchased. Read-only once frozen, see 
+ * PurchaseMessage.freeze().
  * @author Mike O'Brien
  *
  */
 public class ProductPurchase {
-	public String product;
-	public double amount;
+	private String product;
+	private double amount;
+	private volatile boolean frozen;
+	
+	public String getProduct() {
+		return product;
+	}
+	
+	public void setProduct(String product) {
+		checkNotFrozen();
+		this.product = product;
+	}
+	
+	public double getAmount() {
+		return amount;
+	}
+	
+	public void setAmount(double amount) {
+		checkNotFrozen();
+		this.amount = amount;
+	}
+	
+	/**
+	 * Makes this product purchase read-only.
+	 */
+	void freeze() {
+		frozen = true;
+	}
+	
+	private void checkNotFrozen() {
+		if (frozen) {
+			throw new IllegalStateException("ProductPurchase is frozen");
+		}
+	}
 	
 	/**
-	 * Make a copy of this object.
+	 * Make a copy of this object, which is not frozen even if this one is.
 	 */
 	public ProductPurchase clone() {
 		ProductPurchase rc = new ProductPurchase();
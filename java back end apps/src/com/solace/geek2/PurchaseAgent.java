@@ -14,6 +14,8 @@
 
 package com.solace.geek2;
 
+import java.util.EnumSet;
+
 import com.solacesystems.jcsmp.JCSMPException;
 
 /**
@@ -24,16 +26,32 @@ import com.solacesystems.jcsmp.JCSMPException;
  *
  */
 public class PurchaseAgent extends AbstractAgent {
+	private final NotificationTemplate confirmation = new NotificationTemplate("confirm", 
+			"Thank you for your purchase at Geek2's store, location {location}", true);
 
+	/**
+	 * A thank-you for a purchase the customer made more than half a minute ago is just noise, so after a 
+	 * backlog the agent only records those.
+	 */
+	public PurchaseAgent() {
+		setLatencyBudget("purchase", PURCHASE_TOPICS, 30000, LatencyBudget.OverBudget.SUMMARIZE);
+	}
+	
 	/**
 	 * Implements the abstract method of the base. This method is called after the 
 	 * Receipt of a purchase message. Note that this message is already in the "database".
 	 */
 	@Override
 	public void onPurchase(PurchaseMessage pmsg) throws JCSMPException {
-		String text = "Thank you for your purchase at Geek2's store, location " + pmsg.location;
-		String outTopic = "confirm/" + pmsg.location + "/" + pmsg.clientID;
-		sendResponseMessage(pmsg, text, outTopic);
+		sendNotification(confirmation, pmsg, 0, null);
+	}
+	
+	/**
+	 * The thank-you message only needs the location, which comes from the topic.
+	 */
+	@Override
+	protected EnumSet<PurchaseField> getFieldsOfInterest() {
+		return EnumSet.noneOf(PurchaseField.class);
 	}
 	
 	/**
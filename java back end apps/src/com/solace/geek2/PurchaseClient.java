@@ -14,16 +14,13 @@
 
 package com.solace.geek2;
 
+import java.util.EnumSet;
+
 import org.apache.log4j.Logger;
 
 import com.solacesystems.jcsmp.JCSMPException;
 import com.solacesystems.jcsmp.JCSMPFactory;
-import com.solacesystems.jcsmp.JCSMPProperties;
-import com.solacesystems.jcsmp.JCSMPSession;
-import com.solacesystems.jcsmp.JCSMPStreamingPublishEventHandler;
-import com.solacesystems.jcsmp.TextMessage;
 import com.solacesystems.jcsmp.Topic;
-import com.solacesystems.jcsmp.XMLMessageProducer;
 
 /**
  * This is the main program of the purchase client. This will likely be just a test and for illustration 
@@ -46,13 +43,8 @@ public class PurchaseClient {
         }
         logger.info("PurchaseClient initializing...");
 
-    	// Create a JCSMP Session
-        final JCSMPProperties properties = new JCSMPProperties();
-        properties.setProperty(JCSMPProperties.HOST, args[0]);      // msg-backbone ip:port
-        properties.setProperty(JCSMPProperties.VPN_NAME, args[1]);  // message-vpn
-        properties.setProperty(JCSMPProperties.USERNAME, args[2]);  // client-username (assumes no password)
-        properties.setProperty(JCSMPProperties.PASSWORD, args[3]);  // client-username (assumes no password)
-        final JCSMPSession session =  JCSMPFactory.onlyInstance().createSession(properties);
+    	// Open the transport (a JCSMP session unless -Dgeek2.transport=loopback)
+        final Transport transport = Transport.open(args[0], args[1], args[2], args[3], new AgentMetrics());
         
         String custId = args[4];
         String location = args[5];
@@ -60,31 +52,71 @@ public class PurchaseClient {
         String strPrice = args[7];
         
         String strTopic = "purchase/"+ location + "/" + custId;
+        if (HashRing.PARTITIONS > 0) {
+        	// so that only the agent instance that owns the client's partition gets it
+        	strTopic += "/" + HashRing.partition(custId, HashRing.PARTITIONS);
+        }
         final Topic topic = JCSMPFactory.onlyInstance().createTopic(strTopic);
         
-        session.connect();
-        /** Anonymous inner-class for handling publishing events */
-        XMLMessageProducer prod = session.getMessageProducer(new JCSMPStreamingPublishEventHandler() {
-            public void responseReceived(String messageID) {
-            	logger.info("Producer received response for msg: " + messageID);
+        Transport.Publisher prod = transport.createPublisher(new Transport.AckListener() {
+            public void acked(OutboundPublisher.Slot slot) {
+            	logger.info("Producer received response for msg to " + slot.topic.getName());
             }
-            public void handleError(String messageID, JCSMPException e, long timestamp) {
+            public void rejected(OutboundPublisher.Slot slot, Exception e) {
             	logger.warn("Producer received error");
             }
         });
 
-        TextMessage msg = JCSMPFactory.onlyInstance().createMessage(TextMessage.class);
-        msg.setText(generateJsonPayload(product, strPrice));
+        // the payload is JSON unless -Dgeek2.payloadFormat=binary selects the generated binary format; the 
+        // transport deflates it if it is large
+        boolean bBinary = "binary".equals(System.getProperty("geek2.payloadFormat"));
+        OutboundBuffer payload = generatePayload(product, strPrice, System.currentTimeMillis(), bBinary);
+        OutboundPublisher.Slot msg = new OutboundPublisher.Slot();
+        msg.buffer.write(payload.bytes(), 0, payload.length());
+        msg.topic = topic;
+        msg.compressible = true;
+        if (bBinary) {
+        	msg.contentType = BinaryCodecSupport.CONTENT_TYPE;
+        }
         logger.info("Connected. About to send message on topic " + topic.getName());
-        prod.send(msg,topic);
+        prod.send(new OutboundPublisher.Slot[] {msg}, 0, 1);
         
         String confirmationMsg = "Message sent. Exiting."; 
         logger.info(confirmationMsg);
         System.out.println(confirmationMsg);
-        session.closeSession();
+        transport.close();
     }
     
-    protected static String generateJsonPayload(String product, String price) {
-    	return "{\"total\": " + price + ",\"purchases\":[{\"product\":\"" + product + "\",\"amount\":" + price + "}]}";
+    /**
+     * Encodes a single product purchase with the generated codec for the requested format, stamped with the 
+     * time it was made: the agents go by this event time rather than by when they receive the purchase.
+     * 
+     * @param product
+     * @param price
+     * @param eventTime when the purchase was made, or 0 to leave it out
+     * @param bBinary
+     * @return
+     */
+    protected static OutboundBuffer generatePayload(String product, String price, long eventTime, boolean bBinary) {
+    	PurchaseMessage purchase = new PurchaseMessage();
+    	purchase.setTotal(Double.parseDouble(price));
+    	ProductPurchase item = new ProductPurchase();
+    	item.setProduct(product);
+    	item.setAmount(purchase.getTotal());
+    	purchase.getPurchases().add(item);
+    	purchase.setEventTime(eventTime);
+    	
+    	OutboundBuffer payload = new OutboundBuffer(256);
+    	EnumSet<PurchaseField> fields = EnumSet.of(PurchaseField.TOTAL, PurchaseField.PURCHASES);
+    	if (eventTime != 0) {
+    		fields.add(PurchaseField.EVENT_TIME);
+    	}
+    	if (bBinary) {
+    		PurchaseMessageBinaryCodec.encode(purchase, fields, payload);
+    	}
+    	else {
+    		PurchaseMessageJsonCodec.encode(purchase, fields, payload);
+    	}
+    	return payload;
     }
 }
@@ -13,31 +13,197 @@
  */
 package com.solace.geek2;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A simple "data structure" that holds the contents of a single purchase message.
  * 
+ * Once the agent that received it calls freeze(), a message is read-only: the setters throw
+ * IllegalStateException and getPurchases() returns a read-only list of frozen product purchases. This is what
+ * lets an AgentHost hand the same instance to several agents.
+ * 
  * @author Mike O'Brien
  *
  */
 public class PurchaseMessage {
-	public ArrayList<ProductPurchase> Purchases = new ArrayList<ProductPurchase>(); 
-	public double total = 0.0f;
-	public String message;
-	public String clientID; 
-	public String location; 
-	public long timestamp;
+	private final ArrayList<ProductPurchase> Purchases = new ArrayList<ProductPurchase>(); 
+	private double total = 0.0f;
+	private String message;
+	private String clientID; 
+	private String location; 
+	private long timestamp;
+	private long eventTime;
+	
+	// set by freeze(), together with the read-only view of Purchases handed out from then on
+	private List<ProductPurchase> frozenPurchases;
+	
+	// the still-encoded "purchases" section of the payload this message was loaded from, if any. This is
+	// either a CharSequence (JSON) or a ByteBuffer (binary format)
+	private Object pendingPurchasesSource;
+	private int pendingPurchasesStart;
+	private int pendingPurchasesEnd;
+	
+	/**
+	 * Returns the product purchases of this message. When the message was loaded from a payload, the 
+	 * product list is only decoded on the first call. Synchronized because a frozen message may be read by 
+	 * several threads, and the first of them still decodes.
+	 * 
+	 * @return
+	 */
+	public synchronized List<ProductPurchase> getPurchases() {
+		if (pendingPurchasesSource instanceof ByteBuffer) {
+			ProductPurchaseBinaryCodec.decodeList((ByteBuffer) pendingPurchasesSource, pendingPurchasesStart, pendingPurchasesEnd, Purchases);
+			pendingPurchasesSource = null;
+			freezePurchases();
+		}
+		else if (pendingPurchasesSource != null) {
+			ProductPurchaseJsonCodec.decodeList((CharSequence) pendingPurchasesSource, pendingPurchasesStart, pendingPurchasesEnd, Purchases);
+			pendingPurchasesSource = null;
+			freezePurchases();
+		}
+		return frozenPurchases != null ? frozenPurchases : Purchases;
+	}
+	
+	public double getTotal() {
+		return total;
+	}
+	
+	public void setTotal(double total) {
+		checkNotFrozen();
+		this.total = total;
+	}
+	
+	public String getMessage() {
+		return message;
+	}
+	
+	public void setMessage(String message) {
+		checkNotFrozen();
+		this.message = message;
+	}
+	
+	public String getClientID() {
+		return clientID;
+	}
+	
+	public void setClientID(String clientID) {
+		checkNotFrozen();
+		this.clientID = clientID;
+	}
+	
+	public String getLocation() {
+		return location;
+	}
+	
+	public void setLocation(String location) {
+		checkNotFrozen();
+		this.location = location;
+	}
+	
+	/**
+	 * @return when the purchase was made, in milliseconds since the epoch: its event time if the producer
+	 * stamped one, or else when it was sent, or else when it was received
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	public void setTimestamp(long timestamp) {
+		checkNotFrozen();
+		this.timestamp = timestamp;
+	}
+	
+	/**
+	 * @return when the producer (PurchaseClient, the web POS) says the purchase was made, in milliseconds
+	 * since the epoch, or 0 if it did not say
+	 */
+	public long getEventTime() {
+		return eventTime;
+	}
+	
+	public void setEventTime(long eventTime) {
+		checkNotFrozen();
+		this.eventTime = eventTime;
+	}
+	
+	/**
+	 * Makes this message read-only. A product list that has not been decoded yet stays pending, and its 
+	 * products are frozen as they are decoded.
+	 */
+	public synchronized void freeze() {
+		if (frozenPurchases == null) {
+			frozenPurchases = Collections.unmodifiableList(Purchases);
+			if (pendingPurchasesSource == null) {
+				freezePurchases();
+			}
+		}
+	}
+	
+	/**
+	 * @return true once freeze() has been called
+	 */
+	public synchronized boolean isFrozen() {
+		return frozenPurchases != null;
+	}
+	
+	private void freezePurchases() {
+		if (frozenPurchases != null) {
+			for (int i = 0; i < Purchases.size(); i++) {
+				Purchases.get(i).freeze();
+			}
+		}
+	}
+	
+	private void checkNotFrozen() {
+		if (frozenPurchases != null) {
+			throw new IllegalStateException("PurchaseMessage is frozen");
+		}
+	}
+	
+	/**
+	 * Remembers where the encoded product list lives, so that getPurchases() can decode it later.
+	 * 
+	 * @param source
+	 * @param start
+	 * @param end
+	 */
+	void setPendingPurchases(CharSequence source, int start, int end) {
+		checkNotFrozen();
+		pendingPurchasesSource = source;
+		pendingPurchasesStart = start;
+		pendingPurchasesEnd = end;
+	}
+	
+	/**
+	 * Binary format counterpart of setPendingPurchases(CharSequence, int, int).
+	 * 
+	 * @param source
+	 * @param start
+	 * @param end
+	 */
+	void setPendingPurchases(ByteBuffer source, int start, int end) {
+		checkNotFrozen();
+		pendingPurchasesSource = source;
+		pendingPurchasesStart = start;
+		pendingPurchasesEnd = end;
+	}
 	
+	/**
+	 * Make a copy of this message, which is not frozen even if this one is.
+	 */
 	public PurchaseMessage clone() {
 		PurchaseMessage rc = new PurchaseMessage();
 		rc.timestamp = this.timestamp;
+		rc.eventTime = this.eventTime;
 		rc.clientID = this.clientID;
 		rc.location = this.location;
 		rc.message = this.message;
 		rc.total = this.total;
 		
-		for (ProductPurchase onePurchase : Purchases) {
+		for (ProductPurchase onePurchase : getPurchases()) {
 			ProductPurchase clonedPurchase = onePurchase.clone();
 			rc.Purchases.add(clonedPurchase);
 		}
@@ -0,0 +1,277 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The last few purchases of every client, for the FraudAgent, so that it does not have to search the Model
+ * for them. Each client has a slot number, and each slot a ring of the last geek2.fraud.ringSize purchases
+ * (default 8) in arrival order, held as location id, timestamp and amount in primitive arrays shared by all
+ * the slots. Locations are held as their StoreLocations ids, so comparing two locations is comparing two
+ * ints, and the distance between them is one more array read.
+ *
+ * A lookup touches at most one ring, and allocates nothing once the client and location have been seen.
+ * The purchase being checked is only recorded after the checks, so it is never mistaken for the previous
+ * one, whatever its timestamp. A client handed to another instance (see PartitionCoordinator) is forgotten,
+ * and its slot re-used, and so is a client gone quiet for longer than any rule looks back (see
+ * FraudRules); so memory is bounded by the clients active within the longest rule window, not by every
+ * client ever seen. Not thread safe; the agent calls it from its processing thread.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class RecentPurchases {
+	public static final int RING_SIZE = Math.max(1, Integer.getInteger("geek2.fraud.ringSize", 8));
+
+	private final HashMap<String, Integer> clientSlots = new HashMap<String, Integer>();
+	private final StoreLocations locations;
+	// the client of each slot, null for a free one; slots below slotCount have been used
+	private String[] slotClients = new String[64];
+	private int slotCount;
+	private int[] freeSlots = new int[16];
+	private int freeCount;
+	// per slot: the ring position of the newest entry, and how many entries the ring holds
+	private int[] newest = new int[64];
+	private int[] counts = new int[64];
+	// per slot, RING_SIZE entries from slot * RING_SIZE
+	private int[] locationIds = new int[64 * RING_SIZE];
+	private long[] timestamps = new long[64 * RING_SIZE];
+	private double[] amounts = new double[64 * RING_SIZE];
+
+	/**
+	 * @param locations interns the locations of the purchases
+	 */
+	public RecentPurchases(StoreLocations locations) {
+		this.locations = locations;
+	}
+
+	/**
+	 * @param clientID
+	 * @return the client's slot, created empty the first time the client is seen
+	 */
+	public int clientSlot(String clientID) {
+		Integer slot = clientSlots.get(clientID);
+		if (slot == null) {
+			if (freeCount > 0) {
+				slot = freeSlots[--freeCount];
+			}
+			else {
+				slot = slotCount++;
+				if (slot == counts.length) {
+					grow();
+				}
+			}
+			clientSlots.put(clientID, slot);
+			slotClients[slot] = clientID;
+		}
+		return slot;
+	}
+
+	/**
+	 * @param slot
+	 * @return the client in the slot, or null if the slot is free
+	 */
+	public String clientID(int slot) {
+		return slotClients[slot];
+	}
+
+	/**
+	 * @return one more than the highest slot in use
+	 */
+	public int slots() {
+		return slotCount;
+	}
+
+	/**
+	 * Forgets a client and frees its slot, for re-use by another client.
+	 *
+	 * @param slot
+	 */
+	public void forget(int slot) {
+		clientSlots.remove(slotClients[slot]);
+		slotClients[slot] = null;
+		counts[slot] = 0;
+		if (freeCount == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+		}
+		freeSlots[freeCount++] = slot;
+	}
+
+	/**
+	 * @param location
+	 * @return the id of the location, assigned the first time it is seen
+	 */
+	public int locationId(String location) {
+		return locations.id(location);
+	}
+
+	/**
+	 * @param id
+	 * @return the location the id was assigned to
+	 */
+	public String locationName(int id) {
+		return locations.name(id);
+	}
+
+	/**
+	 * @return the locations, with their coordinates and distances
+	 */
+	public StoreLocations getLocations() {
+		return locations;
+	}
+
+	/**
+	 * Adds a purchase to the client's ring, pushing out the oldest if the ring is full.
+	 *
+	 * @param slot
+	 * @param locationId
+	 * @param timestamp
+	 * @param amount
+	 */
+	public void record(int slot, int locationId, long timestamp, double amount) {
+		int position = counts[slot] == 0 ? 0 : (newest[slot] + 1) % RING_SIZE;
+		int i = slot * RING_SIZE + position;
+		locationIds[i] = locationId;
+		timestamps[i] = timestamp;
+		amounts[i] = amount;
+		newest[slot] = position;
+		if (counts[slot] < RING_SIZE) {
+			counts[slot]++;
+		}
+	}
+
+	/**
+	 * @param slot
+	 * @return the number of purchases in the client's ring, up to RING_SIZE
+	 */
+	public int count(int slot) {
+		return counts[slot];
+	}
+
+	/**
+	 * @param slot
+	 * @return the location id of the client's previous purchase; only valid if count() is not 0
+	 */
+	public int previousLocation(int slot) {
+		return locationIds[slot * RING_SIZE + newest[slot]];
+	}
+
+	/**
+	 * @param slot
+	 * @return the timestamp of the client's previous purchase; only valid if count() is not 0
+	 */
+	public long previousTimestamp(int slot) {
+		return timestamps[slot * RING_SIZE + newest[slot]];
+	}
+
+	/**
+	 * @param slot
+	 * @return the latest timestamp in the client's ring, which need not be the previous purchase's if they
+	 * came out of order; Long.MIN_VALUE if the ring is empty
+	 */
+	public long latestTimestamp(int slot) {
+		long latest = Long.MIN_VALUE;
+		int base = slot * RING_SIZE;
+		for (int i = 0; i < counts[slot]; i++) {
+			latest = Math.max(latest, timestamps[base + i]);
+		}
+		return latest;
+	}
+
+	/**
+	 * @param slot
+	 * @return the amount of the client's previous purchase; only valid if count() is not 0
+	 */
+	public double previousAmount(int slot) {
+		return amounts[slot * RING_SIZE + newest[slot]];
+	}
+
+	/**
+	 * @param slot
+	 * @param back 0 for the previous purchase, 1 for the one before, up to count() - 1
+	 * @return the location id of that purchase
+	 */
+	public int locationAt(int slot, int back) {
+		return locationIds[slot * RING_SIZE + (newest[slot] - back + RING_SIZE) % RING_SIZE];
+	}
+
+	/**
+	 * @param slot
+	 * @param back as for locationAt()
+	 * @return the timestamp of that purchase
+	 */
+	public long timestampAt(int slot, int back) {
+		return timestamps[slot * RING_SIZE + (newest[slot] - back + RING_SIZE) % RING_SIZE];
+	}
+
+	/**
+	 * @param slot
+	 * @param back as for locationAt()
+	 * @return the amount of that purchase
+	 */
+	public double amountAt(int slot, int back) {
+		return amounts[slot * RING_SIZE + (newest[slot] - back + RING_SIZE) % RING_SIZE];
+	}
+
+	/**
+	 * @param slot
+	 * @param sinceMillis
+	 * @return how many of the purchases in the client's ring were made at or after sinceMillis
+	 */
+	public int countSince(int slot, long sinceMillis) {
+		int n = 0;
+		int base = slot * RING_SIZE;
+		for (int i = 0; i < counts[slot]; i++) {
+			if (timestamps[base + i] >= sinceMillis) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @param slot
+	 * @param sinceMillis
+	 * @return the total amount of the purchases in the client's ring made at or after sinceMillis
+	 */
+	public double amountSince(int slot, long sinceMillis) {
+		double total = 0;
+		int base = slot * RING_SIZE;
+		for (int i = 0; i < counts[slot]; i++) {
+			if (timestamps[base + i] >= sinceMillis) {
+				total += amounts[base + i];
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return the number of clients seen
+	 */
+	public int clients() {
+		return clientSlots.size();
+	}
+
+	private void grow() {
+		int slots = counts.length * 2;
+		slotClients = Arrays.copyOf(slotClients, slots);
+		newest = Arrays.copyOf(newest, slots);
+		counts = Arrays.copyOf(counts, slots);
+		locationIds = Arrays.copyOf(locationIds, slots * RING_SIZE);
+		timestamps = Arrays.copyOf(timestamps, slots * RING_SIZE);
+		amounts = Arrays.copyOf(amounts, slots * RING_SIZE);
+	}
+}
@@ -0,0 +1,237 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts purchases back into event-time order before an agent handles them, per partition: the store the
+ * purchase was made at, whose POS stamps its purchases from one clock. Purchases from several stores, or
+ * from one store over several network paths, can arrive out of order; each store's purchases are held in a
+ * small buffer sorted by event time, and released in that order once the store's watermark has passed
+ * them. The watermark is the latest event time seen from the store less geek2.eventTime.reorderMillis
+ * (default 200): a purchase is taken to be no later than that behind the purchases made after it. So
+ * that one skewed POS clock cannot move a store's watermark days ahead, the agent does not take an event
+ * time more than geek2.eventTime.maxSkewMillis (default 60000) ahead of its own clock (eventTime.skewed).
+ *
+ * The watermark moves with the event times themselves, so a backlog replayed at many times real-time speed
+ * goes through as fast as it arrives, in order. Only a store that goes quiet needs the clock: once nothing
+ * has arrived from it for reorderMillis, what it has buffered is released. A store's buffer also releases
+ * its oldest purchase when it holds geek2.eventTime.reorderCapacity (default 1000). A purchase older than
+ * what its store has already released is late; it is released at once, as it is.
+ *
+ * Counts reorder.buffered (now), reorder.reordered (purchases that arrived behind a later one),
+ * reorder.late and reorder.idleReleases, and keeps a reorder.hold histogram of the time purchases spend
+ * in the buffer. Not thread safe; used on the agent's processing thread.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class ReorderBuffer {
+	public static final long REORDER_MILLIS = Long.getLong("geek2.eventTime.reorderMillis", 200);
+	public static final int CAPACITY = Math.max(1, Integer.getInteger("geek2.eventTime.reorderCapacity", 1000));
+
+	/**
+	 * A buffered purchase.
+	 */
+	static class Entry implements Comparable<Entry> {
+		final PurchaseMessage pmsg;
+		// over its latency budget, for onStalePurchase()
+		final boolean bStale;
+		final long arrivalNanos;
+		// arrival order, to keep purchases with the same event time in the order they came
+		final long seq;
+
+		Entry(PurchaseMessage pmsg, boolean bStale, long arrivalNanos, long seq) {
+			this.pmsg = pmsg;
+			this.bStale = bStale;
+			this.arrivalNanos = arrivalNanos;
+			this.seq = seq;
+		}
+
+		public int compareTo(Entry other) {
+			long a = pmsg.getTimestamp();
+			long b = other.pmsg.getTimestamp();
+			return a != b ? (a < b ? -1 : 1) : (seq < other.seq ? -1 : seq > other.seq ? 1 : 0);
+		}
+	}
+
+	private static class Partition {
+		final PriorityQueue<Entry> buffered = new PriorityQueue<Entry>();
+		long maxEventTime = Long.MIN_VALUE;
+		// the event time of the last purchase released
+		long released = Long.MIN_VALUE;
+		long lastArrivalNanos;
+	}
+
+	private final HashMap<String, Partition> partitions = new HashMap<String, Partition>();
+	// partitions with something buffered, the one that has been quiet longest first
+	private final LinkedHashSet<Partition> waiting = new LinkedHashSet<Partition>();
+	private final ArrayDeque<Entry> ready = new ArrayDeque<Entry>();
+	private long seq;
+	private int size;
+	private final AtomicLong bufferedGauge;
+	private final AtomicLong reordered;
+	private final AtomicLong late;
+	private final AtomicLong idleReleases;
+	private final LatencyHistogram hold;
+
+	public ReorderBuffer(AgentMetrics metrics) {
+		bufferedGauge = metrics.counter("reorder.buffered");
+		reordered = metrics.counter("reorder.reordered");
+		late = metrics.counter("reorder.late");
+		idleReleases = metrics.counter("reorder.idleReleases");
+		hold = metrics.histogram("reorder.hold");
+	}
+
+	/**
+	 * Adds a purchase, and releases what its store's watermark has now passed; take them with poll().
+	 *
+	 * @param pmsg a frozen purchase, with its event time as timestamp
+	 * @param bStale
+	 */
+	public void offer(PurchaseMessage pmsg, boolean bStale) {
+		long now = System.nanoTime();
+		Partition partition = partitions.get(pmsg.getLocation());
+		if (partition == null) {
+			partition = new Partition();
+			partitions.put(pmsg.getLocation(), partition);
+		}
+		Entry entry = new Entry(pmsg, bStale, now, seq++);
+		long eventTime = pmsg.getTimestamp();
+		if (eventTime < partition.released) {
+			late.incrementAndGet();
+			release(entry, now);
+			return;
+		}
+		if (eventTime < partition.maxEventTime) {
+			reordered.incrementAndGet();
+		}
+		else {
+			partition.maxEventTime = eventTime;
+		}
+		partition.buffered.add(entry);
+		size++;
+		partition.lastArrivalNanos = now;
+		waiting.remove(partition);
+		waiting.add(partition);
+		long watermark = partition.maxEventTime - REORDER_MILLIS;
+		while (!partition.buffered.isEmpty()
+				&& (partition.buffered.peek().pmsg.getTimestamp() <= watermark || partition.buffered.size() > CAPACITY)) {
+			releaseHead(partition, now);
+		}
+		if (partition.buffered.isEmpty()) {
+			waiting.remove(partition);
+		}
+		bufferedGauge.set(size);
+	}
+
+	/**
+	 * @return the next purchase to handle, in event-time order within its store, or null if none is due
+	 * yet. Releases the buffers of stores that have gone quiet.
+	 */
+	Entry poll() {
+		if (ready.isEmpty() && !waiting.isEmpty()) {
+			long now = System.nanoTime();
+			Iterator<Partition> quietest = waiting.iterator();
+			while (quietest.hasNext()) {
+				Partition partition = quietest.next();
+				if (now - partition.lastArrivalNanos < REORDER_MILLIS * 1000000) {
+					break;
+				}
+				while (!partition.buffered.isEmpty()) {
+					releaseHead(partition, now);
+				}
+				quietest.remove();
+				idleReleases.incrementAndGet();
+			}
+			bufferedGauge.set(size);
+		}
+		return ready.poll();
+	}
+
+	/**
+	 * @return true if purchases are held back
+	 */
+	public boolean hasPending() {
+		return !waiting.isEmpty() || !ready.isEmpty();
+	}
+
+	/**
+	 * Releases the purchases held back of the clients in a partition (see HashRing), in event-time order, for
+	 * before the state they go into is handed off. The stores' watermarks are left as they were, so that 
+	 * the other clients' purchases are still put in order, and none of them is made late.
+	 *
+	 * @param clientPartition
+	 */
+	public void release(int clientPartition) {
+		long now = System.nanoTime();
+		ArrayList<Entry> moving = new ArrayList<Entry>();
+		Iterator<Partition> stores = waiting.iterator();
+		while (stores.hasNext()) {
+			Partition partition = stores.next();
+			Iterator<Entry> entries = partition.buffered.iterator();
+			while (entries.hasNext()) {
+				Entry entry = entries.next();
+				if (HashRing.partition(entry.pmsg.getClientID(), HashRing.PARTITIONS) == clientPartition) {
+					entries.remove();
+					moving.add(entry);
+				}
+			}
+			if (partition.buffered.isEmpty()) {
+				stores.remove();
+			}
+		}
+		Collections.sort(moving);
+		for (Entry entry : moving) {
+			release(entry, now);
+		}
+		size -= moving.size();
+		bufferedGauge.set(size);
+	}
+
+	/**
+	 * @return how long until the quietest store's buffer is released, 0 if something can be polled now, or
+	 * -1 if nothing is held back
+	 */
+	public long millisUntilDue() {
+		if (!ready.isEmpty()) {
+			return 0;
+		}
+		if (waiting.isEmpty()) {
+			return -1;
+		}
+		long quietNanos = System.nanoTime() - waiting.iterator().next().lastArrivalNanos;
+		return Math.max(0, REORDER_MILLIS - quietNanos / 1000000);
+	}
+
+	private void releaseHead(Partition partition, long now) {
+		Entry entry = partition.buffered.poll();
+		size--;
+		partition.released = Math.max(partition.released, entry.pmsg.getTimestamp());
+		release(entry, now);
+	}
+
+	private void release(Entry entry, long now) {
+		hold.record(now - entry.arrivalNanos);
+		ready.add(entry);
+	}
+}
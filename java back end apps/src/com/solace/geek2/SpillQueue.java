@@ -0,0 +1,370 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A FIFO of received messages on disk, for the messages that do not fit in an agent's ingest lanes during a
+ * burst (see IngestLanes). Messages are appended one after the other to memory-mapped segment files of
+ * geek2.spill.segmentMB megabytes (default 64), and read back in the same order. Each queue has a directory
+ * of its own, made when it first spills, with a unique name under geek2.spill.dir (default
+ * [java.io.tmpdir]/geek2-spill), so that several instances of an agent on one host never share a segment;
+ * close() deletes it. A segment that has been read completely is kept mapped and re-used, rather than
+ * unmapped and deleted, which Java cannot do reliably while the mapping is alive. At most
+ * geek2.spill.maxSegments segments (default 16) are used; when they are all full, append() refuses.
+ *
+ * Only the parts of a message the agents read are kept: topic, content type and encoding, send time,
+ * priority and payload. The replayed message cannot be acknowledged, so only messages from direct
+ * subscriptions should be spilled.
+ *
+ * Not thread-safe: IngestLanes calls it with its lock held. Counts spill.messages, spill.bytes,
+ * spill.writeNanos, spill.replayed, spill.replayedBytes, spill.readNanos and spill.depth, summed over the
+ * queues of an agent.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class SpillQueue {
+	private static final Logger logger = Logger.getLogger(SpillQueue.class.getName());
+	public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("geek2.spill"));
+	public static final int SEGMENT_SIZE = Integer.getInteger("geek2.spill.segmentMB", 64) * 1024 * 1024;
+	public static final int MAX_SEGMENTS = Math.max(2, Integer.getInteger("geek2.spill.maxSegments", 16));
+	public static final String DIR = System.getProperty("geek2.spill.dir",
+			new File(System.getProperty("java.io.tmpdir"), "geek2-spill").getPath());
+
+	// a record starts with its length; a zero length marks the end of the records in a segment
+	private static final int END_OF_SEGMENT = 0;
+	private static final byte FLAG_TEXT = 1;
+
+	private static class Segment {
+		final File file;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+
+		Segment(File file) throws IOException {
+			this.file = file;
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		}
+	}
+
+	private final String name;
+	// made by the first nextSegment()
+	private File dir;
+	// segments with records, oldest first: reading from the first, writing to the last
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private final ArrayDeque<Segment> free = new ArrayDeque<Segment>();
+	private int segmentCount;
+	private int readPos;
+	private int writePos;
+	private int depth;
+	// read ahead by peek()
+	private TransportMessage next;
+	private final AtomicLong spilled;
+	private final AtomicLong spilledBytes;
+	private final AtomicLong writeNanos;
+	private final AtomicLong replayed;
+	private final AtomicLong replayedBytes;
+	private final AtomicLong readNanos;
+	private final AtomicLong depthGauge;
+
+	/**
+	 * @param name the owner, e.g. the agent's class name and lane, which the directory's name starts with
+	 * @param metrics
+	 */
+	public SpillQueue(String name, AgentMetrics metrics) {
+		this.name = name;
+		spilled = metrics.counter("spill.messages");
+		spilledBytes = metrics.counter("spill.bytes");
+		writeNanos = metrics.counter("spill.writeNanos");
+		replayed = metrics.counter("spill.replayed");
+		replayedBytes = metrics.counter("spill.replayedBytes");
+		readNanos = metrics.counter("spill.readNanos");
+		depthGauge = metrics.counter("spill.depth");
+	}
+
+	/**
+	 * @return true if there are no spilled messages to replay
+	 */
+	public boolean isEmpty() {
+		return depth == 0 && next == null;
+	}
+
+	/**
+	 * Appends a message.
+	 *
+	 * @param msg
+	 * @return false if it did not fit: all segments are full, the message is larger than a segment, or a
+	 * segment could not be created
+	 */
+	public boolean append(TransportMessage msg) {
+		long start = System.nanoTime();
+		byte[] topic = msg.getTopic().getBytes(StandardCharsets.UTF_8);
+		byte[] contentType = bytesOf(msg.getContentType());
+		byte[] contentEncoding = bytesOf(msg.getContentEncoding());
+		CharSequence text = msg.getText();
+		byte[] textBytes = text != null ? text.toString().getBytes(StandardCharsets.UTF_8) : null;
+		ByteBuffer payload = text == null ? msg.getPayload() : null;
+		int payloadLength = textBytes != null ? textBytes.length : payload != null ? payload.remaining() : 0;
+		int length = 4 + 1 + 8 + 4 + (4 + topic.length) + (4 + contentType.length) + (4 + contentEncoding.length)
+				+ 4 + payloadLength;
+		// room for the record and for an end marker after it
+		if (length + 4 > SEGMENT_SIZE) {
+			return false;
+		}
+		Segment segment = segments.peekLast();
+		if (segment == null || writePos + length + 4 > SEGMENT_SIZE) {
+			Segment nextSegment = nextSegment();
+			if (nextSegment == null) {
+				return false;
+			}
+			if (segment != null) {
+				segment.buffer.putInt(writePos, END_OF_SEGMENT);
+			}
+			segment = nextSegment;
+			segments.addLast(segment);
+			writePos = 0;
+		}
+		ByteBuffer out = segment.buffer;
+		out.position(writePos);
+		out.putInt(length);
+		out.put(textBytes != null ? FLAG_TEXT : 0);
+		out.putLong(msg.getSentMillis());
+		out.putInt(msg.getPriority());
+		putBytes(out, topic);
+		putBytes(out, contentType);
+		putBytes(out, contentEncoding);
+		out.putInt(payloadLength);
+		if (textBytes != null) {
+			out.put(textBytes);
+		}
+		else if (payload != null) {
+			out.put(payload.duplicate());
+		}
+		writePos = out.position();
+		depth++;
+		depthGauge.incrementAndGet();
+		spilled.incrementAndGet();
+		spilledBytes.addAndGet(length);
+		writeNanos.addAndGet(System.nanoTime() - start);
+		return true;
+	}
+
+	/**
+	 * @return the oldest spilled message, or null if there is none
+	 */
+	public TransportMessage peek() {
+		if (next == null && depth > 0) {
+			next = read();
+		}
+		return next;
+	}
+
+	/**
+	 * Removes the message returned by peek().
+	 */
+	public void remove() {
+		peek();
+		next = null;
+	}
+
+	private TransportMessage read() {
+		long start = System.nanoTime();
+		Segment segment = segments.peekFirst();
+		ByteBuffer in = segment.buffer;
+		int length = in.getInt(readPos);
+		if (length == END_OF_SEGMENT) {
+			recycle(segments.pollFirst());
+			segment = segments.peekFirst();
+			in = segment.buffer;
+			readPos = 0;
+			length = in.getInt(readPos);
+		}
+		in.position(readPos + 4);
+		boolean bText = in.get() == FLAG_TEXT;
+		long sentMillis = in.getLong();
+		int priority = in.getInt();
+		String topic = getString(in);
+		String contentType = getString(in);
+		String contentEncoding = getString(in);
+		byte[] payload = new byte[in.getInt()];
+		in.get(payload);
+		readPos += length;
+		depth--;
+		depthGauge.decrementAndGet();
+		if (depth == 0 && segments.size() == 1) {
+			// drained: start the segment over rather than move on to a new one
+			readPos = 0;
+			writePos = 0;
+		}
+		replayed.incrementAndGet();
+		replayedBytes.addAndGet(length);
+		readNanos.addAndGet(System.nanoTime() - start);
+		return new SpilledMessage(topic, bText, payload, contentType, contentEncoding, sentMillis, priority);
+	}
+
+	private Segment nextSegment() {
+		if (!free.isEmpty()) {
+			return free.poll();
+		}
+		if (segmentCount == MAX_SEGMENTS) {
+			return null;
+		}
+		try {
+			if (dir == null) {
+				Path base = Paths.get(DIR);
+				Files.createDirectories(base);
+				dir = Files.createTempDirectory(base, name + "-").toFile();
+				// deleted after the segments registered below, if close() is never reached
+				dir.deleteOnExit();
+			}
+			Segment segment = new Segment(new File(dir, "segment" + segmentCount + ".spill"));
+			// nothing is replayed from a previous run, so don't leave the file behind if close() is never reached
+			segment.file.deleteOnExit();
+			segmentCount++;
+			logger.info("Spilling to " + segment.file + ", " + segmentCount + " of up to " + MAX_SEGMENTS + " segments");
+			return segment;
+		} catch (IOException e) {
+			logger.error("Failed to create spill segment in " + (dir != null ? dir : DIR), e);
+			return null;
+		}
+	}
+
+	private void recycle(Segment segment) {
+		free.add(segment);
+	}
+
+	/**
+	 * Closes and deletes the segment files and the directory. Spilled messages not yet replayed are lost.
+	 */
+	public void close() {
+		if (depth > 0) {
+			logger.warn("Closing with " + depth + " spilled messages not replayed");
+		}
+		ArrayDeque<Segment> all = new ArrayDeque<Segment>(segments);
+		all.addAll(free);
+		for (Segment segment : all) {
+			try {
+				segment.channel.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close " + segment.file, e);
+			}
+			if (!segment.file.delete()) {
+				// still mapped, e.g. on Windows
+				segment.file.deleteOnExit();
+			}
+		}
+		if (dir != null && !dir.delete()) {
+			dir.deleteOnExit();
+		}
+		segments.clear();
+		free.clear();
+		depthGauge.addAndGet(-depth);
+		depth = 0;
+		next = null;
+	}
+
+	private static byte[] bytesOf(String s) {
+		return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void putBytes(ByteBuffer out, byte[] bytes) {
+		out.putInt(bytes.length);
+		out.put(bytes);
+	}
+
+	private static String getString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length == 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A message read back from a segment.
+	 */
+	private static class SpilledMessage implements TransportMessage {
+		private final String topic;
+		private final boolean bText;
+		private final byte[] payload;
+		private final String contentType;
+		private final String contentEncoding;
+		private final long sentMillis;
+		private final int priority;
+
+		SpilledMessage(String topic, boolean bText, byte[] payload, String contentType, String contentEncoding, long sentMillis, int priority) {
+			this.topic = topic;
+			this.bText = bText;
+			this.payload = payload;
+			this.contentType = contentType;
+			this.contentEncoding = contentEncoding;
+			this.sentMillis = sentMillis;
+			this.priority = priority;
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+
+		public CharSequence getText() {
+			return bText ? new String(payload, StandardCharsets.UTF_8) : null;
+		}
+
+		public ByteBuffer getPayload() {
+			return bText || payload.length == 0 ? null : ByteBuffer.wrap(payload);
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getContentEncoding() {
+			return contentEncoding;
+		}
+
+		public long getSentMillis() {
+			return sentMillis;
+		}
+
+		public long getMessageId() {
+			// spilled messages come from topic subscriptions
+			return 0;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public void ack() {
+			// spilled messages come from direct subscriptions, which have nothing to acknowledge
+		}
+	}
+}
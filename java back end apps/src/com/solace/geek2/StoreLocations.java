@@ -0,0 +1,193 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The locations purchases are made at, interned to dense int ids, with the coordinates of the known stores
+ * and the distances between them. The stores are read from a properties file, one store per line:
+ *
+ *     store1=45.4215,-75.6972
+ *
+ * (latitude and longitude in degrees), named by -Dgeek2.fraud.stores, or else stores.properties on the
+ * classpath. The known stores get the ids 0 to n-1, in name order, and the great-circle distance between
+ * every two of them is worked out once, when loading, into an n by n matrix; so the distance between the
+ * locations of two purchases is one array read. Locations not in the file get ids from n up the first time
+ * they are seen, and have no coordinates.
+ *
+ * Not thread safe: ids are assigned on the agent's processing thread.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class StoreLocations {
+	private static final Logger logger = Logger.getLogger(StoreLocations.class.getName());
+	public static final String STORES_FILE = System.getProperty("geek2.fraud.stores");
+	private static final double EARTH_RADIUS_KM = 6371.0;
+
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final ArrayList<String> names = new ArrayList<String>();
+	// the number of stores with coordinates, which have the ids below it
+	private final int located;
+	// located * located, in km
+	private final float[] distances;
+	private final float maxDistanceKm;
+
+	/**
+	 * Loads the stores from the file or resource, if there is one.
+	 *
+	 * @throws IllegalArgumentException if the stores cannot be read
+	 */
+	public StoreLocations() {
+		this(load());
+	}
+
+	/**
+	 * @param stores store names mapped to "latitude,longitude"
+	 * @throws IllegalArgumentException naming a store whose coordinates cannot be read
+	 */
+	public StoreLocations(Properties stores) {
+		// sorted, so that the ids do not depend on hashing
+		TreeMap<String, double[]> coordinates = new TreeMap<String, double[]>();
+		for (Map.Entry<Object, Object> entry : stores.entrySet()) {
+			String name = ((String) entry.getKey()).trim();
+			String[] latLon = ((String) entry.getValue()).split(",");
+			try {
+				coordinates.put(name, new double[] {Double.parseDouble(latLon[0].trim()), Double.parseDouble(latLon[1].trim())});
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw new IllegalArgumentException("Bad coordinates for store " + name + ": expected latitude,longitude");
+			}
+		}
+		located = coordinates.size();
+		double[][] points = new double[located][];
+		for (Map.Entry<String, double[]> entry : coordinates.entrySet()) {
+			points[id(entry.getKey())] = entry.getValue();
+		}
+		distances = new float[located * located];
+		float max = 0;
+		for (int a = 0; a < located; a++) {
+			for (int b = a + 1; b < located; b++) {
+				float km = (float) greatCircleKm(points[a][0], points[a][1], points[b][0], points[b][1]);
+				distances[a * located + b] = km;
+				distances[b * located + a] = km;
+				max = Math.max(max, km);
+			}
+		}
+		maxDistanceKm = max;
+	}
+
+	private static Properties load() {
+		Properties stores = new Properties();
+		try {
+			InputStream in = STORES_FILE != null ? new FileInputStream(STORES_FILE)
+					: StoreLocations.class.getClassLoader().getResourceAsStream("stores.properties");
+			if (in == null) {
+				logger.info("No stores.properties on the classpath, no store has coordinates");
+				return stores;
+			}
+			try {
+				stores.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Failed to read the store locations", e);
+		}
+		logger.info("Loaded the coordinates of " + stores.size() + " stores");
+		return stores;
+	}
+
+	/**
+	 * @param location
+	 * @return the id of the location, assigned the first time it is seen if it is not a known store
+	 */
+	public int id(String location) {
+		Integer id = ids.get(location);
+		if (id == null) {
+			id = names.size();
+			ids.put(location, id);
+			names.add(location);
+		}
+		return id;
+	}
+
+	/**
+	 * @param id
+	 * @return the location the id was assigned to
+	 */
+	public String name(int id) {
+		return names.get(id);
+	}
+
+	/**
+	 * @param id
+	 * @return true if the location is a store with coordinates
+	 */
+	public boolean isLocated(int id) {
+		return id < located;
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return the distance between two stores in km; both must be located
+	 */
+	public float distanceKm(int a, int b) {
+		return distances[a * located + b];
+	}
+
+	/**
+	 * @return the distance between the two stores furthest apart, in km; 0 if fewer than two are located
+	 */
+	public float maxDistanceKm() {
+		return maxDistanceKm;
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @param millis the time between a purchase at a and one at b, either way round
+	 * @return the speed in km/h needed to get from one store to the other in that time: infinite for no
+	 * time at all between different places, and NaN if either location has no coordinates
+	 */
+	public double speedKmh(int a, int b, long millis) {
+		if (a >= located || b >= located) {
+			return Double.NaN;
+		}
+		float km = distances[a * located + b];
+		millis = Math.abs(millis);
+		if (millis == 0) {
+			return km == 0 ? 0 : Double.POSITIVE_INFINITY;
+		}
+		return km * 3600000.0 / millis;
+	}
+
+	private static double greatCircleKm(double lat1, double lon1, double lat2, double lon2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		double h = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.Topic;
+
+/**
+ * Caches the outbound Topic objects of one message type, i.e. the [type]/location/customerId topics for a
+ * fixed type. The cache is keyed on the client id alone and remembers the location of the topic it holds,
+ * since a customer is almost always notified at the store they are shopping at; a lookup for another 
+ * location simply replaces the entry. Lookups use the strings the agent already holds, so a hit builds 
+ * no topic string and no Topic.
+ *
+ * The cache is bounded (system property geek2.topicCache.size, default 10000 customers per message type)
+ * and evicts the least recently notified customer. Not thread safe.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class TopicCache {
+	public static final int MAX_ENTRIES = Integer.getInteger("geek2.topicCache.size", 10000);
+
+	private static class Entry {
+		final String location;
+		final Topic topic;
+		Entry(String location, Topic topic) {
+			this.location = location;
+			this.topic = topic;
+		}
+	}
+
+	private final String messageType;
+	private final LruCache<String, Entry> topicsByClient = new LruCache<String, Entry>(MAX_ENTRIES);
+
+	/**
+	 * @param messageType the first level of the topics, e.g. "confirm"
+	 */
+	public TopicCache(String messageType) {
+		this.messageType = messageType;
+	}
+
+	public String getMessageType() {
+		return messageType;
+	}
+
+	/**
+	 * Returns the [type]/location/clientId topic, creating it if it is not cached.
+	 *
+	 * @param location
+	 * @param clientId
+	 * @return
+	 */
+	public Topic get(String location, String clientId) {
+		Entry entry = topicsByClient.get(clientId);
+		if (entry == null || !entry.location.equals(location)) {
+			Topic topic = JCSMPFactory.onlyInstance().createTopic(messageType + "/" + location + "/" + clientId);
+			entry = new Entry(location, topic);
+			topicsByClient.put(clientId, entry);
+		}
+		return entry.topic;
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+/**
+ * Matches topics against subscriptions with the Solace wildcard rules: levels are separated by '/', a
+ * '*' at the end of a level matches any characters in that level (so "*" alone matches any one level and
+ * "purch*" any level starting with "purch"), and a last level of ">" matches one or more further levels.
+ * Everything else must match exactly.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public final class TopicMatcher {
+	private TopicMatcher() {
+	}
+
+	/**
+	 * @param pattern a subscription, possibly with wildcards
+	 * @param topic a topic a message was published to
+	 * @return true if the subscription matches the topic
+	 */
+	public static boolean matches(String pattern, String topic) {
+		int p = 0;
+		int t = 0;
+		int patternLen = pattern.length();
+		int topicLen = topic.length();
+		while (true) {
+			int patternEnd = levelEnd(pattern, p);
+			int topicEnd = levelEnd(topic, t);
+			if (patternEnd == patternLen && patternEnd - p == 1 && pattern.charAt(p) == '>') {
+				// t always starts a level of the topic, so there is at least one left for the '>'
+				return true;
+			}
+			if (!levelMatches(pattern, p, patternEnd, topic, t, topicEnd)) {
+				return false;
+			}
+			if (patternEnd == patternLen || topicEnd == topicLen) {
+				return patternEnd == patternLen && topicEnd == topicLen;
+			}
+			p = patternEnd + 1;
+			t = topicEnd + 1;
+		}
+	}
+
+	/**
+	 * @return the index of the '/' ending the level that starts at start, or the length of s
+	 */
+	static int levelEnd(String s, int start) {
+		int slash = s.indexOf('/', start);
+		return slash < 0 ? s.length() : slash;
+	}
+
+	/**
+	 * @return true if a pattern level (which may end in '*') matches a topic level
+	 */
+	static boolean levelMatches(String pattern, int p, int patternEnd, String topic, int t, int topicEnd) {
+		int len = patternEnd - p;
+		if (len > 0 && pattern.charAt(patternEnd - 1) == '*') {
+			int prefix = len - 1;
+			return topicEnd - t >= prefix && topic.regionMatches(t, pattern, p, prefix);
+		}
+		return topicEnd - t == len && topic.regionMatches(t, pattern, p, len);
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the handlers registered for a topic, with the wildcard rules of TopicMatcher, in one walk down the
+ * topic's levels. Patterns are added to a trie with a node per level; matching a topic follows, at each
+ * level, the literal child with that name (found through a small hash table, without creating a substring),
+ * any children whose level ends in '*' and whose prefix matches, and collects the handlers of a '>' child
+ * on the way. The cost therefore depends on the number of levels in the topic, and not on the number of
+ * patterns, unless many '*' levels share a parent.
+ *
+ * Handlers are added while setting up and looked up on one thread afterwards; the router is not safe for
+ * concurrent adding and routing.
+ *
+ * @author Mike O'Brien
+ *
+ * @param <H> the handler type
+ */
+public class TopicRouter<H> {
+	private static class Node<H> {
+		final String level;
+		final int hash;
+		// handlers of patterns ending at this level, and of patterns continuing with a last level of '>'
+		final ArrayList<H> handlers = new ArrayList<H>();
+		final ArrayList<H> restHandlers = new ArrayList<H>();
+		// literal children in an open-addressing table (power of two size), and children ending in '*'
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Node<H>[] literals = new Node[4];
+		int literalCount;
+		final ArrayList<Node<H>> wildcards = new ArrayList<Node<H>>();
+
+		Node(String level) {
+			this.level = level;
+			this.hash = level.hashCode();
+		}
+	}
+
+	private final Node<H> root = new Node<H>("");
+	private int patterns;
+
+	/**
+	 * Registers a handler for a topic pattern. A handler added for several patterns that match the same topic
+	 * is only returned once for it.
+	 *
+	 * @param topicPattern a subscription, possibly with wildcards
+	 * @param handler
+	 */
+	public void add(String topicPattern, H handler) {
+		Node<H> node = root;
+		int start = 0;
+		while (true) {
+			int end = TopicMatcher.levelEnd(topicPattern, start);
+			String level = topicPattern.substring(start, end);
+			if (end == topicPattern.length() && level.equals(">")) {
+				node.restHandlers.add(handler);
+				break;
+			}
+			node = child(node, level);
+			if (end == topicPattern.length()) {
+				node.handlers.add(handler);
+				break;
+			}
+			start = end + 1;
+		}
+		patterns++;
+	}
+
+	/**
+	 * @return the number of patterns added
+	 */
+	public int size() {
+		return patterns;
+	}
+
+	/**
+	 * Collects the handlers for a topic.
+	 *
+	 * @param topic the topic a message was published to
+	 * @param into cleared, then filled with the matching handlers, each once, in no particular order
+	 * @return the number of handlers found
+	 */
+	public int route(String topic, List<H> into) {
+		into.clear();
+		match(root, topic, 0, into);
+		return into.size();
+	}
+
+	private void match(Node<H> node, String topic, int start, List<H> into) {
+		// start always begins a level, so a '>' here has at least one level to match
+		addAll(node.restHandlers, into);
+		int end = TopicMatcher.levelEnd(topic, start);
+		Node<H> literal = findLiteral(node, topic, start, end);
+		if (literal != null) {
+			next(literal, topic, end, into);
+		}
+		for (int i = 0; i < node.wildcards.size(); i++) {
+			Node<H> wildcard = node.wildcards.get(i);
+			if (TopicMatcher.levelMatches(wildcard.level, 0, wildcard.level.length(), topic, start, end)) {
+				next(wildcard, topic, end, into);
+			}
+		}
+	}
+
+	private void next(Node<H> child, String topic, int end, List<H> into) {
+		if (end == topic.length()) {
+			addAll(child.handlers, into);
+		}
+		else {
+			match(child, topic, end + 1, into);
+		}
+	}
+
+	private static <H> void addAll(ArrayList<H> handlers, List<H> into) {
+		for (int i = 0; i < handlers.size(); i++) {
+			H handler = handlers.get(i);
+			if (!into.contains(handler)) {
+				into.add(handler);
+			}
+		}
+	}
+
+	private Node<H> child(Node<H> node, String level) {
+		if (level.endsWith("*")) {
+			for (Node<H> wildcard : node.wildcards) {
+				if (wildcard.level.equals(level)) {
+					return wildcard;
+				}
+			}
+			Node<H> wildcard = new Node<H>(level);
+			node.wildcards.add(wildcard);
+			return wildcard;
+		}
+		Node<H> literal = findLiteral(node, level, 0, level.length());
+		if (literal == null) {
+			literal = new Node<H>(level);
+			if ((node.literalCount + 1) * 2 > node.literals.length) {
+				rehash(node);
+			}
+			insert(node.literals, literal);
+			node.literalCount++;
+		}
+		return literal;
+	}
+
+	/**
+	 * Looks up the literal child named s[start, end), hashing the region the way String.hashCode() does.
+	 */
+	private static <H> Node<H> findLiteral(Node<H> node, String s, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + s.charAt(i);
+		}
+		Node<H>[] table = node.literals;
+		int mask = table.length - 1;
+		for (int i = spread(hash) & mask; table[i] != null; i = (i + 1) & mask) {
+			Node<H> candidate = table[i];
+			if (candidate.hash == hash && candidate.level.length() == end - start
+					&& s.regionMatches(start, candidate.level, 0, end - start)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <H> void rehash(Node<H> node) {
+		Node<H>[] old = node.literals;
+		node.literals = new Node[old.length * 2];
+		for (Node<H> literal : old) {
+			if (literal != null) {
+				insert(node.literals, literal);
+			}
+		}
+	}
+
+	private static <H> void insert(Node<H>[] table, Node<H> literal) {
+		int mask = table.length - 1;
+		int i = spread(literal.hash) & mask;
+		while (table[i] != null) {
+			i = (i + 1) & mask;
+		}
+		table[i] = literal;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
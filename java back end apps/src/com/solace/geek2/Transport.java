@@ -0,0 +1,163 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import com.solacesystems.jcsmp.JCSMPException;
+
+/**
+ * The messaging operations the agents and the purchase client need: subscribing to topics, binding to a
+ * queue, publishing and acknowledging. JcsmpTransport implements them on a Solace broker session,
+ * LoopbackTransport entirely in process, so the whole pipeline can run in one JVM without a broker.
+ *
+ * Topic subscriptions use the Solace wildcard rules in both implementations (see TopicMatcher).
+ *
+ * @author Mike O'Brien
+ *
+ */
+public interface Transport {
+
+	/**
+	 * Receives the messages of a subscription or queue binding, on the transport's delivery thread.
+	 */
+	interface Listener {
+		void onMessage(TransportMessage msg);
+	}
+
+	/**
+	 * Receives the outcome of guaranteed publishes, on the transport's callback thread.
+	 */
+	interface AckListener {
+		void acked(OutboundPublisher.Slot slot);
+
+		void rejected(OutboundPublisher.Slot slot, Exception cause);
+	}
+
+	/**
+	 * Publishes rendered outbound slots. Each slot's buffer is sent to its topic, with its content type,
+	 * persistent if the slot is guaranteed (the outcome then goes to the AckListener).
+	 */
+	interface Publisher {
+		/**
+		 * @param slots
+		 * @param offset
+		 * @param count
+		 * @return how many slots, from offset on, were sent; fewer than count if the transport's window is full
+		 * @throws JCSMPException
+		 */
+		int send(OutboundPublisher.Slot[] slots, int offset, int count) throws JCSMPException;
+	}
+
+	/**
+	 * A transacted binding to a queue. Messages are received synchronously, and the messages received and 
+	 * the slots sent since the last commit() or rollback() are committed or rolled back together: on commit 
+	 * the received messages are removed from the queue and the sent ones published, on rollback the sent 
+	 * ones are discarded and the received ones are redelivered. Only used from one thread.
+	 */
+	interface Transaction {
+		/**
+		 * @param timeoutMillis
+		 * @return the next message of the queue, or null if none arrived within the timeout
+		 * @throws JCSMPException
+		 */
+		TransportMessage receive(int timeoutMillis) throws JCSMPException;
+
+		/**
+		 * Sends slots as part of the transaction, always persistent. Their content only goes out on commit,
+		 * and must stay unchanged until then.
+		 *
+		 * @param slots
+		 * @param offset
+		 * @param count
+		 * @return how many slots, from offset on, were sent
+		 * @throws JCSMPException
+		 */
+		int send(OutboundPublisher.Slot[] slots, int offset, int count) throws JCSMPException;
+
+		/**
+		 * @throws JCSMPException if the transaction could not be committed, in which case it was rolled back
+		 * (or, for a com.solacesystems.jcsmp.transaction.TransactionResultUnknownException, may have been)
+		 */
+		void commit() throws JCSMPException;
+
+		void rollback() throws JCSMPException;
+	}
+
+	/**
+	 * Delivers messages published to topics matching topicPattern.
+	 *
+	 * @param topicPattern
+	 * @param listener
+	 * @throws JCSMPException
+	 */
+	void subscribe(String topicPattern, Listener listener) throws JCSMPException;
+
+	/**
+	 * Removes a subscription made with subscribe(). Messages already on their way to the listener may still
+	 * arrive.
+	 *
+	 * @param topicPattern
+	 * @param listener
+	 * @throws JCSMPException
+	 */
+	void unsubscribe(String topicPattern, Listener listener) throws JCSMPException;
+
+	/**
+	 * Delivers the messages of a queue. They must be acknowledged with TransportMessage.ack() once processed.
+	 *
+	 * @param queueName
+	 * @param listener
+	 * @throws JCSMPException
+	 */
+	void bindQueue(String queueName, Listener listener) throws JCSMPException;
+
+	/**
+	 * Binds to a queue in a transaction of its own, see Transaction. Messages are not acknowledged 
+	 * individually: TransportMessage.ack() does nothing, commit() removes them from the queue.
+	 *
+	 * @param queueName
+	 * @return
+	 * @throws JCSMPException
+	 */
+	Transaction bindTransactedQueue(String queueName) throws JCSMPException;
+
+	/**
+	 * Creates the transport's publisher. A transport has at most one.
+	 *
+	 * @param acks
+	 * @return
+	 * @throws JCSMPException
+	 */
+	Publisher createPublisher(AckListener acks) throws JCSMPException;
+
+	void close();
+
+	/**
+	 * Opens the transport selected by -Dgeek2.transport: "jcsmp" (the default) connects to the broker with
+	 * the given credentials, "loopback" joins the in-process broker and ignores them.
+	 *
+	 * @param host
+	 * @param vpn
+	 * @param username
+	 * @param password
+	 * @param metrics
+	 * @return
+	 * @throws JCSMPException
+	 */
+	static Transport open(String host, String vpn, String username, String password, AgentMetrics metrics) throws JCSMPException {
+		if ("loopback".equals(System.getProperty("geek2.transport"))) {
+			return new LoopbackTransport();
+		}
+		return new JcsmpTransport(host, vpn, username, password, metrics);
+	}
+}
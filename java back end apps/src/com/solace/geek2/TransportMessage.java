@@ -0,0 +1,72 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message received from a Transport.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public interface TransportMessage {
+	/**
+	 * @return the topic the message was published to
+	 */
+	String getTopic();
+
+	/**
+	 * @return the text of a text message, null if the payload is binary
+	 */
+	CharSequence getText();
+
+	/**
+	 * @return the binary payload, null for a text message or an empty one. The buffer must not be modified.
+	 */
+	ByteBuffer getPayload();
+
+	/**
+	 * @return the HTTP content type header, or null
+	 */
+	String getContentType();
+
+	/**
+	 * @return the HTTP content encoding header, or null
+	 */
+	String getContentEncoding();
+
+	/**
+	 * @return when the message was published, in milliseconds since the epoch, or if the publisher did not 
+	 * say, when it was received; 0 if neither is known
+	 */
+	long getSentMillis();
+
+	/**
+	 * @return the priority the publisher gave the message, 0 to 255, or -1 if none
+	 */
+	int getPriority();
+
+	/**
+	 * @return an id for a message received from a queue that stays the same when the broker redelivers it,
+	 * or 0 if there is none
+	 */
+	long getMessageId();
+
+	/**
+	 * Acknowledges a message received from a queue, so the broker can delete it. Does nothing for topic
+	 * subscriptions.
+	 */
+	void ack();
+}
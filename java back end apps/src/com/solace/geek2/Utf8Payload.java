@@ -0,0 +1,87 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Presents a UTF-8 encoded payload, held in a ByteBuffer, to the PurchaseJsonDecoder without first copying
+ * it into a byte[] or a String. Indexes are byte offsets and charAt() returns the raw byte value. That is
+ * all the decoder needs to find the JSON structure, since every structural character is ASCII and every
+ * byte of a multi-byte UTF-8 sequence is 0x80 or above. String values are decoded from UTF-8 explicitly,
+ * with decodeUtf8(), when the decoder materializes them.
+ *
+ * The buffer is read with absolute gets only, so its position and limit are never changed. It must stay
+ * valid for as long as the message decoded from it may still decode its product list.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public final class Utf8Payload implements CharSequence {
+	private final ByteBuffer buffer;
+	private final int offset;
+	private final int length;
+
+	/**
+	 * Wraps the bytes between the buffer's position and limit.
+	 *
+	 * @param buffer
+	 */
+	public Utf8Payload(ByteBuffer buffer) {
+		this(buffer, buffer.position(), buffer.remaining());
+	}
+
+	private Utf8Payload(ByteBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		return (char) (buffer.get(offset + index) & 0xFF);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return new Utf8Payload(buffer, offset + start, end - start);
+	}
+
+	/**
+	 * Decodes the bytes in [start, end) as UTF-8.
+	 *
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public String decodeUtf8(int start, int end) {
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + offset + start, end - start, StandardCharsets.UTF_8);
+		}
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(offset + end).position(offset + start);
+		return StandardCharsets.UTF_8.decode(slice).toString();
+	}
+
+	@Override
+	public String toString() {
+		return decodeUtf8(0, length);
+	}
+}
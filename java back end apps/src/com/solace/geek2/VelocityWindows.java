@@ -0,0 +1,409 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sliding-window purchase counts and amounts per client, for velocity rules such as "more than 5 purchases
+ * in 10 minutes" (see FraudRules). For every window length in use, each client has a count and a sum, held
+ * in primitive arrays indexed by the client's RecentPurchases slot. A purchase adds to them at once and
+ * schedules its own removal, window milliseconds after its timestamp, on a hierarchical timing wheel; so the
+ * counters are exact at millisecond resolution, however many purchases the window holds, and both adding and
+ * expiring a purchase are O(1). Amounts are kept in cents so that they come back off exactly.
+ *
+ * The wheel has LEVELS levels of 64 slots, level n covering 64^(n+1) milliseconds, and places a purchase in
+ * the lowest level whose span still reaches its expiry time. Time is the purchases' own: the wheel is moved
+ * on to each purchase's timestamp, never back, expiring what is due and moving the entries of a higher
+ * level slot down as the lower levels come round to it. Stretches of time with nothing due in the lower
+ * levels are skipped a whole slot of the lowest busy level at a time. A purchase older than a window is not
+ * counted in it.
+ *
+ * There is a wheel per clock, each with a time of its own, and a client is always given the same clock:
+ * FraudRules uses one per partition. A partition taken over from another instance thus picks up its
+ * windows where they were left, and the purchases held for it meanwhile are counted in them in their own
+ * order, however far the instance's other partitions have moved on.
+ *
+ * The wheel entries live in a pool of parallel arrays that grows as needed and re-uses expired entries, so
+ * memory is bounded by the purchases within the longest window, not by the number of clients: a client with
+ * nothing in its windows costs only its counters. A client's entries can be taken out, to hand it to
+ * another instance, and put back in there (see drain() and restore()). Not thread safe; used on the agent's
+ * processing thread.
+ * Keeps velocity.entries (in the wheels now), velocity.expired and velocity.windows.
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class VelocityWindows {
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	// 64^6 ms, over two years
+	private static final int LEVELS = 6;
+	private static final int NONE = -1;
+
+	/**
+	 * A timing wheel and its time: the first entry in each slot of each level, and the number of entries per
+	 * level and in all.
+	 */
+	private static class Wheel {
+		final int[][] heads = new int[LEVELS][SLOTS];
+		final int[] levelCounts = new int[LEVELS];
+		long now;
+		int size;
+
+		Wheel() {
+			for (int[] level : heads) {
+				Arrays.fill(level, NONE);
+			}
+		}
+	}
+
+	// per window: its length, and each client's count and sum in cents
+	private long[] windowMillis = new long[0];
+	private int[][] counts = new int[0][];
+	private long[][] cents = new long[0][];
+	private int clientCapacity = 64;
+
+	// by clock, made when first used
+	private final Wheel[] wheels;
+	private int size;
+
+	// the entry pool, linked through next; free entries are linked from freeList
+	private int[] next = new int[1024];
+	private long[] due = new long[1024];
+	private int[] entryClient = new int[1024];
+	private int[] entryWindow = new int[1024];
+	private long[] entryCents = new long[1024];
+	private int freeList = NONE;
+	private int used;
+
+	/**
+	 * Receives the entries taken out by drain().
+	 */
+	public interface Sink {
+		/**
+		 * @param client
+		 * @param windowMillis the length of the entry's window
+		 * @param due when the entry leaves the window
+		 * @param cents the amount of the purchase, in cents
+		 */
+		void entry(int client, long windowMillis, long due, long cents);
+	}
+
+	private final AtomicLong entriesGauge;
+	private final AtomicLong expired;
+	private final AtomicLong windowsGauge;
+
+	/**
+	 * @param clocks the number of clocks, at least 1
+	 * @param metrics
+	 */
+	public VelocityWindows(int clocks, AgentMetrics metrics) {
+		wheels = new Wheel[clocks];
+		entriesGauge = metrics.counter("velocity.entries");
+		expired = metrics.counter("velocity.expired");
+		windowsGauge = metrics.counter("velocity.windows");
+	}
+
+	/**
+	 * @param millis a window length
+	 * @return the index of the window of that length, added if new. A new window only counts purchases
+	 * from now on.
+	 */
+	public int window(long millis) {
+		for (int w = 0; w < windowMillis.length; w++) {
+			if (windowMillis[w] == millis) {
+				return w;
+			}
+		}
+		int w = windowMillis.length;
+		windowMillis = Arrays.copyOf(windowMillis, w + 1);
+		windowMillis[w] = millis;
+		counts = Arrays.copyOf(counts, w + 1);
+		counts[w] = new int[clientCapacity];
+		cents = Arrays.copyOf(cents, w + 1);
+		cents[w] = new long[clientCapacity];
+		windowsGauge.set(w + 1);
+		return w;
+	}
+
+	/**
+	 * Counts a purchase in every window, unless it is already older than the window.
+	 *
+	 * @param client the client's RecentPurchases slot
+	 * @param clock the client's clock
+	 * @param timestamp
+	 * @param amount
+	 */
+	public void add(int client, int clock, long timestamp, double amount) {
+		Wheel wheel = wheel(clock);
+		advance(wheel, timestamp);
+		if (client >= clientCapacity) {
+			growClients(client);
+		}
+		long amountCents = Math.round(amount * 100);
+		for (int w = 0; w < windowMillis.length; w++) {
+			long expiry = timestamp + windowMillis[w];
+			if (expiry <= wheel.now) {
+				continue;
+			}
+			counts[w][client]++;
+			cents[w][client] += amountCents;
+			int entry = allocate();
+			due[entry] = expiry;
+			entryClient[entry] = client;
+			entryWindow[entry] = w;
+			entryCents[entry] = amountCents;
+			schedule(wheel, entry);
+		}
+		entriesGauge.set(size);
+	}
+
+	/**
+	 * @param window
+	 * @param client
+	 * @return the client's purchases within the window, as of the latest timestamp seen on its clock
+	 */
+	public int count(int window, int client) {
+		return client < clientCapacity ? counts[window][client] : 0;
+	}
+
+	/**
+	 * @param window
+	 * @param client
+	 * @return the total of the client's purchases within the window, as of the latest timestamp seen on its
+	 * clock
+	 */
+	public double sum(int window, int client) {
+		return client < clientCapacity ? cents[window][client] / 100.0 : 0;
+	}
+
+	/**
+	 * @param clock
+	 * @return the latest timestamp seen on the clock, 0 if none
+	 */
+	public long time(int clock) {
+		return wheel(clock).now;
+	}
+
+	/**
+	 * Moves a clock on to a time, expiring every purchase on it due by then. Does nothing if the time is not
+	 * later than the latest seen on the clock.
+	 *
+	 * @param clock
+	 * @param to
+	 */
+	public void advance(int clock, long to) {
+		advance(wheel(clock), to);
+		entriesGauge.set(size);
+	}
+
+	private void advance(Wheel wheel, long to) {
+		while (wheel.now < to) {
+			if (wheel.size == 0) {
+				wheel.now = to;
+				break;
+			}
+			int level = 0;
+			while (wheel.levelCounts[level] == 0) {
+				level++;
+			}
+			// the next time a slot of the lowest busy level comes round
+			long now = wheel.now;
+			long tick = level == 0 ? now + 1 : ((now >>> (BITS * level)) + 1) << (BITS * level);
+			if (tick > to) {
+				wheel.now = to;
+				break;
+			}
+			wheel.now = tick;
+			// move the entries of every level that came round down, the highest first
+			for (int l = LEVELS - 1; l > 0; l--) {
+				if ((tick & ((1L << (BITS * l)) - 1)) == 0 && wheel.levelCounts[l] > 0) {
+					cascade(wheel, l, (int) (tick >>> (BITS * l)) & MASK);
+				}
+			}
+			int slot = (int) tick & MASK;
+			int entry = wheel.heads[0][slot];
+			wheel.heads[0][slot] = NONE;
+			while (entry != NONE) {
+				int following = next[entry];
+				wheel.levelCounts[0]--;
+				expire(wheel, entry);
+				entry = following;
+			}
+		}
+	}
+
+	/**
+	 * Takes every entry of some clients out of the windows, leaving their counts and sums at zero.
+	 *
+	 * @param clients flags the clients to take out, by RecentPurchases slot
+	 * @param sink receives the entries
+	 */
+	public void drain(boolean[] clients, Sink sink) {
+		for (Wheel wheel : wheels) {
+			for (int level = 0; wheel != null && level < LEVELS; level++) {
+				for (int slot = 0; slot < SLOTS; slot++) {
+					int previous = NONE;
+					int entry = wheel.heads[level][slot];
+					while (entry != NONE) {
+						int following = next[entry];
+						int client = entryClient[entry];
+						if (client < clients.length && clients[client]) {
+							if (previous == NONE) {
+								wheel.heads[level][slot] = following;
+							}
+							else {
+								next[previous] = following;
+							}
+							wheel.levelCounts[level]--;
+							sink.entry(client, windowMillis[entryWindow[entry]], due[entry], entryCents[entry]);
+							counts[entryWindow[entry]][client]--;
+							cents[entryWindow[entry]][client] -= entryCents[entry];
+							next[entry] = freeList;
+							freeList = entry;
+							wheel.size--;
+							size--;
+						}
+						else {
+							previous = entry;
+						}
+						entry = following;
+					}
+				}
+			}
+		}
+		entriesGauge.set(size);
+	}
+
+	/**
+	 * Puts back an entry taken out by drain(), possibly on another instance, for a client; adds the window
+	 * if it is not in use here. The clock is only moved on as far as the purchase the entry is for, which is
+	 * no later than any purchase of the client still to come, and an entry already due by the clock's time
+	 * is dropped.
+	 *
+	 * @param client
+	 * @param clock the client's clock
+	 * @param windowMillis
+	 * @param due
+	 * @param amountCents
+	 */
+	public void restore(int client, int clock, long windowMillis, long due, long amountCents) {
+		Wheel wheel = wheel(clock);
+		// the wheel places entries relative to its time, which may not have been set yet
+		advance(wheel, due - windowMillis);
+		if (due <= wheel.now) {
+			return;
+		}
+		int w = window(windowMillis);
+		if (client >= clientCapacity) {
+			growClients(client);
+		}
+		counts[w][client]++;
+		cents[w][client] += amountCents;
+		int entry = allocate();
+		this.due[entry] = due;
+		entryClient[entry] = client;
+		entryWindow[entry] = w;
+		entryCents[entry] = amountCents;
+		schedule(wheel, entry);
+		entriesGauge.set(size);
+	}
+
+	private Wheel wheel(int clock) {
+		Wheel wheel = wheels[clock];
+		if (wheel == null) {
+			wheel = new Wheel();
+			wheels[clock] = wheel;
+		}
+		return wheel;
+	}
+
+	private void cascade(Wheel wheel, int level, int slot) {
+		int entry = wheel.heads[level][slot];
+		wheel.heads[level][slot] = NONE;
+		while (entry != NONE) {
+			int following = next[entry];
+			wheel.levelCounts[level]--;
+			wheel.size--;
+			size--;
+			schedule(wheel, entry);
+			entry = following;
+		}
+	}
+
+	/**
+	 * Puts an entry in the lowest level whose higher digits of time agree with its expiry, or expires it
+	 * if it is due already.
+	 */
+	private void schedule(Wheel wheel, int entry) {
+		long expiry = due[entry];
+		long now = wheel.now;
+		wheel.size++;
+		size++;
+		if (expiry <= now) {
+			expire(wheel, entry);
+			return;
+		}
+		int level = 0;
+		while (level < LEVELS - 1 && (expiry >>> (BITS * (level + 1))) != (now >>> (BITS * (level + 1)))) {
+			level++;
+		}
+		int slot = (int) (expiry >>> (BITS * level)) & MASK;
+		next[entry] = wheel.heads[level][slot];
+		wheel.heads[level][slot] = entry;
+		wheel.levelCounts[level]++;
+	}
+
+	private void expire(Wheel wheel, int entry) {
+		int w = entryWindow[entry];
+		int client = entryClient[entry];
+		counts[w][client]--;
+		cents[w][client] -= entryCents[entry];
+		next[entry] = freeList;
+		freeList = entry;
+		wheel.size--;
+		size--;
+		expired.incrementAndGet();
+	}
+
+	private int allocate() {
+		if (freeList != NONE) {
+			int entry = freeList;
+			freeList = next[entry];
+			return entry;
+		}
+		if (used == next.length) {
+			int capacity = used * 2;
+			next = Arrays.copyOf(next, capacity);
+			due = Arrays.copyOf(due, capacity);
+			entryClient = Arrays.copyOf(entryClient, capacity);
+			entryWindow = Arrays.copyOf(entryWindow, capacity);
+			entryCents = Arrays.copyOf(entryCents, capacity);
+		}
+		return used++;
+	}
+
+	private void growClients(int client) {
+		while (clientCapacity <= client) {
+			clientCapacity *= 2;
+		}
+		for (int w = 0; w < windowMillis.length; w++) {
+			counts[w] = Arrays.copyOf(counts[w], clientCapacity);
+			cents[w] = Arrays.copyOf(cents[w], clientCapacity);
+		}
+	}
+}
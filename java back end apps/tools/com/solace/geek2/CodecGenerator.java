@@ -0,0 +1,645 @@
+/**
+ *  Copyright 2012-2019 Solace Corporation. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions
+ *  of any contract or contracts between Solace and you or
+ *  your company. If there are no contracts in place use of
+ *  this source is not authorized. No support is provided and
+ *  no distribution, sharing with others or re-use of this
+ *  source is authorized unless specifically stated in the
+ *  contracts referred to above.
+ */
+package com.solace.geek2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Build-time generator of the message codecs. It reads the message schema (schema/purchase.schema) and
+ * writes, for every message, a JSON codec and a binary codec into the generated source folder, plus an
+ * enum of the selectable fields for messages that declare one. Run it with generateCodecs.bat whenever
+ * the schema changes.
+ *
+ * The generated code is plain straight-line Java: fields are read and written in schema order through
+ * their accessors, and JSON keys are matched by switching on the key length and then comparing
+ * against a constant, so there is no reflection and no hashing of field names.
+ *
+ * Schema format, one declaration per line ('#' starts a comment):
+ *
+ *     message PurchaseMessage fieldset=PurchaseField
+ *         double total json=total
+ *         string message json=message
+ *         list<ProductPurchase> Purchases json=purchases lazy
+ *
+ * Field types are double, long, string and list<Message>. A scalar field maps to get[Name]() and
+ * set[Name](value); a list field maps to get[Name]() returning a List and, if lazy, to
+ * setPending[Name](source, start, end).
+ *
+ * @author Mike O'Brien
+ *
+ */
+public class CodecGenerator {
+	private static final String HEADER = "/**\n"
+			+ " *  Copyright 2012-2019 Solace Corporation. All rights reserved.\n"
+			+ " *\n"
+			+ " *  http://www.solace.com\n"
+			+ " *\n"
+			+ " *  This source is distributed under the terms and conditions\n"
+			+ " *  of any contract or contracts between Solace and you or\n"
+			+ " *  your company. If there are no contracts in place use of\n"
+			+ " *  this source is not authorized. No support is provided and\n"
+			+ " *  no distribution, sharing with others or re-use of this\n"
+			+ " *  source is authorized unless specifically stated in the\n"
+			+ " *  contracts referred to above.\n"
+			+ " *\n"
+			+ " *  GENERATED by CodecGenerator from %s. Do not edit, change the schema and re-run generateCodecs.bat.\n"
+			+ " */\n"
+			+ "package com.solace.geek2;\n\n";
+
+	static class Field {
+		String type;		// double, long, string or list
+		String elementType;	// for lists
+		String name;
+		String jsonName;
+		boolean lazy;
+
+		String constName() {
+			// eventTime -> EVENT_TIME
+			return jsonName.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT);
+		}
+		String capitalized() {
+			return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		}
+		String wantVar() {
+			return "bWant" + capitalized();
+		}
+		String localName(String suffix) {
+			return Character.toLowerCase(name.charAt(0)) + name.substring(1) + suffix;
+		}
+	}
+
+	static class Message {
+		String name;
+		String fieldSet;
+		ArrayList<Field> fields = new ArrayList<Field>();
+	}
+
+	private final String schemaName;
+	private final ArrayList<Message> messages = new ArrayList<Message>();
+	private StringBuilder out;
+	private int indent;
+
+	public CodecGenerator(String schemaName) {
+		this.schemaName = schemaName;
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: CodecGenerator <schema file> <output source folder>");
+			System.exit(-1);
+		}
+		CodecGenerator generator = new CodecGenerator(args[0].replace('\\', '/'));
+		generator.parse(new File(args[0]));
+		File dir = new File(args[1], "com/solace/geek2");
+		dir.mkdirs();
+		for (GeneratedFile entry : generator.generateAll()) {
+			File file = new File(dir, entry.name + ".java");
+			try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+				writer.write(entry.source);
+			}
+			System.out.println("Generated " + file.getPath());
+		}
+	}
+
+	static class GeneratedFile {
+		final String name;
+		final String source;
+		GeneratedFile(String name, String source) {
+			this.name = name;
+			this.source = source;
+		}
+	}
+
+	void parse(File schema) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(schema), StandardCharsets.UTF_8))) {
+			Message current = null;
+			String line;
+			int lineNo = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNo++;
+				int hash = line.indexOf('#');
+				if (hash >= 0) {
+					line = line.substring(0, hash);
+				}
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				String[] tokens = line.split("\\s+");
+				if (tokens[0].equals("message")) {
+					current = new Message();
+					current.name = tokens[1];
+					for (int i = 2; i < tokens.length; i++) {
+						if (tokens[i].startsWith("fieldset=")) {
+							current.fieldSet = tokens[i].substring("fieldset=".length());
+						}
+						else {
+							throw new IOException(schema + ":" + lineNo + ": unknown message option " + tokens[i]);
+						}
+					}
+					messages.add(current);
+					continue;
+				}
+				if (current == null || tokens.length < 2) {
+					throw new IOException(schema + ":" + lineNo + ": field outside of a message");
+				}
+				Field field = new Field();
+				field.type = tokens[0];
+				if (field.type.startsWith("list<") && field.type.endsWith(">")) {
+					field.elementType = field.type.substring(5, field.type.length() - 1);
+					field.type = "list";
+				}
+				else if (!field.type.equals("double") && !field.type.equals("long") && !field.type.equals("string")) {
+					throw new IOException(schema + ":" + lineNo + ": unknown type " + field.type);
+				}
+				field.name = tokens[1];
+				field.jsonName = field.name;
+				for (int i = 2; i < tokens.length; i++) {
+					if (tokens[i].startsWith("json=")) {
+						field.jsonName = tokens[i].substring("json=".length());
+					}
+					else if (tokens[i].equals("lazy") && field.type.equals("list")) {
+						field.lazy = true;
+					}
+					else {
+						throw new IOException(schema + ":" + lineNo + ": unknown field option " + tokens[i]);
+					}
+				}
+				current.fields.add(field);
+			}
+		}
+		for (Message msg : messages) {
+			for (Field field : msg.fields) {
+				if (field.elementType != null && find(field.elementType) == null) {
+					throw new IOException(schema + ": list element type " + field.elementType + " is not a message");
+				}
+			}
+		}
+	}
+
+	Message find(String name) {
+		for (Message msg : messages) {
+			if (msg.name.equals(name)) {
+				return msg;
+			}
+		}
+		return null;
+	}
+
+	ArrayList<GeneratedFile> generateAll() {
+		ArrayList<GeneratedFile> files = new ArrayList<GeneratedFile>();
+		for (Message msg : messages) {
+			if (msg.fieldSet != null) {
+				files.add(new GeneratedFile(msg.fieldSet, generateFieldSet(msg)));
+			}
+			files.add(new GeneratedFile(msg.name + "JsonCodec", generateJsonCodec(msg)));
+			files.add(new GeneratedFile(msg.name + "BinaryCodec", generateBinaryCodec(msg)));
+		}
+		return files;
+	}
+
+	// ---- source writing helpers
+
+	private void begin() {
+		out = new StringBuilder(String.format(HEADER, schemaName));
+		indent = 0;
+	}
+
+	private void line(String text) {
+		if (text.startsWith("}")) {
+			indent--;
+		}
+		for (int i = 0; i < indent; i++) {
+			out.append('\t');
+		}
+		out.append(text).append('\n');
+		if (text.endsWith("{")) {
+			indent++;
+		}
+	}
+
+	private void blank() {
+		out.append('\n');
+	}
+
+	// ---- field set enum
+
+	String generateFieldSet(Message msg) {
+		begin();
+		line("/**");
+		line(" * The payload fields of a " + msg.name + ". Agents declare the subset they actually read (see");
+		line(" * AbstractAgent.getFieldsOfInterest()) and the codecs skip everything else.");
+		line(" */");
+		StringBuilder names = new StringBuilder();
+		for (Field field : msg.fields) {
+			names.append(names.length() == 0 ? "" : ", ").append(field.constName());
+		}
+		line("public enum " + msg.fieldSet + " {");
+		line(names.toString());
+		line("}");
+		return out.toString();
+	}
+
+	// ---- JSON codec
+
+	String generateJsonCodec(Message msg) {
+		begin();
+		if (msg.fieldSet == null) {
+			line("import java.util.List;");
+		}
+		else {
+			line("import java.util.EnumSet;");
+		}
+		blank();
+		line("import org.json.JSONException;");
+		blank();
+		line("/**");
+		line(" * JSON codec for " + msg.name + ".");
+		line(" */");
+		line("public final class " + msg.name + "JsonCodec {");
+		for (Field field : msg.fields) {
+			line("public static final String FIELD_" + field.constName() + " = \"" + field.jsonName + "\";");
+		}
+		for (Field field : msg.fields) {
+			line("private static final byte[] KEY_" + field.constName() + " = JsonCodecSupport.encodeKey(FIELD_" + field.constName() + ");");
+		}
+		blank();
+		line("private " + msg.name + "JsonCodec() {");
+		line("}");
+		blank();
+
+		String target = msg.fieldSet != null ? "msg" : "obj";
+		if (msg.fieldSet != null) {
+			line("/**");
+			line(" * Decodes a JSON document into msg. Fields not in the set are skipped without being decoded.");
+			line(" */");
+			line("public static void decode(CharSequence json, EnumSet<" + msg.fieldSet + "> fields, " + msg.name + " msg) throws JSONException {");
+			for (Field field : msg.fields) {
+				line("boolean " + field.wantVar() + " = fields.contains(" + msg.fieldSet + "." + field.constName() + ");");
+			}
+			line("decode(json, 0, msg" + wantArgs(msg) + ");");
+			line("}");
+			blank();
+			line("private static int decode(CharSequence json, int pos, " + msg.name + " msg" + wantParams(msg) + ") throws JSONException {");
+		}
+		else {
+			line("/**");
+			line(" * Decodes the JSON object starting at pos into obj.");
+			line(" *");
+			line(" * @return the position just after the object");
+			line(" */");
+			line("public static int decode(CharSequence json, int pos, " + msg.name + " obj) throws JSONException {");
+		}
+		line("pos = JsonCodecSupport.beginObject(json, pos);");
+		line("while (JsonCodecSupport.peek(json, pos) != '}') {");
+		line("int keyStart = pos;");
+		line("int keyEnd = JsonCodecSupport.skipString(json, pos);");
+		line("pos = JsonCodecSupport.valueStart(json, keyEnd);");
+		line("int valueEnd = JsonCodecSupport.skipValue(json, pos);");
+		line("switch (keyEnd - keyStart - 2) {");
+		TreeMap<Integer, ArrayList<Field>> byLength = new TreeMap<Integer, ArrayList<Field>>();
+		for (Field field : msg.fields) {
+			ArrayList<Field> list = byLength.get(field.jsonName.length());
+			if (list == null) {
+				list = new ArrayList<Field>();
+				byLength.put(field.jsonName.length(), list);
+			}
+			list.add(field);
+		}
+		for (Integer len : byLength.keySet()) {
+			// case labels line up with the switch
+			indent--;
+			line("case " + len + ":");
+			indent++;
+			boolean bFirst = true;
+			for (Field field : byLength.get(len)) {
+				String cond = (msg.fieldSet != null ? field.wantVar() + " && " : "")
+						+ "JsonCodecSupport.keyEquals(json, keyStart, keyEnd, FIELD_" + field.constName() + ")";
+				line((bFirst ? "if (" : "else if (") + cond + ") {");
+				bFirst = false;
+				jsonDecodeField(field, target);
+				line("}");
+			}
+			line("break;");
+		}
+		line("}");
+		line("pos = JsonCodecSupport.nextMember(json, valueEnd);");
+		line("}");
+		line("return pos + 1;");
+		line("}");
+		blank();
+
+		if (msg.fieldSet == null) {
+			line("/**");
+			line(" * Decodes the JSON array spanning [start, end) into a list.");
+			line(" */");
+			line("public static void decodeList(CharSequence json, int start, int end, List<" + msg.name + "> into) throws JSONException {");
+			line("int pos = JsonCodecSupport.beginArray(json, start);");
+			line("while (pos < end && JsonCodecSupport.peek(json, pos) != ']') {");
+			line(msg.name + " obj = new " + msg.name + "();");
+			line("pos = JsonCodecSupport.nextMember(json, decode(json, pos, obj));");
+			line("into.add(obj);");
+			line("}");
+			line("}");
+			blank();
+		}
+
+		if (msg.fieldSet != null) {
+			line("/**");
+			line(" * Encodes the fields in the set as a JSON document, replacing the contents of out.");
+			line(" */");
+			line("public static void encode(" + msg.name + " msg, EnumSet<" + msg.fieldSet + "> fields, OutboundBuffer out) {");
+			line("out.reset();");
+			line("out.writeByte('{');");
+			line("boolean bFirst = true;");
+			for (Field field : msg.fields) {
+				line("if (fields.contains(" + msg.fieldSet + "." + field.constName() + ")) {");
+				line("JsonCodecSupport.writeKey(out, KEY_" + field.constName() + ", bFirst);");
+				jsonEncodeField(field, target);
+				line("bFirst = false;");
+				line("}");
+			}
+			line("out.writeByte('}');");
+			line("}");
+		}
+		else {
+			line("/**");
+			line(" * Appends obj as a JSON object.");
+			line(" */");
+			line("public static void encode(" + msg.name + " obj, OutboundBuffer out) {");
+			line("out.writeByte('{');");
+			boolean bFirst = true;
+			for (Field field : msg.fields) {
+				line("JsonCodecSupport.writeKey(out, KEY_" + field.constName() + ", " + bFirst + ");");
+				jsonEncodeField(field, target);
+				bFirst = false;
+			}
+			line("out.writeByte('}');");
+			line("}");
+			blank();
+			line("/**");
+			line(" * Appends a list as a JSON array.");
+			line(" */");
+			line("public static void encodeList(List<" + msg.name + "> list, OutboundBuffer out) {");
+			line("out.writeByte('[');");
+			line("for (int i = 0; i < list.size(); i++) {");
+			line("if (i > 0) {");
+			line("out.writeByte(',');");
+			line("}");
+			line("encode(list.get(i), out);");
+			line("}");
+			line("out.writeByte(']');");
+			line("}");
+		}
+		line("}");
+		return out.toString();
+	}
+
+	private static String wantArgs(Message msg) {
+		StringBuilder sb = new StringBuilder();
+		for (Field field : msg.fields) {
+			sb.append(", ").append(field.wantVar());
+		}
+		return sb.toString();
+	}
+
+	private static String wantParams(Message msg) {
+		StringBuilder sb = new StringBuilder();
+		for (Field field : msg.fields) {
+			sb.append(", boolean ").append(field.wantVar());
+		}
+		return sb.toString();
+	}
+
+	private void jsonDecodeField(Field field, String target) {
+		if (field.type.equals("double")) {
+			line(target + ".set" + field.capitalized() + "(JsonCodecSupport.parseDouble(json, pos, valueEnd));");
+		}
+		else if (field.type.equals("long")) {
+			line(target + ".set" + field.capitalized() + "(JsonCodecSupport.parseLong(json, pos, valueEnd));");
+		}
+		else if (field.type.equals("string")) {
+			line(target + ".set" + field.capitalized() + "(JsonCodecSupport.parseString(json, pos, valueEnd));");
+		}
+		else if (field.lazy) {
+			line(target + ".setPending" + field.capitalized() + "(json, pos, valueEnd);");
+		}
+		else {
+			line(field.elementType + "JsonCodec.decodeList(json, pos, valueEnd, " + target + ".get" + field.capitalized() + "());");
+		}
+	}
+
+	private void jsonEncodeField(Field field, String target) {
+		if (field.type.equals("double") || field.type.equals("long")) {
+			line("JsonCodecSupport.writeNumber(out, " + target + ".get" + field.capitalized() + "());");
+		}
+		else if (field.type.equals("string")) {
+			line("JsonCodecSupport.writeString(out, " + target + ".get" + field.capitalized() + "());");
+		}
+		else {
+			line(field.elementType + "JsonCodec.encodeList(" + target + ".get" + field.capitalized() + "(), out);");
+		}
+	}
+
+	// ---- binary codec
+
+	String generateBinaryCodec(Message msg) {
+		begin();
+		line("import java.nio.ByteBuffer;");
+		if (msg.fieldSet == null) {
+			line("import java.util.List;");
+		}
+		else {
+			line("import java.util.EnumSet;");
+		}
+		blank();
+		line("/**");
+		line(" * Binary codec for " + msg.name + ", in the format described in BinaryCodecSupport.");
+		line(" */");
+		line("public final class " + msg.name + "BinaryCodec {");
+		line("private " + msg.name + "BinaryCodec() {");
+		line("}");
+		blank();
+
+		String target = msg.fieldSet != null ? "msg" : "obj";
+		if (msg.fieldSet != null) {
+			line("/**");
+			line(" * Decodes the message between the buffer's position and limit into msg. Fields not in the set are");
+			line(" * skipped without being decoded.");
+			line(" */");
+			line("public static void decode(ByteBuffer buf, EnumSet<" + msg.fieldSet + "> fields, " + msg.name + " msg) {");
+			line("int pos = buf.position();");
+		}
+		else {
+			line("/**");
+			line(" * Decodes the message at pos into obj.");
+			line(" *");
+			line(" * @return the position just after the message");
+			line(" */");
+			line("public static int decode(ByteBuffer buf, int pos, " + msg.name + " obj) {");
+		}
+		line("int present = BinaryCodecSupport.readVarint(buf, pos);");
+		line("pos += BinaryCodecSupport.varintSize(present);");
+		int bit = 0;
+		for (Field field : msg.fields) {
+			line("if ((present & " + (1 << bit) + ") != 0) {");
+			String want = msg.fieldSet != null ? "fields.contains(" + msg.fieldSet + "." + field.constName() + ")" : null;
+			binaryDecodeField(field, target, want);
+			line("}");
+			bit++;
+		}
+		if (msg.fieldSet == null) {
+			line("return pos;");
+		}
+		line("}");
+		blank();
+
+		if (msg.fieldSet == null) {
+			line("/**");
+			line(" * Decodes the list section spanning [start, end) (after its length prefix) into a list.");
+			line(" */");
+			line("public static void decodeList(ByteBuffer buf, int start, int end, List<" + msg.name + "> into) {");
+			line("int count = BinaryCodecSupport.readVarint(buf, start);");
+			line("int pos = start + BinaryCodecSupport.varintSize(count);");
+			line("for (int i = 0; i < count && pos < end; i++) {");
+			line(msg.name + " obj = new " + msg.name + "();");
+			line("pos = decode(buf, pos, obj);");
+			line("into.add(obj);");
+			line("}");
+			line("}");
+			blank();
+			line("/**");
+			line(" * Appends obj with all its fields.");
+			line(" */");
+			line("public static void encode(" + msg.name + " obj, OutboundBuffer out) {");
+			line("out.writeVarint(" + ((1 << msg.fields.size()) - 1) + ");");
+			for (Field field : msg.fields) {
+				binaryEncodeField(field, target);
+			}
+			line("}");
+			blank();
+			line("/**");
+			line(" * Appends a list section, without its length prefix.");
+			line(" */");
+			line("public static void encodeList(List<" + msg.name + "> list, OutboundBuffer out) {");
+			line("out.writeVarint(list.size());");
+			line("for (int i = 0; i < list.size(); i++) {");
+			line("encode(list.get(i), out);");
+			line("}");
+			line("}");
+		}
+		else {
+			line("/**");
+			line(" * Encodes the fields in the set, replacing the contents of out.");
+			line(" */");
+			line("public static void encode(" + msg.name + " msg, EnumSet<" + msg.fieldSet + "> fields, OutboundBuffer out) {");
+			line("out.reset();");
+			line("int present = 0;");
+			bit = 0;
+			for (Field field : msg.fields) {
+				line("if (fields.contains(" + msg.fieldSet + "." + field.constName() + ")) {");
+				line("present |= " + (1 << bit) + ";");
+				line("}");
+				bit++;
+			}
+			line("out.writeVarint(present);");
+			bit = 0;
+			for (Field field : msg.fields) {
+				line("if ((present & " + (1 << bit) + ") != 0) {");
+				binaryEncodeField(field, target);
+				line("}");
+				bit++;
+			}
+			line("}");
+		}
+		line("}");
+		return out.toString();
+	}
+
+	private void binaryDecodeField(Field field, String target, String want) {
+		String guard = want != null ? "if (" + want + ") {" : null;
+		if (field.type.equals("double") || field.type.equals("long")) {
+			String read = field.type.equals("double") ? "readDouble" : "readLong";
+			if (guard != null) {
+				line(guard);
+			}
+			line(target + ".set" + field.capitalized() + "(BinaryCodecSupport." + read + "(buf, pos));");
+			if (guard != null) {
+				line("}");
+			}
+			line("pos += 8;");
+		}
+		else if (field.type.equals("string")) {
+			String lenVar = field.localName("Length");
+			line("int " + lenVar + " = BinaryCodecSupport.readVarint(buf, pos);");
+			line("pos += BinaryCodecSupport.varintSize(" + lenVar + ");");
+			if (guard != null) {
+				line(guard);
+			}
+			line(target + ".set" + field.capitalized() + "(BinaryCodecSupport.readString(buf, pos, " + lenVar + "));");
+			if (guard != null) {
+				line("}");
+			}
+			line("pos += BinaryCodecSupport.stringBytes(" + lenVar + ");");
+		}
+		else {
+			String lenVar = field.localName("Length");
+			line("int " + lenVar + " = BinaryCodecSupport.readInt(buf, pos);");
+			line("pos += 4;");
+			if (guard != null) {
+				line(guard);
+			}
+			if (field.lazy) {
+				line(target + ".setPending" + field.capitalized() + "(buf, pos, pos + " + lenVar + ");");
+			}
+			else {
+				line(field.elementType + "BinaryCodec.decodeList(buf, pos, pos + " + lenVar + ", " + target + ".get" + field.capitalized() + "());");
+			}
+			if (guard != null) {
+				line("}");
+			}
+			line("pos += " + lenVar + ";");
+		}
+	}
+
+	private void binaryEncodeField(Field field, String target) {
+		if (field.type.equals("double")) {
+			line("BinaryCodecSupport.writeDouble(out, " + target + ".get" + field.capitalized() + "());");
+		}
+		else if (field.type.equals("long")) {
+			line("out.writeLong(" + target + ".get" + field.capitalized() + "());");
+		}
+		else if (field.type.equals("string")) {
+			line("BinaryCodecSupport.writeString(out, " + target + ".get" + field.capitalized() + "());");
+		}
+		else {
+			String lenVar = field.localName("LengthAt");
+			line("int " + lenVar + " = out.length();");
+			line("out.writeInt(0);");
+			line(field.elementType + "BinaryCodec.encodeList(" + target + ".get" + field.capitalized() + "(), out);");
+			line("out.writeIntAt(" + lenVar + ", out.length() - " + lenVar + " - 4);");
+		}
+	}
+}